@@ -0,0 +1,131 @@
+package com.hifly.messageloop;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <h1>the BinaryCodecBenchmark class</h1>
+ * A structured message (an int, a long and a double) sent as text and as binary.
+ * <ul><li>
+ * encodeText / decodeText: formatted as "item;time;price" with the TextCodec, and parsed;
+ * </li><li>
+ * encodeBinary / decodeBinary: with a BinaryCodec, the fields read straight out of the buffer.
+ * </li></ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryCodecBenchmark {
+
+	/**
+	 * the structured message
+	 */
+	static class Quote implements BinaryCodec.Message {
+		int 	item;
+		long	time;
+		double	price;
+
+		@Override
+		public int maxLength() {
+			return 4 + 8 + 8;
+		}
+
+		@Override
+		public void writeTo(ByteBuffer dst) {
+			dst.putInt(item).putLong(time).putDouble(price);
+		}
+
+		@Override
+		public void readFrom(ByteBuffer src) {
+			item	= src.getInt();
+			time	= src.getLong();
+			price	= src.getDouble();
+		}
+	}
+
+	private final Quote 	    	quote = new Quote();
+	private final StringBuilder 	sb = new StringBuilder(64);
+	private TextCodec   	    	textCodec;
+	private BinaryCodec<Quote>  	binaryCodec;
+	private ByteBuffer  	    	textFrame, binaryFrame;
+
+	@Setup
+	public void setup() {
+		quote.item	= 4711;
+		quote.time	= 1400000000000L;
+		quote.price	= 123.45;
+		textCodec	= new TextCodec(64);
+		binaryCodec	= new BinaryCodec<Quote>() {
+			@Override
+			protected Quote newMessage() {
+				return new Quote();
+			}
+			@Override
+			protected void onMessage(Quote msg, int id) {
+			}
+		};
+		textFrame	= BufferPool.acquire(BufferPool.MIN_SIZE);
+		encode(textFrame, textCodec, format());
+		textFrame.flip();
+		binaryFrame	= BufferPool.acquire(BufferPool.MIN_SIZE);
+		encode(binaryFrame, binaryCodec, quote);
+		binaryFrame.flip();
+	}
+
+	private CharSequence format() {
+		sb.setLength(0);
+		return sb.append(quote.item).append(';').append(quote.time).append(';').append(quote.price);
+	}
+
+	private static <T> int encode(ByteBuffer dst, PayloadCodec<T> codec, T msg) {
+		int 	start	= FrameCodec.beginFrame(dst);
+		codec.encode(msg, dst);
+		return FrameCodec.endFrame(dst, start, 1);
+	}
+
+	@Benchmark
+	public int encodeText() {
+		ByteBuffer	dst	= BufferPool.acquire(BufferPool.MIN_SIZE);
+		int 	len 	= encode(dst, textCodec, format());
+		BufferPool.release(dst);
+		return len;
+	}
+
+	@Benchmark
+	public int encodeBinary() {
+		ByteBuffer	dst	= BufferPool.acquire(BufferPool.MIN_SIZE);
+		int 	len 	= encode(dst, binaryCodec, quote);
+		BufferPool.release(dst);
+		return len;
+	}
+
+	@Benchmark
+	public double decodeText() throws Exception {
+		textFrame.position(0);
+		int 	len	= FrameCodec.nextFrame(textFrame);
+		String[]	f	= textCodec.decode(textFrame, len).toString().split(";");
+		return Integer.parseInt(f[0]) + Long.parseLong(f[1]) + Double.parseDouble(f[2]);
+	}
+
+	@Benchmark
+	public double decodeBinary() throws Exception {
+		binaryFrame.position(0);
+		int 	len	= FrameCodec.nextFrame(binaryFrame);
+		Quote	q	= binaryCodec.decode(binaryFrame, len);
+		return q.item + q.time + q.price;
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.hifly.messageloop;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <h1>the CodecBenchmark class</h1>
+ * Encoding and decoding of text records, without the network.
+ * <ul><li>
+ * encodePooled / decodePooled: the SrvConnect way, with a reused CharsetEncoder and
+ * CharsetDecoder working directly on pooled direct buffers;
+ * </li><li>
+ * encodeGetBytes / decodeString: the String.getBytes() and new String() way, as a reference.
+ * </li></ul>
+ * Run with the gc profiler (-prof gc) to compare the allocation per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	private static final Charset	CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * payload size in characters (ASCII, so also in bytes)
+	 */
+	@Param({"16", "256", "4096", "65528"})
+	public int	size;
+
+	private String  	    	text;
+	private CharsetEncoder  	encoder;
+	private CharsetDecoder  	decoder;
+	private CharBuffer  	    chars;
+	private ByteBuffer  	    frame;		// one encoded frame, direct
+
+	@Setup
+	public void setup() {
+		char[]	c	= new char[size];
+		Arrays.fill(c, 'x');
+		text	= new String(c);
+		encoder	= CHARSET.newEncoder();
+		decoder	= CHARSET.newDecoder();
+		chars	= CharBuffer.allocate(size);
+		frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + size);
+		byte[]	b	= text.getBytes(CHARSET);
+		FrameCodec.encode(frame, 1, b, 0, b.length);
+		frame.flip();
+	}
+
+	@Benchmark
+	public int encodePooled() {
+		ByteBuffer	dst	= BufferPool.acquire(FrameCodec.HEADER_LEN + size);
+		int 	start	= FrameCodec.beginFrame(dst);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(text), dst, true);
+		encoder.flush(dst);
+		int 	len 	= FrameCodec.endFrame(dst, start, 1);
+		BufferPool.release(dst);
+		return len;
+	}
+
+	@Benchmark
+	public int encodeGetBytes() {
+		byte[]	b	= text.getBytes(CHARSET);
+		ByteBuffer	dst	= ByteBuffer.allocate(FrameCodec.HEADER_LEN + b.length).order(ByteOrder.LITTLE_ENDIAN);
+		FrameCodec.encode(dst, 1, b, 0, b.length);
+		return dst.position();
+	}
+
+	@Benchmark
+	public int decodePooled() throws Exception {
+		frame.position(0);
+		int 	len	= FrameCodec.nextFrame(frame);
+		chars.clear();
+		decoder.reset();
+		decoder.decode(frame, chars, true);
+		decoder.flush(chars);
+		return chars.position() + len;
+	}
+
+	@Benchmark
+	public String decodeString() throws Exception {
+		frame.position(0);
+		int 	len	= FrameCodec.nextFrame(frame);
+		byte[]	b	= new byte[len];
+		frame.get(b);
+		return new String(b, CHARSET);
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.hifly.messageloop;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * <h1>the EchoServer class</h1>
+ * Loopback stand-in for the server, for running the benchmarks on the JVM.
+ * <br>
+ * A single thread with a java.nio Selector accepts connections on 127.0.0.1 and
+ * writes every byte it reads back to the sender. As the bytes are returned unchanged,
+ * every frame comes back with its length and correlation id, see FrameCodec.
+ * When a client does not read its replies, the server stops reading from it.
+ */
+public class EchoServer implements Runnable, Closeable {
+	private static final int	BUFLEN = 256 * 1024;
+	private final ServerSocketChannel	server;
+	private final Selector      	selector;
+	private final Thread	    	thread;
+	private volatile boolean    	bRunning = true;
+
+	/*****************************
+	 * <h1>EchoServer constructor</h1>
+	 * Bind the server socket and start the server thread.
+	 * @param port port to listen on, 0 for any free port
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public EchoServer(int port) throws IOException {
+		server  	= ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+		server.configureBlocking(false);
+		selector	= Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		thread  	= new Thread(this, "EchoServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*****************************
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (bRunning) {
+				selector.select();
+				Iterator<SelectionKey>	it	= selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey	key	= it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						echo(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (bRunning) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*****************************
+	 * accept a connection and register it for reading
+	 */
+	private void accept() throws IOException {
+		SocketChannel	ch	= server.accept();
+		if (null == ch) {
+			return;
+		}
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		ch.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFLEN));
+	}
+
+	/*****************************
+	 * read what is available and write back as much as the socket takes
+	 */
+	private void echo(SelectionKey key) {
+		SocketChannel	ch	= (SocketChannel) key.channel();
+		ByteBuffer  	buf	= (ByteBuffer) key.attachment();
+		try {
+			if (key.isReadable() && ch.read(buf) < 0) {
+				key.cancel();
+				ch.close();
+				return;
+			}
+			buf.flip();
+			ch.write(buf);
+			buf.compact();
+			// stop reading while the buffer is full, write while data is left
+			key.interestOps((buf.hasRemaining()? SelectionKey.OP_READ: 0)
+					| ((buf.position() > 0)? SelectionKey.OP_WRITE: 0));
+		} catch (IOException e) {
+			key.cancel();
+			try {
+				ch.close();
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+		}
+	}
+
+	/*****************************
+	 * stop the server thread and close all connections
+	 */
+	@Override
+	public void close() throws IOException {
+		bRunning	= false;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+		server.close();
+	}
+
+}
@@ -0,0 +1,260 @@
+package com.hifly.messageloop;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <h1>the EventLoopBenchmark class</h1>
+ * Round trip of one record sent by the UI until its reply reaches the MainHandler, over a
+ * loopback connection to the EchoServer, with LoopThreads as stand-in for the Loopers.
+ * <ul><li>
+ * threeThreads: the blocking mode; the TaskThread writes the record and hands the read to
+ * the ReceiveData thread, which passes the reply back to the TaskThread, which sends it
+ * to the MainHandler;
+ * </li><li>
+ * eventLoop: DispatchWork.bEventLoop; one thread runs the commands and a Selector on a
+ * non-blocking channel, and sends only the reply to the MainHandler.
+ * </li></ul>
+ * The benchmark thread plays the UI and waits until the MainHandler hop has run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventLoopBenchmark {
+	/**
+	 * payload size in bytes
+	 */
+	@Param({"16", "4096"})
+	public int	size;
+
+	private EchoServer  	    server;
+	private LoopThread  	    taskThread, receiveThread, mainThread;
+	private SocketChannel   	blockingCh;
+	private ByteBuffer  	    receiveBuf;		// read buffer of the receive thread
+	private IoThread    	    ioThread;
+	private byte[]  	    	payload;
+	private volatile long   	done = 0;
+	private long	    	    sent = 0;
+
+	private final Runnable  	toMain = new Runnable() {
+		@Override
+		public void run() {
+			done++;
+		}
+	};
+	private final Runnable  	receiveToTask = new Runnable() {
+		@Override
+		public void run() {
+			mainThread.post(toMain);
+		}
+	};
+	private final Runnable  	receive = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				while (!FrameCodec.hasFrame(receiveBuf)) {
+					if (blockingCh.read(receiveBuf) < 0) {
+						throw new EOFException();
+					}
+				}
+				receiveBuf.flip();
+				int len	= FrameCodec.nextFrame(receiveBuf);
+				receiveBuf.position(receiveBuf.position() + len);
+				receiveBuf.compact();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			taskThread.post(receiveToTask);
+		}
+	};
+	private final Runnable  	writeBlocking = new Runnable() {
+		@Override
+		public void run() {
+			ByteBuffer	frame	= frame();
+			try {
+				while (frame.hasRemaining()) {
+					blockingCh.write(frame);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			BufferPool.release(frame);
+			receiveThread.post(receive);
+		}
+	};
+	private final Runnable  	writeLoop = new Runnable() {
+		@Override
+		public void run() {
+			ioThread.write(frame());
+		}
+	};
+
+	@Setup
+	public void setup() throws IOException {
+		server  	= new EchoServer(0);
+		payload 	= new byte[size];
+		Arrays.fill(payload, (byte) 'x');
+		taskThread  	= new LoopThread("TaskThread");
+		receiveThread	= new LoopThread("ReceiveThread");
+		mainThread  	= new LoopThread("MainThread");
+		blockingCh  	= SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+		blockingCh.socket().setTcpNoDelay(true);
+		receiveBuf  	= BufferPool.acquire(BufferPool.MAX_SIZE);
+		ioThread    	= new IoThread(server.getPort());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		taskThread.quit();
+		receiveThread.quit();
+		mainThread.quit();
+		ioThread.quit();
+		blockingCh.close();
+		server.close();
+	}
+
+	@Benchmark
+	public long threeThreads() {
+		taskThread.post(writeBlocking);
+		return await();
+	}
+
+	@Benchmark
+	public long eventLoop() {
+		ioThread.post(writeLoop);
+		return await();
+	}
+
+	/*****************************
+	 * encode the record into a pooled frame in drain mode
+	 */
+	private ByteBuffer frame() {
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + size);
+		FrameCodec.encode(frame, 1, payload, 0, size);
+		frame.flip();
+		return frame;
+	}
+
+	/*****************************
+	 * wait until the last hop of the record has run
+	 */
+	private long await() {
+		sent++;
+		while (done < sent) {
+			Thread.onSpinWait();
+		}
+		return done;
+	}
+
+	/**
+	 * JVM stand-in for the TaskThread with DispatchWork.bEventLoop: runs the posted
+	 * Runnables, and between them a Selector for the socket I/O, like the pollTask of
+	 * TaskFragment.TaskHandler with EventLoop.
+	 */
+	private class IoThread extends Thread {
+		private final ConcurrentLinkedQueue<Runnable>	queue = new ConcurrentLinkedQueue<Runnable>();
+		private final Selector      	selector;
+		private final SocketChannel 	ch;
+		private final SelectionKey  	key;
+		private final OutboundQueue 	outQueue = new OutboundQueue(0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		private final ByteBuffer    	readBuf = BufferPool.acquire(BufferPool.MAX_SIZE);
+		private volatile boolean    	bRunning = true;
+
+		IoThread(int port) throws IOException {
+			super("EventLoop");
+			setDaemon(true);
+			selector	= Selector.open();
+			ch  	= SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			ch.socket().setTcpNoDelay(true);
+			ch.configureBlocking(false);
+			key 	= ch.register(selector, SelectionKey.OP_READ);
+			start();
+		}
+
+		void post(Runnable r) {
+			queue.add(r);
+			selector.wakeup();
+		}
+
+		/*****************************
+		 * write a frame now, and the rest when the socket is writable
+		 */
+		void write(ByteBuffer frame) {
+			outQueue.offer(frame);
+			try {
+				if (!outQueue.flush(ch)) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (bRunning) {
+					Runnable	r;
+					while (null != (r = queue.poll())) {
+						r.run();
+					}
+					selector.select();
+					selector.selectedKeys().clear();
+					if (!outQueue.isEmpty() && outQueue.flush(ch)) {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					if (ch.read(readBuf) < 0) {
+						throw new EOFException();
+					}
+					readBuf.flip();
+					int len;
+					while ((len = FrameCodec.nextFrame(readBuf)) >= 0) {
+						readBuf.position(readBuf.position() + len);
+						mainThread.post(toMain);
+					}
+					readBuf.compact();
+				}
+			} catch (IOException e) {
+				if (bRunning) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		void quit() throws IOException {
+			bRunning	= false;
+			selector.wakeup();
+			try {
+				join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			ch.close();
+			selector.close();
+		}
+	}
+
+}
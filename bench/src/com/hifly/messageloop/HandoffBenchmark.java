@@ -0,0 +1,109 @@
+package com.hifly.messageloop;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <h1>the HandoffBenchmark class</h1>
+ * Cost of the thread hand-offs of one record, without the network, with LoopThreads as
+ * stand-in for the Looper threads.
+ * <br>
+ * taskReceiveTaskMain follows a record sent by the UI: TaskHandler (DispatchWork.writeSrv),
+ * then the ReceiveData thread (CM_READ_INIT and read), back to the TaskHandler
+ * (sendResult) and finally the MainHandler. The benchmark thread plays the UI and
+ * waits until the MainHandler hop has run.
+ * <br>
+ * taskMain is the same record with DispatchWork.bEventLoop, where the TaskThread does the
+ * socket I/O itself: TaskHandler, then the MainHandler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+	private LoopThread  	    taskThread, receiveThread, mainThread;
+	private volatile long   	done = 0;
+	private long	    	    sent = 0;
+
+	// the hops are allocated once, so the benchmark measures the queues only
+	private final Runnable  	toMain = new Runnable() {
+		@Override
+		public void run() {
+			done++;
+		}
+	};
+	private final Runnable  	receiveToTask = new Runnable() {
+		@Override
+		public void run() {
+			mainThread.post(toMain);
+		}
+	};
+	private final Runnable  	taskToReceive = new Runnable() {
+		@Override
+		public void run() {
+			taskThread.post(receiveToTask);
+		}
+	};
+	private final Runnable  	taskToMain = new Runnable() {
+		@Override
+		public void run() {
+			mainThread.post(toMain);
+		}
+	};
+	private final Runnable  	uiToTask = new Runnable() {
+		@Override
+		public void run() {
+			receiveThread.post(taskToReceive);
+		}
+	};
+
+	@Setup
+	public void setup() {
+		taskThread  	= new LoopThread("TaskThread");
+		receiveThread	= new LoopThread("ReceiveThread");
+		mainThread  	= new LoopThread("MainThread");
+	}
+
+	@TearDown
+	public void tearDown() {
+		taskThread.quit();
+		receiveThread.quit();
+		mainThread.quit();
+	}
+
+	@Benchmark
+	public long taskReceiveTaskMain() {
+		taskThread.post(uiToTask);
+		return await();
+	}
+
+	@Benchmark
+	public long taskMain() {
+		taskThread.post(taskToMain);
+		return await();
+	}
+
+	/*****************************
+	 * wait until the last hop of the record has run
+	 */
+	long await() {
+		sent++;
+		while (done < sent) {
+			Thread.onSpinWait();
+		}
+		return done;
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.hifly.messageloop;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>the HeadlessBenchmark class</h1>
+ * The whole messaging core on a plain JVM, without the Android platform: a ThreadDispatcher
+ * as TaskThread, DispatchWork with its ConnectionPool and SrvConnect connections, and a
+ * LoadServer in the same process as the server.
+ * <br>
+ * Requests are given with DispatchWork.request() from the main thread, with a fixed number
+ * in flight, and the round trip of every request is recorded from the call to its
+ * callback on the TaskThread, so the command queue, the socket I/O and the reply
+ * correlation all count.
+ * <br>
+ * Options as name=value:
+ * <ul><li>
+ * mode: blk (a ReadLoop per connection, on virtual threads when the JVM has them), sel
+ * (DispatchWork.bSelectorLoop) or evt (DispatchWork.bEventLoop) (evt);
+ * </li><li>
+ * connections (4), inflight (64), size of the request in characters (64), warmup (20000)
+ * and requests (200000) measured, delay of the LoadServer in ms (0).
+ * </li></ul>
+ * Prints the requests per second, the latency count, mean, p50, p99, p999 and max in
+ * microseconds, and the Metrics of the core.
+ */
+public class HeadlessBenchmark {
+	private static final long	CONNECT_NS = 10000000000L;
+	private static final long	DRAIN_S = 30;
+
+	private final ThreadDispatcher	dispatcher;
+	private final int   	    	    	inflight;
+	private final Semaphore 	    	window;
+	private final String	    	    	payload;
+	private final LatencyHistogram	latency = new LatencyHistogram();
+	private final AtomicLong    	    	nFailed = new AtomicLong();
+	private volatile boolean	    	bMeasure = false;
+
+	/*****************************
+	 * <h1>HeadlessBenchmark constructor</h1>
+	 * Start the TaskThread.
+	 * @param inflight number of requests in flight
+	 * @param size request size in characters
+	 */
+	HeadlessBenchmark(int inflight, int size) {
+		StringBuilder	sb	= new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		payload 	= sb.toString();
+		this.inflight	= inflight;
+		window  	= new Semaphore(inflight);
+		dispatcher	= new ThreadDispatcher(new ThreadDispatcher.Results() {
+			@Override
+			public void onResult(int n, MsgEvent ev) {
+				// the replies are taken from the PendingReply callbacks
+			}
+		});
+		dispatcher.start();
+	}
+
+	/*****************************
+	 * Open the connections and wait until they are up.
+	 * @return <b>true</b> if connected
+	 */
+	boolean connect() throws InterruptedException {
+		dispatcher.sendCommand(DispatchWork.CM_START, 0, 0, null);
+		long	end 	= System.nanoTime() + CONNECT_NS;
+		while (!DispatchWork.isConnected()) {
+			if (System.nanoTime() - end > 0) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/*****************************
+	 * Give a number of requests, with no more in flight than the window, and wait for
+	 * their replies.
+	 * @param n number of requests
+	 * @param bMeasure <b>true</b> to record the round trips
+	 */
+	void run(int n, boolean bMeasure) throws InterruptedException {
+		this.bMeasure	= bMeasure;
+		for (int i = 0; i < n; i++) {
+			window.acquire();
+			final long	start	= System.nanoTime();
+			DispatchWork.request(payload, new PendingReply.Callback() {
+				@Override
+				public void onReply(PendingReply reply) {
+					if (null == reply.getReply()) {
+						nFailed.incrementAndGet();
+					} else if (HeadlessBenchmark.this.bMeasure) {
+						latency.record(System.nanoTime() - start);
+					}
+					window.release();
+				}
+			});
+		}
+		// wait for the replies in flight
+		if (window.tryAcquire(inflight, DRAIN_S, TimeUnit.SECONDS)) {
+			window.release(inflight);
+		}
+	}
+
+	/*****************************
+	 * Close the connections and end the TaskThread.
+	 */
+	void close() throws InterruptedException {
+		dispatcher.sendCommand(DispatchWork.CM_CANCEL, 0, 0, null);
+		dispatcher.quit();
+		dispatcher.join(5000);
+	}
+
+	/*****************************
+	 * Run the benchmark and print its results.
+	 * @param args options as name=value, see the class description
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadOptions	opt	= new LoadOptions(args);
+		String	mode	= opt.get("mode", "evt");
+		int 	inflight	= opt.getInt("inflight", 64);
+		int 	requests	= opt.getInt("requests", 200000);
+		LoadServer	srv 	= new LoadServer(0, opt.getInt("delay", 0), 0, 0, 0, 64);
+		DispatchWork.bSelectorLoop	= "sel".equals(mode);
+		DispatchWork.bEventLoop 	= "evt".equals(mode);
+		DispatchWork.poolSize   	= opt.getInt("connections", 4);
+		DispatchWork.maxPending 	= Math.max(DispatchWork.maxPending, 2 * inflight);
+		HeadlessBenchmark	bench	= new HeadlessBenchmark(inflight, opt.getInt("size", 64));
+		DispatchWork.server_IP	= "127.0.0.1:"+srv.getPort();
+		if (!bench.connect()) {
+			System.out.println("not connected");
+			bench.close();
+			srv.close();
+			System.exit(1);
+		}
+		bench.run(opt.getInt("warmup", 20000), false);
+		DispatchWork.metrics().reset();
+		long	start	= System.nanoTime();
+		bench.run(requests, true);
+		long	ns  	= System.nanoTime() - start;
+		LatencyHistogram	h	= bench.latency;
+		System.out.println("mode "+mode+", "+DispatchWork.poolSize+" connections, "+inflight+" in flight");
+		System.out.println("throughput: "+requests * 1000000000L / Math.max(1, ns)+" requests/s, failed "+bench.nFailed.get());
+		System.out.println("latency us: count "+h.count()+" mean "+h.mean() / 1000
+				+" p50 "+h.percentile(50) / 1000+" p99 "+h.percentile(99) / 1000
+				+" p999 "+h.percentile(99.9) / 1000+" max "+h.max() / 1000);
+		System.out.println(DispatchWork.metrics().dump());
+		bench.close();
+		System.out.println("server "+srv.stats());
+		srv.close();
+	}
+
+}
@@ -0,0 +1,322 @@
+package com.hifly.messageloop;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * <h1>the LoadGenerator class</h1>
+ * End-to-end load test over localhost: a number of connections send requests at a fixed
+ * total rate to the LoadServer, or to another server that returns the frames, and the
+ * round trip of every request is recorded in a LatencyHistogram.
+ * <br>
+ * The connections use the wire path of SrvConnect in the DispatchWork.bEventLoop mode:
+ * frames encoded by FrameCodec into BufferPool buffers, an OutboundQueue per connection
+ * written with gathering writes, and one Selector thread for all connections, which reads
+ * the replies into a pooled buffer and splits them with FrameCodec.
+ * <br>
+ * The load is open-loop: request i of a connection is due at start + i * interval, and its
+ * latency is measured from that time, so a stall of the client or the server shows in the
+ * percentiles instead of lowering the rate. A request that does not fit in the outbound
+ * queue is counted as refused. Requests not answered by the end of the drain time are
+ * counted as lost, e.g. those dropped by the LoadServer.
+ * <br>
+ * Options as name=value:
+ * <ul><li>
+ * server=host:port, or none to start a LoadServer with the options delay, jitter, drop,
+ * push and pushSize;
+ * </li><li>
+ * connections (10), rate in requests per second for all connections (10000),
+ * duration (10) and warmup (2) in seconds;
+ * </li><li>
+ * sizes: payload sizes in bytes with their weights, e.g. 16:70,1024:25,16384:5 (64).
+ * </li></ul>
+ * Prints the requests per second of every second, and at the end the throughput and the
+ * latency count, mean, p50, p99, p999 and max in microseconds.
+ */
+public class LoadGenerator {
+	private static final int	SLOTS = 1 << 16;	// requests in flight per connection
+	private static final int	QUEUE_BYTES = 1024 * 1024;
+	private static final long	DRAIN_NS = 2000000000L;
+
+	/**
+	 * a client connection with its requests in flight
+	 */
+	private static class Client {
+		final SocketChannel	ch;
+		final OutboundQueue	queue = new OutboundQueue(0, BufferPool.MAX_SIZE, QUEUE_BYTES);
+		final ByteBuffer	readBuf = BufferPool.acquire(BufferPool.MAX_SIZE);
+		final long[]	    sentAt = new long[SLOTS];	// due time of a request, 0 if none
+		long	    	    nextSend;
+		int 	    	    lastId = 0;
+
+		Client(SocketChannel ch, long firstSend) {
+			this.ch 	= ch;
+			this.nextSend	= firstSend;
+		}
+	}
+
+	private final Client[]  	clients;
+	private final Selector  	selector;
+	private final long  	    	intervalNs;		// between the requests of a connection
+	private final int[] 	    	sizes;
+	private final int[] 	    	weights;		// cumulative
+	private final byte[]	    	payload;
+	private final Random	    	random = new Random(1);
+	private final LatencyHistogram	latency = new LatencyHistogram();
+	private final LatencyHistogram	second = new LatencyHistogram();
+	private long	    	    	measureStart;
+	private long	    	    	nSent = 0, nReceived = 0, nRefused = 0, nPushes = 0, bytesSent = 0;
+
+	/*****************************
+	 * <h1>LoadGenerator constructor</h1>
+	 * Open the connections.
+	 * @param address server address
+	 * @param connections number of connections
+	 * @param rate requests per second over all connections
+	 * @param sizeSpec payload sizes with their weights, as size:weight,...
+	 * @throws IOException if a connection cannot be opened
+	 */
+	LoadGenerator(InetSocketAddress address, int connections, int rate, String sizeSpec) throws IOException {
+		String[]	parts	= sizeSpec.split(",");
+		sizes   	= new int[parts.length];
+		weights 	= new int[parts.length];
+		int 	max	= 0, sum	= 0;
+		for (int i = 0; i < parts.length; i++) {
+			String[]	sw	= parts[i].split(":");
+			sizes[i]	= Integer.parseInt(sw[0].trim());
+			sum 	+= (sw.length > 1)? Integer.parseInt(sw[1].trim()): 1;
+			weights[i]	= sum;
+			max 	= Math.max(max, sizes[i]);
+		}
+		if (max > BufferPool.MAX_SIZE - FrameCodec.HEADER_LEN) {
+			throw new IllegalArgumentException("size too large: "+max);
+		}
+		payload 	= new byte[max];
+		random.nextBytes(payload);
+		intervalNs	= 1000000000L * connections / Math.max(1, rate);
+		selector	= Selector.open();
+		clients 	= new Client[connections];
+		long	now 	= System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			SocketChannel	ch	= SocketChannel.open(address);
+			ch.socket().setTcpNoDelay(true);
+			ch.configureBlocking(false);
+			// spread the first requests of the connections over one interval
+			clients[i]	= new Client(ch, now + intervalNs * i / connections);
+			ch.register(selector, SelectionKey.OP_READ, clients[i]);
+		}
+	}
+
+	/*****************************
+	 * Send the load for the warmup and the measured time, and wait for the last replies.
+	 * @param warmupNs time before the measurement starts
+	 * @param durationNs measured time
+	 * @throws IOException if a connection fails
+	 */
+	void run(long warmupNs, long durationNs) throws IOException {
+		long	start	= System.nanoTime();
+		measureStart	= start + warmupNs;
+		long	end 	= measureStart + durationNs;
+		long	nextReport	= measureStart + 1000000000L;
+		long	lastReceived	= 0;
+		while (true) {
+			long	now 	= System.nanoTime();
+			if (now >= end) {
+				break;
+			}
+			long	wait	= end - now;
+			for (Client c : clients) {
+				while (c.nextSend <= now) {
+					send(c, c.nextSend);
+					c.nextSend	+= intervalNs;
+				}
+				if (!c.queue.isEmpty() && !c.queue.flush(c.ch)) {
+					c.ch.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				wait	= Math.min(wait, c.nextSend - now);
+			}
+			poll(wait);
+			if (now >= nextReport) {
+				System.out.println("second "+(now - measureStart) / 1000000000L+": "
+						+(nReceived - lastReceived)+" replies, p99 "+second.percentile(99) / 1000+" us");
+				lastReceived	= nReceived;
+				second.reset();
+				nextReport	+= 1000000000L;
+			}
+		}
+		// drain the replies in flight
+		long	drainEnd	= System.nanoTime() + DRAIN_NS;
+		while (nReceived < nSent && System.nanoTime() < drainEnd) {
+			for (Client c : clients) {
+				if (!c.queue.isEmpty()) {
+					c.queue.flush(c.ch);
+				}
+			}
+			poll(1000000L);
+		}
+	}
+
+	/*****************************
+	 * queue a request that is due at a given time
+	 */
+	private void send(Client c, long due) {
+		int 	size	= nextSize();
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + size);
+		int 	id	= c.lastId	= (c.lastId + 1) & Integer.MAX_VALUE;
+		if (FrameCodec.ID_NONE == id) {
+			id	= c.lastId	= 1;
+		}
+		FrameCodec.encode(frame, id, payload, 0, size);
+		frame.flip();
+		if (!c.queue.offer(frame)) {
+			BufferPool.release(frame);
+			if (due >= measureStart) {
+				nRefused++;
+			}
+			return;
+		}
+		c.sentAt[id & (SLOTS - 1)]	= due;
+		if (due >= measureStart) {
+			nSent++;
+			bytesSent	+= size;
+		}
+	}
+
+	/*****************************
+	 * pick a payload size by the weights
+	 */
+	private int nextSize() {
+		if (1 == sizes.length) {
+			return sizes[0];
+		}
+		int 	r	= random.nextInt(weights[weights.length - 1]);
+		int 	i	= 0;
+		while (r >= weights[i]) {
+			i++;
+		}
+		return sizes[i];
+	}
+
+	/*****************************
+	 * wait up to a time for the sockets, and handle the replies and writes
+	 */
+	private void poll(long waitNs) throws IOException {
+		if (waitNs < 1000000L) {
+			selector.selectNow();
+		} else {
+			selector.select(waitNs / 1000000L);
+		}
+		Iterator<SelectionKey>	it	= selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey	key	= it.next();
+			it.remove();
+			Client	c	= (Client) key.attachment();
+			if (key.isWritable() && c.queue.flush(c.ch)) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			if (key.isReadable()) {
+				read(c);
+			}
+		}
+	}
+
+	/*****************************
+	 * read the replies of a connection and record their latency
+	 */
+	private void read(Client c) throws IOException {
+		if (c.ch.read(c.readBuf) < 0) {
+			throw new EOFException("connection closed by the server");
+		}
+		long	now 	= System.nanoTime();
+		c.readBuf.flip();
+		int 	len;
+		while ((len = FrameCodec.nextFrame(c.readBuf)) >= 0) {
+			int 	id	= FrameCodec.frameId(c.readBuf);
+			c.readBuf.position(c.readBuf.position() + len);
+			if (FrameCodec.ID_NONE == id) {
+				nPushes++;
+				continue;
+			}
+			int 	slot	= id & (SLOTS - 1);
+			long	due 	= c.sentAt[slot];
+			c.sentAt[slot]	= 0;
+			if (0 == due || due < measureStart) {
+				continue;
+			}
+			nReceived++;
+			latency.record(now - due);
+			second.record(now - due);
+		}
+		c.readBuf.compact();
+	}
+
+	/*****************************
+	 * Get the results.
+	 * @param durationNs measured time
+	 * @return throughput, losses and latency percentiles
+	 */
+	String report(long durationNs) {
+		double	seconds	= durationNs / 1e9;
+		StringBuilder	sb	= new StringBuilder(256);
+		sb.append("connections ").append(clients.length)
+			.append(" sent ").append(nSent)
+			.append(" received ").append(nReceived)
+			.append(" lost ").append(nSent - nReceived)
+			.append(" refused ").append(nRefused)
+			.append(" pushes ").append(nPushes).append('\n');
+		sb.append(String.format("throughput %.0f req/s %.2f MB/s%n", nReceived / seconds,
+				bytesSent / seconds / (1024 * 1024)));
+		sb.append("latency_us ");
+		latency.appendTo(sb);
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	/*****************************
+	 * close the connections
+	 */
+	void close() throws IOException {
+		for (Client c : clients) {
+			c.ch.close();
+			c.queue.clear();
+			BufferPool.release(c.readBuf);
+		}
+		selector.close();
+	}
+
+	/*****************************
+	 * Run a load test and print its results.
+	 * @param args options as name=value, see the class description
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadOptions	opt	= new LoadOptions(args);
+		LoadServer	srv	= null;
+		InetSocketAddress	address;
+		String	server	= opt.get("server", null);
+		if (null == server) {
+			srv 	= new LoadServer(0, opt.getInt("delay", 0), opt.getInt("jitter", 0),
+					opt.getDouble("drop", 0), opt.getInt("push", 0), opt.getInt("pushSize", 64));
+			address	= new InetSocketAddress("127.0.0.1", srv.getPort());
+		} else {
+			int 	i	= server.lastIndexOf(':');
+			address	= new InetSocketAddress(server.substring(0, i), Integer.parseInt(server.substring(i + 1)));
+		}
+		long	durationNs	= opt.getInt("duration", 10) * 1000000000L;
+		LoadGenerator	gen	= new LoadGenerator(address, opt.getInt("connections", 10),
+				opt.getInt("rate", 10000), opt.get("sizes", "64"));
+		gen.run(opt.getInt("warmup", 2) * 1000000000L, durationNs);
+		System.out.print(gen.report(durationNs));
+		gen.close();
+		if (null != srv) {
+			System.out.println("server "+srv.stats());
+			srv.close();
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.hifly.messageloop;
+import java.util.HashMap;
+
+/**
+ * <h1>the LoadOptions class</h1>
+ * The name=value options of the command line of the LoadServer and the LoadGenerator.
+ */
+class LoadOptions {
+	private final HashMap<String, String>	values = new HashMap<String, String>();
+
+	/*****************************
+	 * <h1>LoadOptions constructor</h1>
+	 * @param args command line arguments as name=value
+	 * @throws IllegalArgumentException if an argument is not name=value
+	 */
+	LoadOptions(String[] args) {
+		for (String arg : args) {
+			int 	i	= arg.indexOf('=');
+			if (i <= 0) {
+				throw new IllegalArgumentException("option is not name=value: "+arg);
+			}
+			values.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+	}
+
+	String get(String name, String dflt) {
+		String	v	= values.get(name);
+		return (null == v)? dflt: v;
+	}
+
+	int getInt(String name, int dflt) {
+		String	v	= values.get(name);
+		return (null == v)? dflt: Integer.parseInt(v);
+	}
+
+	double getDouble(String name, double dflt) {
+		String	v	= values.get(name);
+		return (null == v)? dflt: Double.parseDouble(v);
+	}
+
+}
@@ -0,0 +1,410 @@
+package com.hifly.messageloop;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * <h1>the LoadServer class</h1>
+ * Stand-in for the server of the app, for load tests on localhost, and for the emulator,
+ * which reaches it as DispatchWork.SERVERIP on port 5000.
+ * <br>
+ * A single thread with a java.nio Selector returns every frame it reads to the sender,
+ * unchanged, like the server does: a request comes back with its correlation id, the
+ * HELLO with the capabilities offered, an Outbox record as its acknowledgement and a
+ * ping as its pong, see FrameCodec. Unlike the EchoServer it reads whole frames, so it
+ * can also:
+ * <ul><li>
+ * push: send a frame with ID_NONE to every connection at a fixed interval, or an ID_TOPIC
+ * frame for each topic the connection subscribed to with ID_SUBSCRIBE;
+ * </li><li>
+ * delay: hold every frame back for a fixed time plus a random jitter, as a slow network
+ * or server would;
+ * </li><li>
+ * drop: not return a share of the frames, as a lost message; the HELLO is never dropped.
+ * </li></ul>
+ * The frames of a connection are returned in the order they were read. While more than
+ * MAX_QUEUED bytes wait to be written to a connection, the server stops reading from it.
+ * <br>
+ * Run it standalone with: java com.hifly.messageloop.LoadServer [port=5000] [delay=ms]
+ * [jitter=ms] [drop=fraction] [push=ms] [pushSize=bytes]
+ */
+public class LoadServer implements Runnable, Closeable {
+	private static final int	BUFLEN = BufferPool.MAX_SIZE;
+	private static final int	MAX_QUEUED = 4 * 1024 * 1024;
+	private final ServerSocketChannel	server;
+	private final Selector      	selector;
+	private final Thread	    	thread;
+	private final Random 	    	random = new Random();
+	private final long  	    	delayNs, jitterNs, pushNs;
+	private final double	    	dropRate;
+	private final byte[]	    	pushPayload;
+	private volatile boolean    	bRunning = true;
+	private long	    	    	nextPush;
+	private long	    	    	nRead = 0, nDropped = 0, nPushed = 0;
+
+	/**
+	 * a frame to return, with the time it is due
+	 */
+	private static class Pending {
+		final ByteBuffer	frame;
+		final long  	    due;
+
+		Pending(ByteBuffer frame, long due) {
+			this.frame	= frame;
+			this.due	= due;
+		}
+	}
+
+	/**
+	 * a connection with its read buffer and its frames to return
+	 */
+	private static class Conn {
+		final ByteBuffer	readBuf = ByteBuffer.allocateDirect(BUFLEN).order(ByteOrder.LITTLE_ENDIAN);
+		final ArrayDeque<Pending>	out = new ArrayDeque<Pending>();
+		final ArrayList<byte[]>	topics = new ArrayList<byte[]>();	// UTF-8 names subscribed to
+		long	    	queued = 0;			// bytes in out
+	}
+
+	/*****************************
+	 * <h1>LoadServer constructor</h1>
+	 * Bind the server socket and start the server thread.
+	 * @param port port to listen on, 0 for any free port
+	 * @param delayMs time each frame is held back, in milliseconds
+	 * @param jitterMs largest random time added to the delay, in milliseconds
+	 * @param dropRate share of the frames that are not returned, 0 to 1
+	 * @param pushMs interval of the push frames in milliseconds, 0 for none
+	 * @param pushSize payload size of a push frame in bytes
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public LoadServer(int port, int delayMs, int jitterMs, double dropRate, int pushMs, int pushSize)
+			throws IOException {
+		this.delayNs	= delayMs * 1000000L;
+		this.jitterNs	= jitterMs * 1000000L;
+		this.dropRate	= dropRate;
+		this.pushNs 	= pushMs * 1000000L;
+		this.pushPayload	= new byte[pushSize];
+		server  	= ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+		server.configureBlocking(false);
+		selector	= Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		nextPush	= System.nanoTime() + pushNs;
+		thread  	= new Thread(this, "LoadServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*****************************
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/*****************************
+	 * @return "read n dropped n pushed n": the frames read, those not returned, and the
+	 * push frames sent
+	 */
+	public synchronized String stats() {
+		return "read "+nRead+" dropped "+nDropped+" pushed "+nPushed;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (bRunning) {
+				long	now 	= System.nanoTime();
+				if (pushNs > 0 && now >= nextPush) {
+					push(now);
+					nextPush	+= pushNs;
+				}
+				long	wait	= flushAll(now);
+				if (pushNs > 0) {
+					wait	= earliest(wait, nextPush - now);
+				}
+				if (wait < 0) {
+					selector.select();
+				} else {
+					selector.select(Math.max(1, wait / 1000000L));
+				}
+				Iterator<SelectionKey>	it	= selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey	key	= it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					if (key.isReadable()) {
+						read(key);
+					}
+					if (key.isValid() && key.isWritable()) {
+						flush(key, System.nanoTime());
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (bRunning) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*****************************
+	 * combine two waits in nanoseconds, -1 being no limit
+	 */
+	private static long earliest(long a, long b) {
+		if (a < 0) {
+			return Math.max(0, b);
+		}
+		return Math.max(0, Math.min(a, b));
+	}
+
+	/*****************************
+	 * accept a connection and register it for reading
+	 */
+	private void accept() throws IOException {
+		SocketChannel	ch	= server.accept();
+		if (null == ch) {
+			return;
+		}
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		ch.register(selector, SelectionKey.OP_READ, new Conn());
+	}
+
+	/*****************************
+	 * read what is available and queue the complete frames to be returned
+	 */
+	private void read(SelectionKey key) {
+		SocketChannel	ch	= (SocketChannel) key.channel();
+		Conn	c	= (Conn) key.attachment();
+		try {
+			if (ch.read(c.readBuf) < 0) {
+				close(key);
+				return;
+			}
+			long	now 	= System.nanoTime();
+			c.readBuf.flip();
+			int 	start	= c.readBuf.position();
+			int 	len;
+			while ((len = FrameCodec.nextFrame(c.readBuf)) >= 0) {
+				int 	id	= FrameCodec.frameId(c.readBuf);
+				if (FrameCodec.ID_SUBSCRIBE == id && len > 1) {
+					subscribe(c, c.readBuf, len);
+				}
+				c.readBuf.position(c.readBuf.position() + len);
+				synchronized (this) {
+					nRead++;
+					if (FrameCodec.ID_HELLO != id && dropRate > 0 && random.nextDouble() < dropRate) {
+						nDropped++;
+						start	= c.readBuf.position();
+						continue;
+					}
+				}
+				ByteBuffer	frame	= ByteBuffer.allocate(FrameCodec.HEADER_LEN + len);
+				int 	limit	= c.readBuf.limit();
+				c.readBuf.limit(c.readBuf.position()).position(start);
+				frame.put(c.readBuf).flip();
+				c.readBuf.limit(limit);
+				start	= c.readBuf.position();
+				queue(c, frame, now);
+			}
+			c.readBuf.compact();
+		} catch (ProtocolException e) {
+			e.printStackTrace();
+			close(key);
+		} catch (IOException e) {
+			close(key);
+		}
+	}
+
+	/*****************************
+	 * add or remove a topic of a connection, from the payload of an ID_SUBSCRIBE frame
+	 */
+	private static void subscribe(Conn c, ByteBuffer src, int len) {
+		byte[]	name	= new byte[len - 1];
+		int 	pos 	= src.position();
+		boolean	bOn 	= 0 != src.get(pos);
+		for (int i = 0; i < name.length; i++) {
+			name[i]	= src.get(pos + 1 + i);
+		}
+		for (int i = 0; i < c.topics.size(); i++) {
+			if (Arrays.equals(name, c.topics.get(i))) {
+				if (!bOn) {
+					c.topics.remove(i);
+				}
+				return;
+			}
+		}
+		if (bOn) {
+			c.topics.add(name);
+		}
+	}
+
+	/*****************************
+	 * queue a frame to be returned after the delay, keeping the order of the frames
+	 */
+	private void queue(Conn c, ByteBuffer frame, long now) {
+		long	due 	= now + delayNs;
+		if (jitterNs > 0) {
+			due 	+= (long) (random.nextDouble() * jitterNs);
+		}
+		Pending	last	= c.out.peekLast();
+		if (null != last && last.due > due) {
+			due 	= last.due;
+		}
+		c.out.add(new Pending(frame, due));
+		c.queued	+= frame.remaining();
+	}
+
+	/*****************************
+	 * queue a push frame for every connection, or for every topic of a connection
+	 */
+	private void push(long now) {
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid() || !(key.attachment() instanceof Conn)) {
+				continue;
+			}
+			Conn	c	= (Conn) key.attachment();
+			if (c.topics.isEmpty()) {
+				ByteBuffer	frame	= ByteBuffer.allocate(FrameCodec.HEADER_LEN + pushPayload.length)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				FrameCodec.encode(frame, FrameCodec.ID_NONE, pushPayload, 0, pushPayload.length);
+				frame.flip();
+				queue(c, frame, now);
+				synchronized (this) {
+					nPushed++;
+				}
+				continue;
+			}
+			for (byte[] topic : c.topics) {
+				int 	len 	= 2 + topic.length + pushPayload.length;
+				ByteBuffer	frame	= ByteBuffer.allocate(FrameCodec.HEADER_LEN + len)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				frame.putInt(len).putInt(FrameCodec.ID_TOPIC)
+					.putShort((short) topic.length).put(topic).put(pushPayload).flip();
+				queue(c, frame, now);
+				synchronized (this) {
+					nPushed++;
+				}
+			}
+		}
+	}
+
+	/*****************************
+	 * Write the due frames of all connections.
+	 * @return nanoseconds until the next frame is due, or -1 if none is waiting
+	 */
+	private long flushAll(long now) {
+		long	wait	= -1;
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid() || !(key.attachment() instanceof Conn)) {
+				continue;
+			}
+			long	w	= flush(key, now);
+			if (w >= 0) {
+				wait	= (wait < 0)? w: Math.min(wait, w);
+			}
+		}
+		return wait;
+	}
+
+	/*****************************
+	 * Write the due frames of a connection, and set its interest: no reads while too much
+	 * is queued, and write readiness while due frames are left.
+	 * @return nanoseconds until the next frame is due, 0 if the socket is full, or -1 if
+	 * none is waiting
+	 */
+	private long flush(SelectionKey key, long now) {
+		SocketChannel	ch	= (SocketChannel) key.channel();
+		Conn	c	= (Conn) key.attachment();
+		long	wait	= -1;
+		boolean	bFull	= false;
+		try {
+			Pending	p;
+			while (null != (p = c.out.peek())) {
+				if (p.due > now) {
+					wait	= p.due - now;
+					break;
+				}
+				c.queued	-= ch.write(p.frame);
+				if (p.frame.hasRemaining()) {
+					bFull	= true;
+					break;
+				}
+				c.out.poll();
+			}
+			key.interestOps(((c.queued < MAX_QUEUED)? SelectionKey.OP_READ: 0)
+					| (bFull? SelectionKey.OP_WRITE: 0));
+		} catch (IOException e) {
+			close(key);
+			return -1;
+		}
+		return bFull? -1: wait;
+	}
+
+	/*****************************
+	 * close a connection that ended or failed
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*****************************
+	 * stop the server thread and close all connections
+	 */
+	@Override
+	public void close() throws IOException {
+		bRunning	= false;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+		server.close();
+	}
+
+	/*****************************
+	 * Run the server until the process is stopped.
+	 * @param args options as name=value: port, delay, jitter, drop, push, pushSize
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadOptions	opt	= new LoadOptions(args);
+		LoadServer	srv	= new LoadServer(opt.getInt("port", 5000), opt.getInt("delay", 0),
+				opt.getInt("jitter", 0), opt.getDouble("drop", 0), opt.getInt("push", 0),
+				opt.getInt("pushSize", 64));
+		System.out.println("LoadServer on 127.0.0.1:"+srv.getPort());
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println(srv.stats());
+		}
+	}
+
+}
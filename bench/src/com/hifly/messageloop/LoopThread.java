@@ -0,0 +1,51 @@
+package com.hifly.messageloop;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <h1>the LoopThread class</h1>
+ * JVM stand-in for an android.os.Looper thread in the benchmarks: a thread that runs
+ * the Runnables posted to its queue one by one, like a Handler posts to its Looper.
+ */
+public class LoopThread extends Thread {
+	private final LinkedBlockingQueue<Runnable>	queue = new LinkedBlockingQueue<Runnable>();
+	private volatile boolean    	bRunning = true;
+
+	/*****************************
+	 * <h1>LoopThread constructor</h1>
+	 * Create and start the thread.
+	 * @param name thread name
+	 */
+	public LoopThread(String name) {
+		super(name);
+		setDaemon(true);
+		start();
+	}
+
+	/*****************************
+	 * queue a Runnable to be run on this thread
+	 * @param r the Runnable
+	 */
+	public void post(Runnable r) {
+		queue.add(r);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (bRunning) {
+				queue.take().run();
+			}
+		} catch (InterruptedException e) {
+			// quit
+		}
+	}
+
+	/*****************************
+	 * stop the thread
+	 */
+	public void quit() {
+		bRunning	= false;
+		interrupt();
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.hifly.messageloop;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <h1>the RoundTripBenchmark class</h1>
+ * Round trips of framed records over a loopback connection to the EchoServer, using the
+ * wire path of SrvConnect: frames in BufferPool buffers, written by an OutboundQueue with
+ * gathering writes, and read back and split with FrameCodec.
+ * <ul><li>
+ * single: one record is written and its reply read before the next (stop-and-wait);
+ * </li><li>
+ * pipelined: DEPTH records are written before the replies are read.
+ * </li></ul>
+ * Run in SampleTime mode for latency percentiles per record, in Throughput mode for records
+ * per second, and with the gc profiler (-prof gc) for the allocation per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+	/**
+	 * number of records in flight in the pipelined benchmark
+	 */
+	public static final int 	DEPTH = 16;
+
+	/**
+	 * payload size in bytes; the largest size fills a 64K frame
+	 */
+	@Param({"16", "256", "4096", "65528"})
+	public int	size;
+
+	private EchoServer  	server;
+	private SocketChannel	ch;
+	private OutboundQueue	queue;
+	private ByteBuffer  	readBuf;
+	private byte[]  	    payload;
+	private int 	    	id = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		server	= new EchoServer(0);
+		ch  	= SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+		ch.socket().setTcpNoDelay(true);
+		ch.configureBlocking(false);
+		queue	= new OutboundQueue(0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		readBuf	= BufferPool.acquire(BufferPool.MAX_SIZE);
+		payload	= new byte[size];
+		Arrays.fill(payload, (byte) 'x');
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		ch.close();
+		server.close();
+	}
+
+	@Benchmark
+	public int single() throws IOException {
+		return roundTrip(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DEPTH)
+	public int pipelined() throws IOException {
+		return roundTrip(DEPTH);
+	}
+
+	/*****************************
+	 * write n records and wait until their n replies are read
+	 * @return number of replies
+	 */
+	private int roundTrip(int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + size);
+			FrameCodec.encode(frame, ++id, payload, 0, size);
+			frame.flip();
+			queue.offer(frame);
+		}
+		int 	nReplies	= 0;
+		while (nReplies < n) {
+			// interleave writes and reads, so large pipelines cannot deadlock
+			if (!queue.isEmpty()) {
+				queue.flush(ch);
+			}
+			if (ch.read(readBuf) < 0) {
+				throw new EOFException();
+			}
+			readBuf.flip();
+			int len;
+			while ((len = FrameCodec.nextFrame(readBuf)) >= 0) {
+				readBuf.position(readBuf.position() + len);
+				nReplies++;
+			}
+			readBuf.compact();
+		}
+		return nReplies;
+	}
+
+}
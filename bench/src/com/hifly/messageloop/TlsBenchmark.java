@@ -0,0 +1,173 @@
+package com.hifly.messageloop;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <h1>the TlsBenchmark class</h1>
+ * The cost of TLS per record and per connection, over loopback:
+ * <ul><li>
+ * roundTrip: one framed record written by an OutboundQueue and read back, over a plain
+ * connection to the EchoServer or through a TlsChannel to the TlsEchoServer;
+ * </li><li>
+ * fullHandshake: a new connection with a full TLS handshake;
+ * </li><li>
+ * resumedHandshake: a new connection that resumes the session of an earlier one, as
+ * SrvConnect does on a reconnect.
+ * </li></ul>
+ * A new connection also does one round trip, which reads the session ticket that a TLS 1.3
+ * server sends after the handshake: the next connection resumes with it.
+ * Needs the key store of the TlsEchoServer, see the README.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+
+	/**
+	 * payload size in bytes
+	 */
+	@Param({"16", "4096"})
+	public int	size;
+
+	/**
+	 * <b>true</b> for a TLS connection, <b>false</b> for a plain one
+	 */
+	@Param({"false", "true"})
+	public boolean	tls;
+
+	private Closeable   	server;
+	private int 	    	port;
+	private SSLContext  	context;
+	private SocketChannel	socket;
+	private ByteChannel 	ch;
+	private OutboundQueue	queue;
+	private ByteBuffer  	readBuf;
+	private byte[]  	    payload;
+	private int 	    	id = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		if (tls) {
+			TlsEchoServer	s	= new TlsEchoServer(0);
+			port	= s.getPort();
+			server	= s;
+			context	= TlsEchoServer.context(false);
+		} else {
+			EchoServer	s	= new EchoServer(0);
+			port	= s.getPort();
+			server	= s;
+		}
+		socket	= SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+		socket.socket().setTcpNoDelay(true);
+		if (tls) {
+			TlsChannel	t	= connect(socket, context.createSSLEngine("127.0.0.1", port));
+			ch  	= t;
+		} else {
+			ch  	= socket;
+		}
+		queue	= new OutboundQueue(0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		readBuf	= BufferPool.acquire(BufferPool.MAX_SIZE);
+		payload	= new byte[size];
+		Arrays.fill(payload, (byte) 'x');
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		ch.close();
+		server.close();
+	}
+
+	/*****************************
+	 * handshake a new TLS channel on a blocking socket
+	 */
+	private static TlsChannel connect(SocketChannel socket, SSLEngine engine) throws IOException {
+		engine.setUseClientMode(true);
+		TlsChannel	t	= new TlsChannel(socket, engine);
+		t.handshake();
+		return t;
+	}
+
+	@Benchmark
+	public int roundTrip() throws IOException {
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + size);
+		FrameCodec.encode(frame, ++id, payload, 0, size);
+		frame.flip();
+		queue.offer(frame);
+		queue.flush((GatheringByteChannel) ch);
+		while (true) {
+			if (ch.read(readBuf) < 0) {
+				throw new EOFException();
+			}
+			readBuf.flip();
+			int 	len	= FrameCodec.nextFrame(readBuf);
+			if (len >= 0) {
+				readBuf.position(readBuf.position() + len);
+				readBuf.compact();
+				return len;
+			}
+			readBuf.compact();
+		}
+	}
+
+	@Benchmark
+	public boolean fullHandshake() throws IOException {
+		// an engine without peer host and port does not resume a session
+		return handshake(null == context? null: context.createSSLEngine());
+	}
+
+	@Benchmark
+	public boolean resumedHandshake() throws IOException {
+		return handshake(null == context? null: context.createSSLEngine("127.0.0.1", port));
+	}
+
+	/*****************************
+	 * open a connection, do the handshake and a round trip, and close it; nothing to do
+	 * without TLS
+	 */
+	private boolean handshake(SSLEngine engine) throws IOException {
+		if (null == engine) {
+			return false;
+		}
+		SocketChannel	s	= SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+		s.socket().setTcpNoDelay(true);
+		TlsChannel  	t	= connect(s, engine);
+		ByteChannel 	main	= ch;
+		ch  	= t;
+		try {
+			roundTrip();
+		} finally {
+			ch  	= main;
+			t.close();
+			t.release();
+		}
+		return t.isHandshakeDone();
+	}
+
+}
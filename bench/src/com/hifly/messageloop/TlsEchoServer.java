@@ -0,0 +1,140 @@
+package com.hifly.messageloop;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * <h1>the TlsEchoServer class</h1>
+ * Loopback stand-in for a TLS server, like the EchoServer, with a thread per connection
+ * on an SSLServerSocket.
+ * <br>
+ * The key and the self-signed certificate of the server are read from a PKCS12 key store,
+ * given by the system properties tls.keystore and tls.password, see the README. The
+ * client trusts the certificate of the same key store.
+ */
+public class TlsEchoServer implements Runnable, Closeable {
+	private static final int	BUFLEN = 64 * 1024;
+	private final SSLServerSocket	server;
+	private final Thread	    	thread;
+	private volatile boolean    	bRunning = true;
+
+	/*****************************
+	 * <h1>TlsEchoServer constructor</h1>
+	 * Bind the server socket and start the accepting thread.
+	 * @param port port to listen on, 0 for any free port
+	 * @throws IOException if the server socket cannot be bound or the key store read
+	 */
+	public TlsEchoServer(int port) throws IOException {
+		server  	= (SSLServerSocket) context(true).getServerSocketFactory()
+				.createServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		thread  	= new Thread(this, "TlsEchoServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*****************************
+	 * Get an SSL context with the key store of the system property tls.keystore.
+	 * @param bServer <b>true</b> for the server, with its key; <b>false</b> for a client,
+	 * which trusts the certificate of the server
+	 * @return the context
+	 * @throws IOException if the key store cannot be read
+	 */
+	public static SSLContext context(boolean bServer) throws IOException {
+		char[]	password	= System.getProperty("tls.password", "changeit").toCharArray();
+		try {
+			KeyStore	ks	= KeyStore.getInstance("PKCS12");
+			InputStream	in	= new FileInputStream(System.getProperty("tls.keystore", "bench/echo.p12"));
+			try {
+				ks.load(in, password);
+			} finally {
+				in.close();
+			}
+			SSLContext	ctx	= SSLContext.getInstance("TLS");
+			if (bServer) {
+				KeyManagerFactory	kmf	= KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				kmf.init(ks, password);
+				ctx.init(kmf.getKeyManagers(), null, null);
+			} else {
+				TrustManagerFactory	tmf	= TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				tmf.init(ks);
+				ctx.init(null, tmf.getTrustManagers(), null);
+			}
+			return ctx;
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/*****************************
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (bRunning) {
+				final Socket	s	= server.accept();
+				s.setTcpNoDelay(true);
+				Thread	t	= new Thread(new Runnable() {
+					@Override
+					public void run() {
+						echo(s);
+					}
+				}, "TlsEcho");
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch (IOException e) {
+			if (bRunning) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*****************************
+	 * write every byte read back to the sender, until the connection is closed
+	 */
+	private void echo(Socket s) {
+		byte[]	buf	= new byte[BUFLEN];
+		try {
+			InputStream 	in	= s.getInputStream();
+			OutputStream	out	= s.getOutputStream();
+			int 	n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+		} catch (IOException e) {
+			// closed by the client
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*****************************
+	 * stop accepting connections
+	 */
+	@Override
+	public void close() throws IOException {
+		bRunning	= false;
+		server.close();
+	}
+
+}
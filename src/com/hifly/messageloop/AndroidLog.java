@@ -0,0 +1,15 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the AndroidLog class</h1>
+ * The Log.Sink of the Android platform: android.util.Log, called directly.
+ * Left out of a build for a JVM, see Log.
+ */
+final class AndroidLog implements Log.Sink {
+
+	@Override
+	public void i(String tag, String msg) {
+		android.util.Log.i(tag, msg);
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.hifly.messageloop;
+import java.util.Random;
+
+/**
+ * <h1>the Backoff class</h1>
+ * Exponential backoff with jitter for reconnect attempts.
+ * <br>
+ * The delay cap doubles with every failed attempt, from the base delay up to the
+ * maximum delay. The delay returned is randomly chosen in the upper half of the cap,
+ * so connections that dropped at the same time do not all retry at the same moment.
+ */
+public class Backoff {
+	private static final Random	random = new Random();
+	private final int   	    	baseDelay, maxDelay;
+	private int 	    	    	attempt = 0;
+
+	/*****************************
+	 * <h1>Backoff constructor</h1>
+	 * @param baseDelay delay cap of the first retry in milliseconds
+	 * @param maxDelay largest delay cap in milliseconds
+	 */
+	Backoff(int baseDelay, int maxDelay) {
+		this.baseDelay	= baseDelay;
+		this.maxDelay	= maxDelay;
+	}
+
+	/*****************************
+	 * Get the delay before the next attempt, and count the attempt.
+	 * @return delay in milliseconds
+	 */
+	long nextDelay() {
+		long	cap	= Math.min(maxDelay, (long) baseDelay << Math.min(attempt, 20));
+		attempt++;
+		return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+	}
+
+	/*****************************
+	 * @return number of attempts since the last reset
+	 */
+	int getAttempts() {
+		return attempt;
+	}
+
+	/*****************************
+	 * Start again with the base delay, after a successful attempt.
+	 */
+	void reset() {
+		attempt	= 0;
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.hifly.messageloop;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * <h1>the BinaryCodec class</h1>
+ * PayloadCodec for structured messages in binary form, sent in frames flagged
+ * FrameCodec.FLAG_BINARY.
+ * <br>
+ * A message class implements Message and writes and reads its own fields with the
+ * primitive getters and putters of the ByteBuffer, in the little-endian order of the
+ * connection buffers. There is no text to format or parse, and no copy of the payload:
+ * fields are read straight out of the read buffer.
+ * <br>
+ * Each reading thread decodes into its own message instance, created by newMessage()
+ * and reused for every frame, and passes it to onMessage() on that thread. So decoding
+ * allocates nothing, and what is to be kept of a message must be copied in onMessage().
+ * <br>
+ * Example:
+ * <pre>
+ *   DispatchWork.binaryCodec = new BinaryCodec&lt;Quote&gt;() {
+ *       protected Quote newMessage() { return new Quote(); }
+ *       protected void onMessage(Quote q, int id) { prices[q.item] = q.price; }
+ *   };
+ * </pre>
+ * @param <T> type of the messages
+ */
+public abstract class BinaryCodec<T extends BinaryCodec.Message> implements PayloadCodec<T> {
+	/**
+	 * A message with a binary encoding.
+	 */
+	public static interface Message {
+		/**
+		 * @return largest number of bytes the message is encoded in
+		 */
+		public int  	maxLength();
+		/**
+		 * Write the fields of the message.
+		 * @param dst buffer in fill mode
+		 */
+		public void 	writeTo(ByteBuffer dst);
+		/**
+		 * Read the fields of the message, replacing the current values.
+		 * @param src buffer in drain mode, limited to the payload
+		 */
+		public void 	readFrom(ByteBuffer src);
+	}
+
+	private final ThreadLocal<T>	target = new ThreadLocal<T>() {
+		@Override
+		protected T initialValue() {
+			return newMessage();
+		}
+	};
+
+	/*****************************
+	 * Create a message instance to decode into; called once per reading thread.
+	 * @return a new message
+	 */
+	protected abstract T	newMessage();
+
+	/*****************************
+	 * Handle a received message, on the thread that read it.
+	 * @param msg the message; reused for the next frame after return
+	 * @param id correlation id of the frame
+	 */
+	protected abstract void	onMessage(T msg, int id);
+
+	@Override
+	public int maxLength(T msg) {
+		return msg.maxLength();
+	}
+
+	@Override
+	public boolean encode(T msg, ByteBuffer dst) {
+		try {
+			msg.writeTo(dst);
+			return true;
+		} catch (BufferOverflowException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public T decode(ByteBuffer src, int len) throws ProtocolException {
+		int 	end 	= src.position() + len;
+		int 	limit	= src.limit();
+		T   	msg 	= target.get();
+		src.limit(end);
+		try {
+			msg.readFrom(src);
+		} catch (BufferUnderflowException e) {
+			throw new ProtocolException("binary message too short: "+len);
+		} catch (IllegalArgumentException e) {
+			throw new ProtocolException("invalid binary message: "+e.getMessage());
+		} finally {
+			src.limit(limit);
+			src.position(end);
+		}
+		return msg;
+	}
+
+	/*****************************
+	 * Decode a payload and pass the message to onMessage().
+	 * @param src buffer in drain mode, positioned at the payload; moved past the payload
+	 * @param len number of payload bytes
+	 * @param id correlation id of the frame
+	 * @throws ProtocolException if the payload is not a valid message
+	 */
+	void deliver(ByteBuffer src, int len, int id) throws ProtocolException {
+		onMessage(decode(src, len), id);
+	}
+
+}
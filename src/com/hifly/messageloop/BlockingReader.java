@@ -0,0 +1,23 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the BlockingReader interface</h1>
+ * The thread or task that reads the blocking channel of a connection: a ReceiveData thread
+ * that reads on command, or a ReadLoop task that reads continuously, see
+ * Dispatcher.startReader() and DispatchWork.readExecutor.
+ */
+public interface BlockingReader {
+
+	/*****************************
+	 * Have the reader read the next records, e.g. the reply to a record written. A reader
+	 * that reads continuously ignores the command.
+	 * @param what command code, e.g. DispatchWork.CM_READ_INIT
+	 */
+	public void 	sendReadCmd(int what);
+
+	/*****************************
+	 * Stop the reader. Called after the channel is closed, which ends a blocked read.
+	 */
+	public void 	quit();
+
+}
@@ -0,0 +1,89 @@
+package com.hifly.messageloop;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>the BufferPool class</h1>
+ * Pool of reusable direct ByteBuffers, so the connections and the write queue do not
+ * allocate (and the GC does not have to collect) a buffer for every connection or record.
+ * <br>
+ * Buffers are kept in size classes that double from MIN_SIZE up to MAX_SIZE. A request
+ * is served from the smallest class that fits; larger requests get an unpooled buffer.
+ * All buffers are in little-endian order, as used by FrameCodec.
+ * <br>
+ * The class consists of static methods only and does not need instantiation.
+ * It is used from several threads, so the free lists are concurrent queues.
+ */
+public class BufferPool {
+	/**
+	 * capacity of the smallest and the largest pooled buffers
+	 */
+	public static final int	MIN_SIZE = 512, MAX_SIZE = 64 * 1024;
+	private static final int	NCLASSES = 8;			// 512 << 7 == 64K
+	private static final int	MAX_FREE = 16;			// free buffers kept per class
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final ConcurrentLinkedQueue<ByteBuffer>[]	free = new ConcurrentLinkedQueue[NCLASSES];
+	private static final AtomicInteger[]	nFree = new AtomicInteger[NCLASSES];
+	static {
+		for (int i = 0; i < NCLASSES; i++) {
+			free[i]		= new ConcurrentLinkedQueue<ByteBuffer>();
+			nFree[i]	= new AtomicInteger();
+		}
+	}
+
+	/*****************************
+	 * Get a cleared direct buffer of at least the requested capacity.
+	 * @param minCapacity number of bytes needed
+	 * @return buffer in little-endian order, to be returned with release()
+	 */
+	static ByteBuffer acquire(int minCapacity) {
+		int 	c	= sizeClass(minCapacity);
+		if (c < 0) {
+			return ByteBuffer.allocateDirect(minCapacity).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		ByteBuffer	buf	= free[c].poll();
+		if (null == buf) {
+			return ByteBuffer.allocateDirect(MIN_SIZE << c).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		nFree[c].decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/*****************************
+	 * Return a buffer obtained by acquire() to the pool. The buffer must not be
+	 * used by the caller anymore.
+	 * @param buf buffer to return, may be <b>null</b>
+	 */
+	static void release(ByteBuffer buf) {
+		if (null == buf || !buf.isDirect()) {
+			return;
+		}
+		int 	c	= sizeClass(buf.capacity());
+		if (c < 0 || (MIN_SIZE << c) != buf.capacity()) {
+			return;			// unpooled size, leave it to the GC
+		}
+		if (nFree[c].incrementAndGet() > MAX_FREE) {
+			nFree[c].decrementAndGet();
+			return;
+		}
+		free[c].offer(buf);
+	}
+
+	/*****************************
+	 * get the index of the smallest size class that holds the requested capacity
+	 * @return size class index, or -1 if the capacity is larger than MAX_SIZE
+	 */
+	private static int sizeClass(int capacity) {
+		int 	c	= 0;
+		while ((MIN_SIZE << c) < capacity) {
+			if (++c >= NCLASSES) {
+				return -1;
+			}
+		}
+		return c;
+	}
+
+}
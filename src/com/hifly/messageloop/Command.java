@@ -0,0 +1,22 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the Command interface</h1>
+ * Handler of an action command run by the TaskThread, registered for its command code
+ * in the CommandRegistry of DispatchWork, see DispatchWork.registerCommand().
+ * <br>
+ * The arguments are those of the Message that carried the command, or of an entry of
+ * a CommandBatch, so a command needs no static fields to get its input.
+ */
+public interface Command {
+
+	/*****************************
+	 * Run the command on the TaskThread.
+	 * @param what command code the handler was called for
+	 * @param arg1 Message.arg1
+	 * @param arg2 Message.arg2
+	 * @param obj Message.obj, or <b>null</b>
+	 */
+	public void 	execute(int what, int arg1, int arg2, Object obj);
+
+}
@@ -0,0 +1,109 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the CommandBatch class</h1>
+ * A number of commands that are sent to the TaskThread in one message, and run there
+ * one after the other in the same looper turn, see DispatchWork.CM_BATCH.
+ * <br>
+ * Batching saves a message, a queue insertion and a wakeup of the TaskThread per command,
+ * and no other message runs in between, e.g. the records written by a batch of
+ * CM_WRITESRV commands end up in one write of the outbound queue.
+ * <br>
+ * The commands are kept in parallel arrays of their code and arguments, like the fields
+ * of a Message. A batch is filled by one thread and must not be changed once it is sent.
+ */
+public class CommandBatch {
+	private int[]   	    	codes;
+	private int[]   	    	args;			// arg1 and arg2 of each command
+	private Object[]	    	objs;
+	private int 	    	    count = 0;
+
+	/*****************************
+	 * <h1>CommandBatch constructor</h1>
+	 * @param capacity number of commands expected; the batch grows beyond it if needed
+	 */
+	public CommandBatch(int capacity) {
+		capacity	= Math.max(capacity, 1);
+		codes	= new int[capacity];
+		args	= new int[2 * capacity];
+		objs	= new Object[capacity];
+	}
+
+	/*****************************
+	 * Add a command without arguments.
+	 * @param what command code
+	 * @return this batch
+	 */
+	public CommandBatch add(int what) {
+		return add(what, 0, 0, null);
+	}
+
+	/*****************************
+	 * Add a command with an object argument.
+	 * @param what command code
+	 * @param obj argument, passed as Message.obj
+	 * @return this batch
+	 */
+	public CommandBatch add(int what, Object obj) {
+		return add(what, 0, 0, obj);
+	}
+
+	/*****************************
+	 * Add a command with its arguments.
+	 * @param what command code
+	 * @param arg1 argument passed as Message.arg1
+	 * @param arg2 argument passed as Message.arg2
+	 * @param obj argument passed as Message.obj, or <b>null</b>
+	 * @return this batch
+	 */
+	public CommandBatch add(int what, int arg1, int arg2, Object obj) {
+		if (count == codes.length) {
+			grow();
+		}
+		codes[count]	= what;
+		args[2 * count]	= arg1;
+		args[2 * count + 1]	= arg2;
+		objs[count] 	= obj;
+		count++;
+		return this;
+	}
+
+	/*****************************
+	 * double the capacity of the arrays
+	 */
+	private void grow() {
+		int 	n	= codes.length * 2;
+		int[]	c	= new int[n];
+		int[]	a	= new int[2 * n];
+		Object[]	o	= new Object[n];
+		System.arraycopy(codes, 0, c, 0, count);
+		System.arraycopy(args, 0, a, 0, 2 * count);
+		System.arraycopy(objs, 0, o, 0, count);
+		codes	= c;
+		args	= a;
+		objs	= o;
+	}
+
+	/*****************************
+	 * @return number of commands in the batch
+	 */
+	public int size() {
+		return count;
+	}
+
+	/*****************************
+	 * Run the commands in the order they were added. Called by the TaskThread.
+	 * @param registry handlers of the commands
+	 * @return number of commands that had no handler
+	 */
+	int run(CommandRegistry registry) {
+		int 	nUndefined	= 0;
+		for (int i = 0; i < count; i++) {
+			if (!registry.dispatch(codes[i], args[2 * i], args[2 * i + 1], objs[i])) {
+				nUndefined++;
+			}
+		}
+		return nUndefined;
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the CommandRegistry class</h1>
+ * Maps the command codes of the TaskThread messages to their Command handlers.
+ * <br>
+ * The handlers are kept in an array indexed by the command code, so a dispatch is one
+ * array load instead of a switch, and new commands are added by registering a handler
+ * rather than by editing DispatchWork. The codes are small and dense: the array grows
+ * to the largest code registered.
+ * <br>
+ * A command code can also be marked as control command, which the TaskHandler runs
+ * ahead of the data commands queued, see Dispatcher.
+ * <br>
+ * The arrays are replaced on every registration and never changed in place, so commands
+ * may be registered from any thread while the TaskThread dispatches without a lock.
+ */
+public class CommandRegistry {
+	/**
+	 * largest command code that can be registered
+	 */
+	public static final int 	MAX_CODE = 1023;
+	private volatile Command[]  	handlers = new Command[32];
+	private volatile boolean[]  	control = new boolean[32];	// commands of the control lane
+
+	/*****************************
+	 * Register the handler of a command code, replacing the one registered before.
+	 * @param what command code, 0 to MAX_CODE
+	 * @param cmd handler, or <b>null</b> to remove the command
+	 * @return the handler registered before, or <b>null</b>
+	 * @throws IllegalArgumentException if the code is out of range
+	 */
+	synchronized Command register(int what, Command cmd) {
+		if (what < 0 || what > MAX_CODE) {
+			throw new IllegalArgumentException("invalid command code: "+what);
+		}
+		Command[]	table	= handlers;
+		int 	len	= table.length;
+		while (what >= len) {
+			len 	*= 2;
+		}
+		Command[]	copy	= new Command[len];
+		System.arraycopy(table, 0, copy, 0, table.length);
+		Command 	old	= copy[what];
+		copy[what]	= cmd;
+		handlers	= copy;
+		return old;
+	}
+
+	/*****************************
+	 * Mark a command code as control command or as data command.
+	 * @param what command code, 0 to MAX_CODE
+	 * @param bControl <b>true</b> for a control command
+	 * @throws IllegalArgumentException if the code is out of range
+	 */
+	synchronized void setControl(int what, boolean bControl) {
+		if (what < 0 || what > MAX_CODE) {
+			throw new IllegalArgumentException("invalid command code: "+what);
+		}
+		boolean[]	table	= control;
+		int 	len	= table.length;
+		while (what >= len) {
+			len 	*= 2;
+		}
+		boolean[]	copy	= new boolean[len];
+		System.arraycopy(table, 0, copy, 0, table.length);
+		copy[what]	= bControl;
+		control	= copy;
+	}
+
+	/*****************************
+	 * @param what command code
+	 * @return <b>true</b> if it is a control command, <b>false</b> if not
+	 */
+	boolean isControl(int what) {
+		boolean[]	table	= control;
+		return what >= 0 && what < table.length && table[what];
+	}
+
+	/*****************************
+	 * @param what command code
+	 * @return the handler of the command code, or <b>null</b> if none is registered
+	 */
+	Command get(int what) {
+		Command[]	table	= handlers;
+		return (what >= 0 && what < table.length)? table[what]: null;
+	}
+
+	/*****************************
+	 * Run the handler of a command. Must be called from the TaskThread.
+	 * @param what command code
+	 * @param arg1 first int argument
+	 * @param arg2 second int argument
+	 * @param obj object argument, or <b>null</b>
+	 * @return <b>true</b> if the command was run, <b>false</b> if no handler is registered
+	 */
+	boolean dispatch(int what, int arg1, int arg2, Object obj) {
+		Command 	cmd	= get(what);
+		if (null == cmd) {
+			return false;
+		}
+		cmd.execute(what, arg1, arg2, obj);
+		return true;
+	}
+
+}
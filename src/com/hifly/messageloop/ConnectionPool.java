@@ -0,0 +1,281 @@
+package com.hifly.messageloop;
+import java.util.ArrayList;
+
+/**
+ * <h1>the ConnectionPool class</h1>
+ * Keeps a number of SrvConnect connections open to one or more server endpoints
+ * and spreads the records to be written over them.
+ * <br>
+ * Every connection has its own buffers and its own receive thread. A connection is
+ * selected per request by one of the policies:
+ * <ul><li>
+ * POLICY_ROUND_ROBIN: the connections are used in turn;
+ * </li><li>
+ * POLICY_LEAST_OUTSTANDING: the connection with the fewest records awaiting a reply is used.
+ * </li></ul>
+ * Each connection has a slot in the pool that remembers its endpoint and its reconnect
+ * Backoff. Only slots of which the link is up are selected. When a link goes down,
+ * DispatchWork reopens the slot after the backoff delay. A connection that is closed
+ * because it was idle keeps its slot, which is reopened by wake() when there is
+ * something to send again.
+ * <br>
+ * The pool is used from the TaskThread only, so it needs no synchronization.
+ */
+public class ConnectionPool {
+	private static final String 	CP_TAG = "ConnectionPool";
+	/**
+	 * connection selection policy enumeration
+	 */
+	public static final int 	POLICY_ROUND_ROBIN=0, POLICY_LEAST_OUTSTANDING=1;
+
+	/**
+	 * a connection of the pool with its endpoint and reconnect state
+	 */
+	static class Slot {
+		final String	host;
+		final int   	port;
+		final Backoff	backoff = new Backoff(DispatchWork.reconnectDelay, DispatchWork.reconnectMaxDelay);
+		SrvConnect  	sc;
+		boolean 	    bUp = false;
+		boolean 	    bIdle = false;	// closed while idle, not reconnected
+
+		Slot(String host, int port) {
+			this.host	= host;
+			this.port	= port;
+		}
+	}
+
+	private final Dispatcher	hTask;	//handler of worker thread
+	private final ArrayList<Slot>	slots = new ArrayList<Slot>();
+	private final int   	    	policy;
+	private int 	    	    	next = 0;
+
+	/*****************************
+	 * <h1>ConnectionPool constructor</h1>
+	 * @param handler message handler of the worker Task Thread
+	 * @param policy connection selection policy, POLICY_ROUND_ROBIN or POLICY_LEAST_OUTSTANDING
+	 */
+	ConnectionPool(Dispatcher handler, int policy) {
+		hTask		= handler;
+		this.policy	= policy;
+	}
+
+	/*****************************
+	 * Open a number of connections to each endpoint. The connects complete asynchronously,
+	 * see SrvConnect.Open().
+	 * @param endpoints server endpoints as "host:port", or "host" for the default port
+	 * @param defaultPort port used for endpoints without a port
+	 * @param perEndpoint number of connections to open to each endpoint
+	 * @return number of connections that were started
+	 */
+	int open(String[] endpoints, int defaultPort, int perEndpoint) {
+		for (String endpoint : endpoints) {
+			String	host	= endpoint.trim();
+			int 	port	= defaultPort;
+			int 	i   	= host.lastIndexOf(':');
+			if (i > 0) {
+				try {
+					port	= Integer.parseInt(host.substring(i + 1));
+					host	= host.substring(0, i);
+				} catch (NumberFormatException e) {
+					Log.i(CP_TAG, "... invalid port: "+endpoint);
+				}
+			}
+			for (int n = 0; n < perEndpoint; n++) {
+				Slot	slot	= new Slot(host, port);
+				slots.add(slot);
+				reopen(slot);
+			}
+		}
+		Log.i(CP_TAG, "... open: "+slots.size()+" connections");
+		return slots.size();
+	}
+
+	/*****************************
+	 * Open a new connection for a slot.
+	 * @param slot slot to open
+	 */
+	void reopen(Slot slot) {
+		if (!slots.contains(slot)) {
+			return;			// pool was closed meanwhile
+		}
+		slot.bUp	= false;
+		slot.bIdle	= false;
+		SrvConnect	prev	= slot.sc;
+		slot.sc 	= new SrvConnect(hTask);
+		if (null != prev) {
+			slot.sc.seedRtt(prev);		// the RTT of the link bounds the connect
+		}
+		if (null == slot.sc.Open(slot.host, slot.port)) {
+			slot.sc.linkEvent(DispatchWork.CM_LINK_DOWN);
+		}
+	}
+
+	/*****************************
+	 * Mark the link of a connection up.
+	 * @param sc connection that reported CM_LINK_UP
+	 * @return <b>true</b> if the connection belongs to the pool, <b>false</b> if it is stale
+	 */
+	boolean linkUp(SrvConnect sc) {
+		Slot	slot	= find(sc);
+		if (null == slot) {
+			return false;
+		}
+		slot.bUp	= true;
+		slot.backoff.reset();
+		return true;
+	}
+
+	/*****************************
+	 * Mark the link of a connection down and close it. The requests waiting for a reply
+	 * on the connection are added to the list, so they can be sent again.
+	 * @param sc connection that reported CM_LINK_DOWN
+	 * @param requeue list to add the requests in flight to
+	 * @return slot to reopen after its backoff delay, or <b>null</b> if the connection is stale
+	 */
+	Slot linkDown(SrvConnect sc, ArrayList<PendingReply> requeue) {
+		Slot	slot	= find(sc);
+		if (null == slot) {
+			return null;
+		}
+		slot.bUp	= false;
+		slot.sc 	= null;		// a second report of the same connection is stale
+		requeue.addAll(sc.takeInFlight());
+		sc.Close();
+		return slot;
+	}
+
+	/*****************************
+	 * Close a connection that is idle, without reconnecting it.
+	 * @param sc connection that reported CM_IDLE
+	 * @return <b>true</b> if closed, <b>false</b> if the connection is stale
+	 */
+	boolean idle(SrvConnect sc) {
+		Slot	slot	= find(sc);
+		if (null == slot) {
+			return false;
+		}
+		slot.bUp	= false;
+		slot.bIdle	= true;
+		slot.sc 	= null;
+		sc.Close();
+		return true;
+	}
+
+	/*****************************
+	 * Reopen the connections that were closed while idle.
+	 * @return number of connections reopened
+	 */
+	int wake() {
+		int n	= 0;
+		for (Slot slot : new ArrayList<Slot>(slots)) {
+			if (slot.bIdle) {
+				reopen(slot);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/*****************************
+	 * find the slot of a connection
+	 */
+	private Slot find(SrvConnect sc) {
+		for (Slot slot : slots) {
+			if (slot.sc == sc) {
+				return slot;
+			}
+		}
+		return null;
+	}
+
+	/*****************************
+	 * Select the connection for the next request according to the pool policy.
+	 * @return selected connection, or <b>null</b> if no connection of the pool is up
+	 */
+	SrvConnect next() {
+		int n	= slots.size();
+		if (0 == n) {
+			return null;
+		}
+		// scan from the round robin position, so ties are spread as well
+		SrvConnect	best	= null;
+		for (int i = 0; i < n; i++) {
+			Slot	slot	= slots.get((next + i) % n);
+			if (!slot.bUp) {
+				continue;
+			}
+			if (POLICY_ROUND_ROBIN == policy) {
+				next	= (next + i + 1) % n;
+				return slot.sc;
+			}
+			if (null == best || slot.sc.getOutstanding() < best.getOutstanding()) {
+				best	= slot.sc;
+			}
+		}
+		next	= (next + 1) % n;
+		return best;
+	}
+
+	/*****************************
+	 * @return number of connections in the pool of which the link is up
+	 */
+	int upCount() {
+		int n	= 0;
+		for (Slot slot : slots) {
+			if (slot.bUp) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/*****************************
+	 * Get a connection for records that must be sent in order, like those of the Outbox.
+	 * @return the first connection of which the link is up and the HELLO answered,
+	 * or <b>null</b> if there is none
+	 */
+	SrvConnect ready() {
+		for (Slot slot : slots) {
+			if (slot.bUp && slot.sc.isReady()) {
+				return slot.sc;
+			}
+		}
+		return null;
+	}
+
+	/*****************************
+	 * Get the connections for a message to all links, like a topic subscription.
+	 * @return the connections of which the link is up and the HELLO answered
+	 */
+	ArrayList<SrvConnect> readyLinks() {
+		ArrayList<SrvConnect>	list	= new ArrayList<SrvConnect>(slots.size());
+		for (Slot slot : slots) {
+			if (slot.bUp && slot.sc.isReady()) {
+				list.add(slot.sc);
+			}
+		}
+		return list;
+	}
+
+	/*****************************
+	 * @return number of connections in the pool
+	 */
+	int size() {
+		return slots.size();
+	}
+
+	/*****************************
+	 * Close all connections of the pool.
+	 */
+	void close() {
+		for (Slot slot : slots) {
+			if (null != slot.sc) {
+				slot.sc.Close();
+			}
+		}
+		slots.clear();
+		next	= 0;
+	}
+
+}
@@ -1,5 +1,13 @@
 package com.hifly.messageloop;
-import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * <h1>the DispatchWork class</h1>
@@ -11,35 +19,235 @@ import android.util.Log;
  * and does not need instantiation.
  * Therefore, the class, all methods and global (class) variables are defined static.
  * The public methods are called by their class name, not by an instance name.
+ * <br>
+ * Each command code is dispatched to the Command registered for it in a CommandRegistry;
+ * the commands of DispatchWork are registered up front, and others can be added with
+ * registerCommand() without changing this class.
+ * <br>
+ * Control commands, like CM_CANCEL and the link events, are run ahead of the data
+ * commands, like CM_WRITESRV, that are queued already, see TaskFragment.TaskHandler.
+ * <br>
+ * The TaskThread is only used through the Dispatcher interface, so DispatchWork runs on
+ * Android with the TaskHandler, and on a JVM with a ThreadDispatcher.
  * <p>
  * <em>Note 1</em><br>
  * As DispatchWork is only called by its static class name, the class
  * constructor is never called, unless explicitly or by
  * calling "new DispatchWork()".
+ * <p>
+ * <em>Note 2</em><br>
+ * The connection with the server is managed by a state machine:
+ * <ul><li>
+ * ST_CONNECTING: CM_START was given and the connections of the pool are being set up;
+ * </li><li>
+ * ST_CONNECTED: at least one connection of the pool is up;
+ * </li><li>
+ * ST_BACKOFF: all connections went down and are reconnected after an exponential backoff
+ * delay with jitter;
+ * </li><li>
+ * ST_IDLE: all connections were closed after idleTimeoutMs without traffic, and are
+ * reopened when there is something to send;
+ * </li><li>
+ * ST_CLOSED: no connection is wanted, after CM_CANCEL or before CM_START.
+ * </li></ul>
+ * Records and requests given while no connection is up are kept, and are sent when a
+ * link comes up again. Requests that were in flight on a failed connection are sent again.
+ * <br>
+ * With journalFile set, text records are kept in the Outbox instead, a journal that
+ * survives the process; they are sent in order on one connection, and dropped from the
+ * journal when the server acknowledges them.
+ * <br>
+ * The Heartbeat of each connection pings a quiet link; a peer that misses heartbeatMisses
+ * pongs is reported as CM_LINK_DOWN, like a failed connection.
+ * <br>
+ * Listeners subscribe to topics with subscribe(); every connection subscribes to the topics
+ * at the server when its HELLO is answered, and the records the server pushes on a topic
+ * are passed to its listeners, see TopicRegistry.
+ * <br>
+ * With cacheBytes set, the replies of cachedRequest() are kept in a ResponseCache, which
+ * the server keeps up to date with invalidations; it is cleared when a link comes up after
+ * none was, as invalidations may have been missed.
  */
 public class DispatchWork {
 	/**
-	 * action command code enumeration
+	 * action command code enumeration; CM_BATCH runs the commands of a CommandBatch, and
+	 * the codes from CM_USER are free for commands added with registerCommand()
 	 */
 	public static final int	CM_START=0, CM_CANCEL=1,
-			CM_WRITESRV=5, CM_READ_INIT=6, CM_READSRV=8;
+			CM_WRITESRV=5, CM_READ_INIT=6, CM_READSRV=8, CM_REQUEST=10,
+			CM_CONNECT=11, CM_LINK_UP=12, CM_LINK_DOWN=13, CM_RECONNECT=14,
+			CM_WRITEMSG=15, CM_SENDSTREAM=16, CM_HELLO=17, CM_ACK=18, CM_IDLE=19,
+			CM_BATCH=20, CM_SUBSCRIBE=21, CM_USER=64;
 	/**
 	 * Return code enumeration of DispatchWork action commands.
 	 */
 	public static final int	DW_UNDEFINED=999, DW_FINAL=700,
 			DW_OPEN_SOCKET=901, DW_CLOSE_SOCKET=902, DW_CLOSE_SOCKET_NULL=903,
 			DW_WRITE_SRV=906, DW_WRITE_SRV_NULL=907,
-			DW_READ_SRV=908, DW_READ_SRV_NULL=909;
+			DW_READ_SRV=908, DW_READ_SRV_NULL=909, DW_WRITE_SRV_BUSY=910,
+			DW_WRITE_SRV_QUEUED=911, DW_LINK_DOWN=912, DW_LINK_IDLE=913;
+	/**
+	 * connection state enumeration
+	 */
+	public static final int	ST_CLOSED=0, ST_CONNECTING=1, ST_CONNECTED=2, ST_BACKOFF=3, ST_IDLE=4;
 
-	private static TaskFragment.TaskHandler 	hTask;	    	//message handler for work thread loop
-	private static SrvConnect   	srvConnect;
+	private static Dispatcher 	hTask;	    	//message handler for work thread loop
+	private static ConnectionPool	pool;
+	private static final CommandRegistry	commands = new CommandRegistry();
+	static final TopicRegistry  	topics = new TopicRegistry();
+	static final ResponseCache  	cache = new ResponseCache();
+	static {
+		registerBuiltins();
+	}
 	private static final String 	TAG = "DispatchWork";
 	private static final int    	SERVERPORT = 5000;
 	public static final String    	SERVERIP = "10.0.2.2";		//localhost outside emulator
-	private static boolean	    	bConnected = false;
+	private static volatile int 	state = ST_CLOSED;
+	private static final ArrayList<Object>	pending = new ArrayList<Object>();	// records and requests waiting for a link
+	private static volatile Outbox	outbox;			// null without journalFile
+	private static SrvConnect   	outboxLink;		// connection the Outbox records are sent on
+	private static final Runnable	pumpTask = new Runnable() {
+		@Override
+		public void run() {
+			pumpOutbox();
+		}
+	};
+	/**
+	 * use a non-blocking channel with a single SelectorLoop thread instead of the ReceiveData thread
+	 */
+	public static boolean	    	bSelectorLoop = false;
+	/**
+	 * use non-blocking channels whose I/O is done by the TaskThread itself, in one EventLoop
+	 * for all connections, so only the results are passed to the MainHandler
+	 */
+	public static boolean	    	bEventLoop = false;
+	/**
+	 * executor of the blocking reads: each connection is a ReadLoop task that connects and
+	 * reads continuously until the connection ends; <b>null</b> for the reader of the
+	 * Dispatcher, on Android a ReceiveData thread with a Looper per connection.
+	 * ReadLoop.virtualThreads() runs them on virtual threads.
+	 */
+	public static volatile Executor	readExecutor = null;
 	public static String	    	server_IP;
-	public static String	    	val;
-	public static int   	    	num;
+	/**
+	 * server endpoints ("host:port" or "host") for the connection pool,
+	 * or <b>null</b> for the single endpoint server_IP:SERVERPORT
+	 */
+	public static String[]	    	endpoints = null;
+	/**
+	 * number of connections opened to each endpoint
+	 */
+	public static int   	    	poolSize = 1;
+	/**
+	 * selection policy of the connection pool, see ConnectionPool
+	 */
+	public static int   	    	poolPolicy = ConnectionPool.POLICY_ROUND_ROBIN;
+	/**
+	 * size of the read and send buffers of a connection, i.e. the largest frame
+	 */
+	public static int   	    	bufferSize = BufferPool.MIN_SIZE;
+	/**
+	 * batch window of the outbound queue in milliseconds; records sent within the window
+	 * are written together. With 0 the records already waiting in the TaskThread queue are batched.
+	 */
+	public static int   	    	batchDelay = 0;
+	/**
+	 * number of queued bytes that ends the batch window early
+	 */
+	public static int   	    	batchBytes = 8 * 1024;
+	/**
+	 * limit of the outbound queue in bytes, above which writes are held back
+	 */
+	public static int   	    	maxQueueBytes = 256 * 1024;
+	/**
+	 * weights of the records and of each stream in the outbound queue: their shares of
+	 * the connection while both have frames to write, see OutboundQueue
+	 */
+	public static int   	    	recordWeight = 4, streamWeight = 1;
+	/**
+	 * connect timeout in milliseconds; once a round trip time was measured on the slot,
+	 * the connect is given up earlier, see Heartbeat.connectTimeout()
+	 */
+	public static int   	    	connectTimeout = 5000;
+	/**
+	 * time in milliseconds the server may take to answer a request, on top of the
+	 * retransmission timeout of the connection (Heartbeat.rto()), after which the request
+	 * fails with a SocketTimeoutException; 0 to wait until the link is down
+	 */
+	public static int   	    	requestTimeoutMs = 0;
+	/**
+	 * first and largest reconnect backoff delay in milliseconds
+	 */
+	public static int   	    	reconnectDelay = 250, reconnectMaxDelay = 30000;
+	/**
+	 * number of records and requests kept while no connection is up
+	 */
+	public static int   	    	maxPending = 1000;
+	/**
+	 * journal file of the Outbox for the text records, e.g. in the private app storage
+	 * getFilesDir(), or <b>null</b> to keep them in memory only while no connection is up
+	 */
+	public static File  	    	journalFile = null;
+	/**
+	 * size of a new journal file in bytes
+	 */
+	public static int   	    	journalSize = 1024 * 1024;
+	/**
+	 * group commit interval in milliseconds: the journal is forced to the storage at most
+	 * this often; 0 to leave it to the system, which survives a killed process but not a crash
+	 */
+	public static int   	    	journalSyncMs = 1000;
+	/**
+	 * first ping interval in milliseconds of a quiet connection, doubled up to heartbeatMaxMs
+	 * while the pongs arrive; 0 to send no pings, see Heartbeat
+	 */
+	public static int   	    	heartbeatMs = 15000, heartbeatMaxMs = 120000;
+	/**
+	 * number of missed pongs after which the peer is taken as dead
+	 */
+	public static int   	    	heartbeatMisses = 2;
+	/**
+	 * milliseconds without records sent or received after which a connection is closed,
+	 * to let the radio sleep, until there is something to send; 0 to keep it open
+	 */
+	public static int   	    	idleTimeoutMs = 0;
+	/**
+	 * SSL context of the TLS connections, with the trust store for the server certificate;
+	 * <b>null</b> to connect without TLS. Its client session cache lets a reconnect resume
+	 * the TLS session, so keep one context for all connections.
+	 */
+	public static volatile SSLContext	sslContext = null;
+	/**
+	 * check that the server certificate matches the host name of the server
+	 */
+	public static boolean	    	tlsHostnameCheck = true;
+	/**
+	 * budget in bytes of the replies kept by cachedRequest(), counted as 2 bytes per char
+	 * of the request and the reply; 0 to keep none, see ResponseCache
+	 */
+	public static int   	    	cacheBytes = 0;
+	/**
+	 * smallest payload in bytes that is compressed, if the server accepts compression;
+	 * 0 to offer no compression
+	 */
+	public static int   	    	compressThreshold = 0;
+	/**
+	 * preset dictionary for the compression, the same as the server's, or <b>null</b>
+	 */
+	public static byte[]	    	compressDictionary = null;
+	/**
+	 * codec of the binary messages written with CM_WRITEMSG and of the binary frames
+	 * received, or <b>null</b> for text records only
+	 */
+	public static volatile BinaryCodec<?>	binaryCodec = null;
+	/**
+	 * receiver of the chunks of the streams sent by the server, or <b>null</b> to drop them
+	 */
+	public static volatile StreamConsumer	streamConsumer = null;
+	/**
+	 * log every record and command on the hot path; off, the log messages are not even built
+	 */
+	public static boolean	    	bTrace = false;
 
 	/*****************************
 	 * <h1>DispatchWork constructor</h1>
@@ -48,14 +256,12 @@ public class DispatchWork {
 	 * For android emulator ip address and port configuration, see:
 	 * <br>http://developer.android.com/tools/devices/emulator.html
 	 * <p>
-	 * @param handler message handler for sending return value
+	 * @param handler dispatcher of the TaskThread, for sending return values
 	 */
-	DispatchWork(TaskFragment.TaskHandler handler) {
+	DispatchWork(Dispatcher handler) {
 		Log.i(TAG, "DispatchWork constructor: "+handler);
 		hTask	    	= handler;
 		server_IP   	= SERVERIP;
-		val 	    	= "$$";
-		num 	    	= 0;
 	}
 
 	/*****************************
@@ -63,41 +269,201 @@ public class DispatchWork {
 	 * @param iCmd enumeration code for action command
 	 */
 	public static void doWork(int iCmd) {
+		doWork(iCmd, 0, 0, null);
+	}
 
-		// dispatch action command
-		switch (iCmd) {
-		case CM_START:
-			openSocket();
-			return;
-		case CM_CANCEL:
-			closeSocket();
-			return;
-		case CM_WRITESRV:
-			writeSrv();
-			return;
-		default:
-			// undefined command
+	/*****************************
+	 * dispatch the action command with its argument
+	 * @param iCmd enumeration code for action command
+	 * @param arg argument of the command, passed in Message.obj
+	 */
+	public static void doWork(int iCmd, Object arg) {
+		doWork(iCmd, 0, 0, arg);
+	}
+
+	/*****************************
+	 * dispatch the action command with its arguments to the Command registered for it
+	 * @param iCmd enumeration code for action command
+	 * @param arg1 argument of the command, passed in Message.arg1
+	 * @param arg2 argument of the command, passed in Message.arg2
+	 * @param arg argument of the command, passed in Message.obj
+	 */
+	public static void doWork(int iCmd, int arg1, int arg2, Object arg) {
+		if (!commands.dispatch(iCmd, arg1, arg2, arg)) {
+			undefined(iCmd);
 		}
+	}
+
+	/*****************************
+	 * Register the handler of a command, so it is run on the TaskThread for the messages
+	 * with its command code. The codes below CM_USER are those of DispatchWork; registering
+	 * one of them replaces the built-in command. May be called from any thread.
+	 * @param what command code, up to CommandRegistry.MAX_CODE
+	 * @param cmd handler of the command, or <b>null</b> to remove it
+	 * @return the handler registered before, or <b>null</b>
+	 */
+	public static Command registerCommand(int what, Command cmd) {
+		return commands.register(what, cmd);
+	}
+
+	/*****************************
+	 * Register the handler of a command, see registerCommand(int, Command), in the control
+	 * lane or not.
+	 * @param what command code, up to CommandRegistry.MAX_CODE
+	 * @param cmd handler of the command, or <b>null</b> to remove it
+	 * @param bControl <b>true</b> to run the command ahead of the data commands queued
+	 * @return the handler registered before, or <b>null</b>
+	 */
+	public static Command registerCommand(int what, Command cmd, boolean bControl) {
+		commands.setControl(what, bControl);
+		return commands.register(what, cmd);
+	}
+
+	/*****************************
+	 * Test if a command is in the control lane of the TaskThread, see Dispatcher.
+	 * @param what command code
+	 * @return <b>true</b> if so, <b>false</b> for a data command
+	 */
+	static boolean isControl(int what) {
+		return commands.isControl(what);
+	}
 
+	/*****************************
+	 * report a command without a handler
+	 */
+	private static void undefined(int iCmd) {
 		hTask.sendResult(DW_UNDEFINED);
 		Log.i(TAG, "... undefined command: "+iCmd);
-
 	}	// -------- end doWork
 
 	// ---------------------------
 	//	supporting functions
 
 	/*****************************
-	 * open a socket connection with the server
+	 * register the commands of DispatchWork
 	 */
-	private static void openSocket() {
-		Log.i(TAG, "-- openSocket{begin}");
-		srvConnect	= new SrvConnect(hTask);
-		srvConnect.Open(server_IP, SERVERPORT);
+	private static void registerBuiltins() {
+		int[]	control	= {CM_START, CM_CANCEL, CM_LINK_UP, CM_LINK_DOWN, CM_RECONNECT,
+				CM_HELLO, CM_ACK, CM_IDLE, CM_SUBSCRIBE};
+		for (int what : control) {
+			commands.setControl(what, true);
+		}
+		commands.register(CM_START, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				openSocket(obj);
+			}
+		});
+		commands.register(CM_CANCEL, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				closeSocket();
+			}
+		});
+		Command 	write	= new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				writeSrv(obj);
+			}
+		};
+		commands.register(CM_WRITESRV, write);
+		commands.register(CM_WRITEMSG, write);
+		commands.register(CM_REQUEST, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				sendRequest((PendingReply) obj);
+			}
+		});
+		commands.register(CM_SENDSTREAM, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				startStream((StreamSender) obj);
+			}
+		});
+		commands.register(CM_LINK_UP, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				linkUp((SrvConnect) obj);
+			}
+		});
+		commands.register(CM_LINK_DOWN, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				linkDown((SrvConnect) obj);
+			}
+		});
+		commands.register(CM_HELLO, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				for (String topic : topics.topics()) {
+					((SrvConnect) obj).subscribe(topic, true);
+				}
+				pumpOutbox();
+			}
+		});
+		commands.register(CM_SUBSCRIBE, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				if (ST_CLOSED == state) {
+					return;			// subscribed when the links come up
+				}
+				for (SrvConnect sc : pool.readyLinks()) {
+					sc.subscribe((String) obj, 0 != arg1);
+				}
+			}
+		});
+		commands.register(CM_ACK, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				if (null != outbox) {
+					outbox.ack((Long) obj);
+				}
+			}
+		});
+		commands.register(CM_IDLE, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				linkIdle((SrvConnect) obj);
+			}
+		});
+		commands.register(CM_RECONNECT, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				if (ST_CLOSED != state) {
+					Metrics.global.reconnects.incrementAndGet();
+					pool.reopen((ConnectionPool.Slot) obj);
+				}
+			}
+		});
+		commands.register(CM_BATCH, new Command() {
+			@Override
+			public void execute(int what, int arg1, int arg2, Object obj) {
+				CommandBatch	batch	= (CommandBatch) obj;
+				if (batch.run(commands) > 0) {
+					undefined(CM_BATCH);
+				}
+			}
+		});
+	}
 
-		bConnected	= true;
-		val	    	= "Connected";
-		hTask.sendResult(DW_OPEN_SOCKET);
+	/*****************************
+	 * open the socket connections with the server(s) in the connection pool;
+	 * DW_OPEN_SOCKET is returned when the first link is up
+	 * @param arg server endpoint as String, or endpoints as String[], from Message.obj;
+	 * <b>null</b> for endpoints or server_IP
+	 */
+	private static void openSocket(Object arg) {
+		Log.i(TAG, "-- openSocket{begin}");
+		if (ST_CLOSED != state) {
+			closePool();
+		}
+		openOutbox();
+		state	= ST_CONNECTING;
+		pool	= new ConnectionPool(hTask, poolPolicy);
+		String[]	servers	= (arg instanceof String[])? (String[]) arg:
+				(arg instanceof String)? new String[] {(String) arg}:
+				(null == endpoints)? new String[] {server_IP}: endpoints;
+		pool.open(servers, SERVERPORT, poolSize);
 		Log.i(TAG, "-- openSocket{end}");
 	}
 
@@ -105,8 +471,12 @@ public class DispatchWork {
 	 * close socket connection with server
 	 */
 	private static void closeSocket() {
-		bConnected	= false;
-		srvConnect.Close();
+		if (null == pool) {
+			state	= ST_CLOSED;
+			hTask.sendResult(DW_CLOSE_SOCKET_NULL);
+			return;
+		}
+		closePool();
 		hTask.sendResult(DW_CLOSE_SOCKET);
 	}
 
@@ -114,34 +484,463 @@ public class DispatchWork {
 	 * close resources when quitting
 	 */
 	public static void quit() {
-		bConnected	= false;
-		srvConnect.Close();
+		if (null != pool) {
+			closePool();
+		}
+		if (null != outbox) {
+			outbox.close();
+			outbox	= null;
+		}
 		Log.i(TAG, "... quit");
 	}
 
 	/*****************************
-	 * test if socket connection with server is established
+	 * close the connection pool, stop reconnecting and drop what is waiting for a link
+	 */
+	private static void closePool() {
+		state	= ST_CLOSED;
+		hTask.removeMessages(CM_RECONNECT);
+		hTask.removeCallbacks(pumpTask);
+		pool.close();
+		if (null != outbox) {
+			outboxLink	= null;
+			outbox.rewind();
+		}
+		for (Object o : pending) {
+			if (o instanceof PendingReply) {
+				((PendingReply) o).fail(new IOException("connection closed"));
+			}
+		}
+		pending.clear();
+	}
+
+	/*****************************
+	 * A connection of the pool is up: report the first link, and send what was kept
+	 * while no link was up.
+	 * @param sc the connection
+	 */
+	private static void linkUp(SrvConnect sc) {
+		if (ST_CLOSED == state || !pool.linkUp(sc)) {
+			return;
+		}
+		sc.hello();
+		sc.startHeartbeat();
+		if (ST_CONNECTED != state) {
+			state	= ST_CONNECTED;
+			cache.clear();
+			Log.i(TAG, "-- link up, resend "+pending.size());
+			hTask.sendResult(DW_OPEN_SOCKET, MsgEvent.obtain(DW_OPEN_SOCKET, "Connected", 0));
+		}
+		ArrayList<Object>	replay	= new ArrayList<Object>(pending);
+		pending.clear();
+		for (Object o : replay) {
+			if (o instanceof PendingReply) {
+				sendRequest((PendingReply) o);
+			} else {
+				writeSrv(o);
+			}
+		}
+	}
+
+	/*****************************
+	 * A connection of the pool failed or could not connect: keep its requests in flight
+	 * to send them again, and reconnect after the backoff delay.
+	 * @param sc the connection
+	 */
+	private static void linkDown(SrvConnect sc) {
+		if (ST_CLOSED == state) {
+			return;
+		}
+		ArrayList<PendingReply>	requeue	= new ArrayList<PendingReply>();
+		ConnectionPool.Slot	slot	= pool.linkDown(sc, requeue);
+		if (null == slot) {
+			return;			// stale connection
+		}
+		Metrics.global.errors.incrementAndGet();
+		long	delay	= slot.backoff.nextDelay();
+		Log.i(TAG, "-- link down, reconnect in "+delay+"ms, attempt "+slot.backoff.getAttempts());
+		hTask.sendCommandDelayed(CM_RECONNECT, slot, delay);
+		if (0 == pool.upCount() && ST_CONNECTING != state) {
+			if (ST_CONNECTED == state) {
+				hTask.sendResult(DW_LINK_DOWN);
+			}
+			state	= ST_BACKOFF;
+		}
+		for (PendingReply pr : requeue) {
+			sendRequest(pr);
+		}
+		if (sc == outboxLink) {
+			// send what was not acknowledged again, on another connection if one is ready
+			outboxLink	= null;
+			outbox.rewind();
+			pumpOutbox();
+		}
+	}
+
+	/*****************************
+	 * A connection of the pool had no traffic for idleTimeoutMs: close it until there is
+	 * something to send again.
+	 * @param sc the connection
+	 */
+	private static void linkIdle(SrvConnect sc) {
+		if (ST_CLOSED == state || !pool.idle(sc)) {
+			return;
+		}
+		if (sc == outboxLink) {
+			outboxLink	= null;
+			outbox.rewind();
+		}
+		if (0 == pool.upCount() && ST_CONNECTED == state) {
+			Log.i(TAG, "-- all links idle");
+			state	= ST_IDLE;
+			hTask.sendResult(DW_LINK_IDLE);
+		}
+	}
+
+	/*****************************
+	 * Select a connection of the pool; if all were closed while idle, reopen them, so
+	 * what is given now is kept until a link is up.
+	 * @return the connection, or <b>null</b> if no link is up
+	 */
+	private static SrvConnect nextLink() {
+		if (null == pool) {
+			return null;
+		}
+		SrvConnect	sc	= pool.next();
+		if (null == sc && ST_IDLE == state) {
+			wakePool();
+		}
+		return sc;
+	}
+
+	/*****************************
+	 * reopen the connections that were closed while idle
+	 */
+	private static void wakePool() {
+		Log.i(TAG, "-- wake up");
+		state	= ST_CONNECTING;
+		pool.wake();
+	}
+
+	/*****************************
+	 * open the Outbox journal, if configured and not open yet
+	 */
+	private static void openOutbox() {
+		if (null != outbox || null == journalFile) {
+			return;
+		}
+		try {
+			outbox	= new Outbox(hTask, journalFile, journalSize, journalSyncMs);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*****************************
+	 * test if text records are kept in the Outbox journal
+	 * @return <b>true</b> if so, <b>false</b> if not
+	 */
+	static boolean hasOutbox() {
+		return null != outbox;
+	}
+
+	/*****************************
+	 * Send the records of the Outbox that are not sent yet, in order, on one connection
+	 * of which the HELLO was answered.
+	 */
+	private static void pumpOutbox() {
+		hTask.removeCallbacks(pumpTask);
+		if (null == outbox || null == pool) {
+			return;
+		}
+		if (null == outboxLink) {
+			outboxLink	= pool.ready();
+			if (null == outboxLink) {
+				if (ST_IDLE == state && outbox.hasUnsent()) {
+					wakePool();
+				}
+				return;			// sent on CM_HELLO
+			}
+		}
+		while (outbox.hasUnsent()) {
+			int 	rc	= outboxLink.writeSequenced(outbox.unsentSeq(), outbox.unsentData());
+			if (DW_WRITE_SRV != rc) {
+				if (DW_WRITE_SRV_BUSY == rc) {
+					hTask.postDelayed(pumpTask, Outbox.RETRY_DELAY);
+				}
+				return;			// else the link is down, and the records are sent again
+			}
+			outbox.markSent(!outboxLink.isAcking());
+		}
+	}
+
+	/*****************************
+	 * Keep a record or request until a link is up.
+	 * @param o record text, binary message or PendingReply
+	 * @return <b>true</b> if kept, <b>false</b> if too much is waiting already
+	 */
+	private static boolean keepPending(Object o) {
+		if (pending.size() >= maxPending) {
+			return false;
+		}
+		pending.add(o);
+		return true;
+	}
+
+	/*****************************
+	 * Send a request to the server and return without waiting for the reply.
+	 * The request is tagged with a correlation id, so many requests can be in flight
+	 * and their replies may arrive in any order. May be called from any thread.
+	 * @param payload request text
+	 * @param callback called on the TaskThread when the reply arrives or the request fails,
+	 * or <b>null</b> to use the returned PendingReply only
+	 * @return the PendingReply, a Future that completes with the reply text
+	 */
+	public static PendingReply request(String payload, PendingReply.Callback callback) {
+		PendingReply	pr	= new PendingReply(payload, callback, hTask);
+		hTask.sendCommand(CM_REQUEST, 0, 0, pr);
+		return pr;
+	}
+
+	/*****************************
+	 * Send an idempotent request, see request(), whose reply is kept in the ResponseCache
+	 * for a time. The same request is answered from the cache while its reply is kept,
+	 * or shares the round trip of the same request in flight. Without cacheBytes it is
+	 * the same as request(). May be called from any thread.
+	 * @param payload request text, also the key of the reply in the cache
+	 * @param ttlMs time to keep the reply in milliseconds
+	 * @param callback called on the TaskThread when the reply arrives or the request fails,
+	 * or <b>null</b> to use the returned PendingReply only
+	 * @return the PendingReply, a Future that completes with the reply text
+	 */
+	public static PendingReply cachedRequest(String payload, int ttlMs, PendingReply.Callback callback) {
+		if (cacheBytes <= 0) {
+			return request(payload, callback);
+		}
+		PendingReply	pr	= new PendingReply(payload, callback, hTask);
+		PendingReply	call	= cache.lookup(pr, ttlMs, hTask);
+		if (null != call) {
+			hTask.sendCommand(CM_REQUEST, 0, 0, call);
+		}
+		return pr;
+	}
+
+	/*****************************
+	 * get the replies kept by cachedRequest(); its hits and misses are counted in metrics()
+	 * @return the cache
+	 */
+	public static ResponseCache responseCache() {
+		return cache;
+	}
+
+	/*****************************
+	 * Subscribe a listener to the records the server pushes on a topic. The first listener
+	 * of a topic subscribes all connections to it at the server. May be called from any thread.
+	 * @param topic name of the topic, up to TopicRegistry.MAX_TOPIC bytes in UTF-8
+	 * @param listener the listener
+	 * @param thread thread to call the listener on: TopicListener.ON_IO, ON_TASK or ON_MAIN
+	 */
+	public static void subscribe(String topic, TopicListener listener, int thread) {
+		Executor	handler	= null;
+		if (TopicListener.ON_TASK == thread) {
+			handler	= hTask;
+		} else if (TopicListener.ON_MAIN == thread) {
+			handler	= hTask.mainExecutor();
+		}
+		subscribe(topic, listener, handler);
+	}
+
+	/*****************************
+	 * Subscribe a listener to a topic, see subscribe(String, TopicListener, int), to be
+	 * called by an Executor, e.g. one that posts to the Handler of a worker thread.
+	 * @param topic name of the topic, up to TopicRegistry.MAX_TOPIC bytes in UTF-8
+	 * @param listener the listener
+	 * @param handler executor of the thread to call the listener on, <b>null</b> for the
+	 * receive thread of the connection
+	 */
+	public static void subscribe(String topic, TopicListener listener, Executor handler) {
+		if (topics.subscribe(topic, listener, handler)) {
+			hTask.sendCommand(CM_SUBSCRIBE, 1, 0, topic);
+		}
+	}
+
+	/*****************************
+	 * Unsubscribe a listener from a topic. The last listener of a topic unsubscribes all
+	 * connections from it at the server. May be called from any thread.
+	 * @param topic name of the topic
+	 * @param listener the listener
+	 */
+	public static void unsubscribe(String topic, TopicListener listener) {
+		if (topics.unsubscribe(topic, listener)) {
+			hTask.sendCommand(CM_SUBSCRIBE, 0, 0, topic);
+		}
+	}
+
+	/*****************************
+	 * Send a payload of any size as a stream of chunks, without holding it in memory,
+	 * see StreamSender. May be called from any thread.
+	 * @param src source of the payload; closed when the stream ends or fails
+	 * @param length length of the payload, or -1 if not known
+	 * @param listener called on the TaskThread with the progress, or <b>null</b>
+	 * @return the stream
+	 */
+	public static StreamSender sendStream(ReadableByteChannel src, long length, StreamSender.Listener listener) {
+		StreamSender	sender	= new StreamSender(src, length, listener);
+		hTask.sendCommand(CM_SENDSTREAM, 0, 0, sender);
+		return sender;
+	}
+
+	/*****************************
+	 * Send a file, from an offset to its end, as a stream of chunks, see StreamSender. The
+	 * data of the chunks is written from the file with FileChannel.transferTo(), without
+	 * passing through the heap. The chunks carry their offsets in the file, so a transfer
+	 * that broke off is resumed by sending the file again from the offset the server has.
+	 * May be called from any thread.
+	 * @param file the file
+	 * @param offset offset of the first byte to send, 0 for the whole file
+	 * @param listener called on the TaskThread with the progress, or <b>null</b>
+	 * @return the stream
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static StreamSender sendFile(File file, long offset, StreamSender.Listener listener) throws IOException {
+		FileInputStream	in	= new FileInputStream(file);
+		StreamSender	sender;
+		try {
+			sender	= new StreamSender(in.getChannel(), offset, listener);
+		} catch (RuntimeException e) {
+			in.close();
+			throw e;
+		}
+		hTask.sendCommand(CM_SENDSTREAM, 0, 0, sender);
+		return sender;
+	}
+
+	/*****************************
+	 * Send a request that the server answers with a stream, and write the stream to a file
+	 * at the offsets of its chunks, straight from the read buffer. The file is not
+	 * truncated first, so a transfer that broke off is resumed by a request for the rest,
+	 * from the length the file has; the file is cut to the length of the stream at its end.
+	 * May be called from any thread.
+	 * @param payload request text
+	 * @param file the file to write
+	 * @param callback called on the TaskThread when the last chunk is written or the
+	 * request fails, or <b>null</b> to use the returned PendingReply only
+	 * @return the PendingReply, a Future that completes with an empty reply
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static PendingReply receiveFile(String payload, File file, PendingReply.Callback callback) throws IOException {
+		PendingReply	pr	= new PendingReply(payload, callback, hTask);
+		pr.setSink(new RandomAccessFile(file, "rw").getChannel());
+		hTask.sendCommand(CM_REQUEST, 0, 0, pr);
+		return pr;
+	}
+
+	/*****************************
+	 * start sending a stream on a connection of the pool; a stream is not kept while
+	 * no link is up, as its source may not be read twice
+	 * @param sender the stream
+	 */
+	private static void startStream(StreamSender sender) {
+		SrvConnect	srvConnect	= nextLink();
+		if (null == srvConnect || !srvConnect.sendStream(sender)) {
+			sender.fail(new IOException("no connection"));
+		}
+	}
+
+	/*****************************
+	 * get the counters and latency histograms of the messaging
+	 * @return the metrics
+	 */
+	public static Metrics metrics() {
+		return Metrics.global;
+	}
+
+	/*****************************
+	 * test if a connection with the server is wanted, i.e. it is established or being
+	 * (re)connected
 	 * @return <b>true</b> if so, <b>false</b> if not
 	 */
 	public static boolean isConnected() {
-		return bConnected;
+		return ST_CLOSED != state;
 	}
 
 	/*****************************
-	 * write a record
+	 * get the state of the connection with the server
+	 * @return ST_CLOSED, ST_CONNECTING, ST_CONNECTED, ST_BACKOFF or ST_IDLE
 	 */
-	private static void writeSrv() {
-		Log.i(TAG, "... writeSrv>>prepare read");
+	public static int getState() {
+		return state;
+	}
 
-		// prepare to receive data
-		srvConnect.sendReadCmd(CM_READ_INIT);
+	/*****************************
+	 * write a request on a connection of the pool
+	 * @param pr the request
+	 */
+	private static void sendRequest(PendingReply pr) {
+		if (pr.isDone()) {
+			return;			// cancelled while waiting for a link
+		}
+		SrvConnect	srvConnect	= nextLink();
+		if (null == srvConnect) {
+			if (ST_CLOSED == state || !keepPending(pr)) {
+				pr.fail(new IOException("request not sent"));
+			}
+			return;
+		}
+		if (!srvConnect.request(pr)) {
+			pr.fail(new IOException("request not sent"));
+		}
+	}
+
+	/*****************************
+	 * write a record; a text record goes through the Outbox if there is one, and anything
+	 * else than a record is answered with DW_WRITE_SRV_NULL
+	 * @param rec record text, or BinaryCodec.Message for CM_WRITEMSG, passed in Message.obj
+	 */
+	private static void writeSrv(Object rec) {
+		if (!(rec instanceof CharSequence) && !(rec instanceof BinaryCodec.Message)) {
+			Log.i(TAG, "... writeSrv: no record");
+			hTask.sendResult(DW_WRITE_SRV_NULL);
+			return;
+		}
+		if (rec instanceof CharSequence) {
+			openOutbox();
+		}
+		if (null != outbox && rec instanceof CharSequence) {
+			long	seq	= outbox.append((CharSequence) rec);
+			if (seq < 0) {
+				hTask.sendResult(DW_WRITE_SRV_BUSY);	// journal full
+				return;
+			}
+			pumpOutbox();
+			hTask.sendResult(outbox.isSent(seq)? DW_WRITE_SRV: DW_WRITE_SRV_QUEUED);
+			return;
+		}
+		SrvConnect	srvConnect	= nextLink();
+		if (null == srvConnect) {
+			if (ST_CLOSED == state) {
+				hTask.sendResult(DW_WRITE_SRV_NULL);
+			} else {
+				// no link up yet, send when the connection is back
+				hTask.sendResult(keepPending(rec)? DW_WRITE_SRV_QUEUED: DW_WRITE_SRV_BUSY);
+			}
+			return;
+		}
+		if (!bSelectorLoop && !bEventLoop) {
+			// the event loop reads continuously; the receive thread needs a read command
+			if (bTrace) Log.i(TAG, "... writeSrv>>prepare read");
+
+			// prepare to receive data
+			srvConnect.sendReadCmd(CM_READ_INIT);
+		}
 
-		Log.i(TAG, "... writeSrv>>write record");
+		if (bTrace) Log.i(TAG, "... writeSrv>>write record");
 
-		srvConnect.writeRecord();
+		int rc	= (rec instanceof BinaryCodec.Message)?
+				srvConnect.writeMessage((BinaryCodec.Message) rec): srvConnect.writeRecord((CharSequence) rec);
 
-		Log.i(TAG, "... writeSrv>>done:"+DW_WRITE_SRV);
-		hTask.sendResult(DW_WRITE_SRV);
+		if (bTrace) Log.i(TAG, "... writeSrv>>done:"+rc);
+		hTask.sendResult(rc);
 	}
 
 }
@@ -0,0 +1,99 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * <h1>the Dispatcher interface</h1>
+ * The thread that runs the commands of DispatchWork, the TaskThread, as the messaging core
+ * sees it: commands and tasks are queued to it, and results are passed on by it.
+ * <br>
+ * DispatchWork, SrvConnect and the classes around them only use this interface, so the
+ * core does not depend on the Android platform. On Android it is TaskFragment.TaskHandler,
+ * whose Looper runs the commands and which passes the results to the MainHandler. On a JVM
+ * it is a ThreadDispatcher.
+ * <br>
+ * A command is run with DispatchWork.doWork(). Control commands (DispatchWork.isControl())
+ * that are due now run ahead of the data commands queued, in their own order.
+ * All methods may be called from any thread, unless noted; execute() is post().
+ */
+public interface Dispatcher extends Executor {
+
+	/*****************************
+	 * Run a task on the TaskThread.
+	 * @param r the task
+	 * @return <b>true</b> if queued, <b>false</b> if the thread has ended
+	 */
+	public boolean	post(Runnable r);
+
+	/*****************************
+	 * Run a task on the TaskThread after a delay.
+	 * @param r the task
+	 * @param delayMillis delay in milliseconds
+	 * @return <b>true</b> if queued, <b>false</b> if the thread has ended
+	 */
+	public boolean	postDelayed(Runnable r, long delayMillis);
+
+	/*****************************
+	 * Remove a task that is queued, e.g. a delayed one.
+	 * @param r the task
+	 */
+	public void 	removeCallbacks(Runnable r);
+
+	/*****************************
+	 * Queue a command for DispatchWork.doWork().
+	 * @param what command code
+	 * @param arg1 first int argument
+	 * @param arg2 second int argument
+	 * @param obj object argument, or <b>null</b>
+	 */
+	public void 	sendCommand(int what, int arg1, int arg2, Object obj);
+
+	/*****************************
+	 * Queue a command for DispatchWork.doWork() after a delay.
+	 * @param what command code
+	 * @param obj object argument, or <b>null</b>
+	 * @param delayMillis delay in milliseconds
+	 */
+	public void 	sendCommandDelayed(int what, Object obj, long delayMillis);
+
+	/*****************************
+	 * Remove the queued commands with a command code, e.g. a delayed CM_RECONNECT.
+	 * @param what command code
+	 */
+	public void 	removeMessages(int what);
+
+	/*****************************
+	 * Pass a result code on, to the UI on Android.
+	 * @param n result code, one of the DispatchWork DW_ codes
+	 */
+	public void 	sendResult(int n);
+
+	/*****************************
+	 * Pass a result with its event on, to the UI on Android.
+	 * @param n result code, one of the DispatchWork DW_ codes
+	 * @param ev event with the result and its payload; recycled by the receiver
+	 */
+	public void 	sendResult(int n, MsgEvent ev);
+
+	/*****************************
+	 * @return executor of the main thread, for TopicListener.ON_MAIN
+	 */
+	public Executor	mainExecutor();
+
+	/*****************************
+	 * Get the EventLoop run by the TaskThread itself, for DispatchWork.bEventLoop, and
+	 * start polling it. Must be called from the TaskThread.
+	 * @return the event loop
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public EventLoop	eventLoop() throws IOException;
+
+	/*****************************
+	 * Start the blocking reader of a connection, which connects its channel, when
+	 * DispatchWork.readExecutor is not set: a ReceiveData thread with a Looper on Android.
+	 * @param sc server connection object, with its blocking channel not connected yet
+	 * @return the reader
+	 */
+	public BlockingReader	startReader(SrvConnect sc);
+
+}
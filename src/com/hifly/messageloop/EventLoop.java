@@ -0,0 +1,274 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * <h1>the EventLoop class</h1>
+ * Handles the socket I/O of non-blocking SocketChannels with a single java.nio Selector.
+ * <br>
+ * poll() waits for OP_CONNECT, OP_READ and OP_WRITE readiness of the registered
+ * connections and handles it:
+ * <ul><li>
+ * reads are done continuously, so unsolicited data pushed by the server is seen as
+ * soon as it arrives, and every decoded frame is sent as result to the MainHandler;
+ * </li><li>
+ * records queued by SrvConnect are written in batches as soon as the socket is writable;
+ * </li><li>
+ * connects are completed, or given up after SrvConnect.connectTimeout();
+ * </li><li>
+ * with TLS, the handshake is done on the same readiness events before the link is
+ * reported up, within the same timeout.
+ * </li></ul>
+ * Link changes are reported to the TaskThread with SrvConnect.linkEvent().
+ * <br>
+ * An EventLoop is run either by a SelectorLoop thread for one connection, or, when
+ * DispatchWork.bEventLoop is set, by the TaskThread itself for all connections, so that
+ * commands and socket I/O are handled by one thread, see Dispatcher.
+ * All methods except wakeup() must be called by the thread that runs the loop.
+ */
+public class EventLoop {
+	private static final String 	EL_TAG = "EventLoop";
+	private final Dispatcher	hTask;	//handler of worker thread
+	private final Selector      	selector;
+	private volatile Thread     	owner;			// thread that runs poll()
+	private int 	    	    	nConnections = 0;
+
+	/**
+	 * a registered connection
+	 */
+	private static class Conn {
+		final SrvConnect	sc;
+		final SocketChannel	ch;
+		final long  	    connectDeadline;
+
+		Conn(SrvConnect sc, SocketChannel ch) {
+			this.sc	= sc;
+			this.ch	= ch;
+			connectDeadline	= System.currentTimeMillis() + sc.connectTimeout();
+		}
+	}
+
+	/*****************************
+	 * <h1>EventLoop constructor</h1>
+	 * @param handle message handler of the Task Thread
+	 * @throws IOException if the selector cannot be opened
+	 */
+	EventLoop(Dispatcher handle) throws IOException {
+		hTask   	= handle;
+		selector	= Selector.open();
+	}
+
+	/*****************************
+	 * Add a connection to the loop. CM_LINK_UP is reported right away if the channel
+	 * is connected already, else when its connect (and TLS handshake) completes.
+	 * @param sc server connection object
+	 * @param ch non-blocking socket channel, connected or with a pending connect
+	 * @throws IOException if the channel cannot be registered
+	 */
+	void register(SrvConnect sc, SocketChannel ch) throws IOException {
+		ch.register(selector, ch.isConnectionPending()? SelectionKey.OP_CONNECT: SelectionKey.OP_READ,
+				new Conn(sc, ch));
+		nConnections++;
+		if (ch.isConnected()) {
+			connected(ch.keyFor(selector));
+		}
+	}
+
+	/*****************************
+	 * Remove a connection from the loop, e.g. when it is closed.
+	 * @param ch the socket channel of the connection
+	 */
+	void cancel(SocketChannel ch) {
+		SelectionKey	key	= ch.keyFor(selector);
+		if (null != key && key.isValid()) {
+			key.cancel();
+			nConnections--;
+		}
+	}
+
+	/*****************************
+	 * @return number of connections in the loop
+	 */
+	int size() {
+		return nConnections;
+	}
+
+	/*****************************
+	 * Wait for and handle the socket I/O of the connections once.
+	 * @param maxWait longest wait in milliseconds: -1 to not wait, 0 to wait without limit
+	 * @throws IOException if the selector fails
+	 */
+	void poll(long maxWait) throws IOException {
+		owner	= Thread.currentThread();
+		long	timeout	= maxWait;
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid()) {
+				continue;
+			}
+			Conn	c	= (Conn) key.attachment();
+			if (c.ch.isConnectionPending() || c.sc.isHandshaking()) {
+				long	left	= c.connectDeadline - System.currentTimeMillis();
+				if (left <= 0) {
+					Log.i(EL_TAG, "... connect timeout");
+					fail(key, false);
+					continue;
+				}
+				timeout	= earliest(timeout, left);
+				if (!c.ch.isConnectionPending()) {		// TLS handshake
+					key.interestOps((0 == c.sc.writeDelay())
+							? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+							: SelectionKey.OP_READ);
+				}
+				continue;
+			}
+			// ask for write readiness only when the queued frames are to be written,
+			// and wake up at the end of the batch window otherwise
+			long	delay	= c.sc.writeDelay();
+			key.interestOps((0 == delay)
+					? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+					: SelectionKey.OP_READ);
+			if (delay > 0) {
+				timeout	= earliest(timeout, delay);
+			}
+		}
+		if (timeout < 0) {
+			selector.selectNow();
+		} else {
+			selector.select(timeout);
+		}
+		Iterator<SelectionKey>	it	= selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey	key	= it.next();
+			it.remove();
+			if (key.isValid()) {
+				handle(key);
+			}
+		}
+	}
+
+	/*****************************
+	 * combine two waits of poll(), -1 being now and 0 no limit
+	 */
+	private static long earliest(long a, long b) {
+		if (a < 0 || b < 0) {
+			return -1;
+		}
+		if (0 == a || 0 == b) {
+			return Math.max(a, b);
+		}
+		return Math.min(a, b);
+	}
+
+	/*****************************
+	 * handle the readiness of a connection
+	 */
+	private void handle(SelectionKey key) {
+		Conn	c	= (Conn) key.attachment();
+		try {
+			if (key.isConnectable()) {
+				try {
+					if (!c.ch.finishConnect()) {
+						return;
+					}
+				} catch (IOException e) {
+					Log.i(EL_TAG, "... connect failed: "+e);
+					fail(key, false);
+					return;
+				}
+				Log.i(EL_TAG, "... connected: "+c.ch);
+				connected(key);
+				return;
+			}
+			if (c.sc.isHandshaking()) {
+				connected(key);
+				if (c.sc.isHandshaking()) {
+					return;
+				}
+			}
+			if (key.isWritable()) {
+				c.sc.flushQueue();
+			}
+			if (key.isReadable()) {
+				// TLS may hold back data that did not fit in the read buffer
+				do {
+					if (c.sc.readAvailable() < 0) {
+						fail(key, true);
+						return;
+					}
+					MsgEvent	ev;
+					while (null != (ev = c.sc.nextRecord())) {
+						hTask.sendResult(DispatchWork.DW_READ_SRV, ev);
+					}
+				} while (c.sc.hasBufferedInput());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail(key, true);
+		}
+	}
+
+	/*****************************
+	 * Continue the TLS handshake of a connected channel, if any, and report CM_LINK_UP
+	 * when it is done. A failed handshake is reported as a failed connect.
+	 */
+	private void connected(SelectionKey key) {
+		Conn	c	= (Conn) key.attachment();
+		try {
+			if (!c.sc.handshake()) {
+				return;					// poll() sets the interest of the handshake
+			}
+		} catch (IOException e) {
+			Log.i(EL_TAG, "... TLS handshake failed: "+e);
+			Metrics.global.errors.incrementAndGet();
+			fail(key, false);
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		c.sc.linkEvent(DispatchWork.CM_LINK_UP);
+	}
+
+	/*****************************
+	 * drop a failed connection from the loop and report its link down
+	 */
+	private void fail(SelectionKey key, boolean bConnected) {
+		Conn	c	= (Conn) key.attachment();
+		key.cancel();
+		nConnections--;
+		if (bConnected) {
+			hTask.sendResult(DispatchWork.DW_READ_SRV_NULL);
+		}
+		c.sc.linkEvent(DispatchWork.CM_LINK_DOWN);
+	}
+
+	/*****************************
+	 * Wake up the loop from another thread, e.g. to pick up newly queued records.
+	 * The thread that runs the loop sees them anyway at its next poll().
+	 */
+	void wakeup() {
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/*****************************
+	 * @return <b>true</b> if called by the thread that runs the loop
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == owner;
+	}
+
+	/*****************************
+	 * close the selector
+	 */
+	void close() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
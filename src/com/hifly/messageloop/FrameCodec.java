@@ -0,0 +1,200 @@
+package com.hifly.messageloop;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * <h1>the FrameCodec class</h1>
+ * Length-prefixed framing of the records exchanged with the server.
+ * <br>
+ * TCP is a byte stream, so records written by one side may arrive coalesced or split
+ * at the other side. Each record is therefore preceded on the wire by a header with
+ * the payload length and a correlation id, in the byte order of the buffer (little-endian
+ * for the connection buffers):
+ * <pre>
+ *   | int length | int id | payload (length bytes) |
+ * </pre>
+ * A request sent with an id &gt; 0 is answered by the server with a frame carrying the
+ * same id, so several requests can be in flight on one connection and their replies may
+ * arrive in any order. Id 0 is used for records without a reply to match, like server pushes.
+ * Negative ids are control frames of the connection itself, like ID_HELLO, ID_SEQ and ID_PING,
+ * the frames of the topic subscriptions, ID_SUBSCRIBE and ID_TOPIC,
+ * and the invalidations of cached replies, ID_INVALIDATE.
+ * <br>
+ * The 3 high bits of the length are flags of the frame, like FLAG_COMPRESSED; the length
+ * itself is limited to LENGTH_MASK.
+ * <br>
+ * On link up the client sends a HELLO frame with an int of capability bits; the server
+ * answers with a HELLO frame holding the capabilities it accepts. A capability is only
+ * used towards the server after it was accepted.
+ * <br>
+ * The class consists of static methods only and does not need instantiation.
+ */
+public class FrameCodec {
+	/**
+	 * number of bytes in the frame header
+	 */
+	public static final int	HEADER_LEN = 8;
+	/**
+	 * correlation id of records that are not a reply to a request
+	 */
+	public static final int	ID_NONE = 0;
+	/**
+	 * correlation id of the HELLO control frame that negotiates the capabilities
+	 */
+	public static final int	ID_HELLO = -1;
+	/**
+	 * correlation id of a sequenced record of the Outbox and of its acknowledgement; the
+	 * payload starts with the long sequence number, see Outbox.CAP_ACK
+	 */
+	public static final int	ID_SEQ = -2;
+	/**
+	 * correlation id of a heartbeat ping, which the server returns unchanged as pong;
+	 * the payload is a long timestamp, see Heartbeat
+	 */
+	public static final int	ID_PING = -3;
+	/**
+	 * correlation id of a record pushed by the server on a topic; the payload starts with
+	 * the short length and the UTF-8 bytes of the topic name, see TopicRegistry
+	 */
+	public static final int	ID_TOPIC = -4;
+	/**
+	 * correlation id of a subscription to a topic, which the server returns unchanged; the
+	 * payload is a byte 1 to subscribe or 0 to unsubscribe, and the UTF-8 bytes of the topic
+	 */
+	public static final int	ID_SUBSCRIBE = -5;
+	/**
+	 * correlation id of an invalidation pushed by the server: the payload is the text of the
+	 * request whose cached reply is dropped, or empty to drop all, see ResponseCache
+	 */
+	public static final int	ID_INVALIDATE = -6;
+	/**
+	 * frame flag: the payload is compressed, see FrameCompressor
+	 */
+	public static final int	FLAG_COMPRESSED = 0x80000000;
+	/**
+	 * frame flag: the payload is a binary message, see BinaryCodec
+	 */
+	public static final int	FLAG_BINARY = 0x40000000;
+	/**
+	 * frame flag: the payload is a chunk of a stream, see StreamSender
+	 */
+	public static final int	FLAG_CHUNK = 0x20000000;
+	/**
+	 * mask of the payload length in the length field; the other bits are flags
+	 */
+	public static final int	LENGTH_MASK = 0x1FFFFFFF;
+
+	/*****************************
+	 * Append a frame with the given payload to a buffer in fill mode.
+	 * @param dst buffer to write the frame into
+	 * @param id correlation id, or ID_NONE
+	 * @param payload source of the payload bytes
+	 * @param off offset of the payload in the source array
+	 * @param len number of payload bytes
+	 * @return <b>true</b> if the frame was appended, <b>false</b> if it does not fit
+	 */
+	static boolean encode(ByteBuffer dst, int id, byte[] payload, int off, int len) {
+		if (dst.remaining() < HEADER_LEN + len) {
+			return false;
+		}
+		dst.putInt(len);
+		dst.putInt(id);
+		dst.put(payload, off, len);
+		return true;
+	}
+
+	/*****************************
+	 * Reserve room for a frame header in a buffer in fill mode, so the payload can be
+	 * written in place, e.g. by a CharsetEncoder. Complete the frame with endFrame().
+	 * @param dst buffer to write the frame into
+	 * @return index of the frame header in the buffer, or -1 if the header does not fit
+	 */
+	static int beginFrame(ByteBuffer dst) {
+		if (dst.remaining() < HEADER_LEN) {
+			return -1;
+		}
+		int start	= dst.position();
+		dst.position(start + HEADER_LEN);
+		return start;
+	}
+
+	/*****************************
+	 * Fill in the header of a frame started with beginFrame(); the payload is the data
+	 * written to the buffer since.
+	 * @param dst buffer holding the frame
+	 * @param start index of the frame header as returned by beginFrame()
+	 * @param id correlation id, or ID_NONE
+	 * @return payload length of the frame
+	 */
+	static int endFrame(ByteBuffer dst, int start, int id) {
+		int len	= dst.position() - start - HEADER_LEN;
+		dst.putInt(start, len);
+		dst.putInt(start + 4, id);
+		return len;
+	}
+
+	/*****************************
+	 * Test if a buffer in fill mode, i.e. the way it is passed to SocketChannel.read(),
+	 * holds at least one complete frame starting at index 0.
+	 * @param src buffer being filled from the socket
+	 * @return <b>true</b> if a complete frame is available, <b>false</b> if not
+	 * @throws ProtocolException if the frame header is invalid or the frame can never fit in the buffer
+	 */
+	static boolean hasFrame(ByteBuffer src) throws ProtocolException {
+		if (src.position() < HEADER_LEN) {
+			return false;
+		}
+		int len	= checkLength(src, src.getInt(0));
+		return src.position() >= HEADER_LEN + len;
+	}
+
+	/*****************************
+	 * Consume the header of the next frame from a buffer in drain mode (after flip()).
+	 * On success the buffer position is at the first payload byte; if the frame is
+	 * not complete yet the buffer is left untouched.
+	 * @param src buffer to drain
+	 * @return payload length of the next frame, or -1 if no complete frame is available
+	 * @throws ProtocolException if the frame header is invalid or the frame can never fit in the buffer
+	 */
+	static int nextFrame(ByteBuffer src) throws ProtocolException {
+		if (src.remaining() < HEADER_LEN) {
+			return -1;
+		}
+		int len	= checkLength(src, src.getInt(src.position()));
+		if (src.remaining() < HEADER_LEN + len) {
+			return -1;
+		}
+		src.position(src.position() + HEADER_LEN);
+		return len;
+	}
+
+	/*****************************
+	 * Get the flags of the frame whose header was just consumed by nextFrame().
+	 * @param src buffer positioned at the first payload byte of the frame
+	 * @return flags of the frame, e.g. FLAG_COMPRESSED
+	 */
+	static int frameFlags(ByteBuffer src) {
+		return src.getInt(src.position() - HEADER_LEN) & ~LENGTH_MASK;
+	}
+
+	/*****************************
+	 * Get the correlation id of the frame whose header was just consumed by nextFrame().
+	 * @param src buffer positioned at the first payload byte of the frame
+	 * @return correlation id of the frame
+	 */
+	static int frameId(ByteBuffer src) {
+		return src.getInt(src.position() - 4);
+	}
+
+	/*****************************
+	 * validate a payload length read from a frame header
+	 */
+	private static int checkLength(ByteBuffer buf, int field) throws ProtocolException {
+		int len	= field & LENGTH_MASK;
+		if (len > buf.capacity() - HEADER_LEN) {
+			throw new ProtocolException("invalid frame length: "+len);
+		}
+		return len;
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.hifly.messageloop;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <h1>the FrameCompressor class</h1>
+ * Per-frame Deflate compression of frame payloads.
+ * <br>
+ * A frame is compressed on its own, so it can be inflated without the frames before it,
+ * and is marked with FrameCodec.FLAG_COMPRESSED. Only payloads of at least the threshold
+ * size are compressed, and only if they get smaller. Both sides may use a preset
+ * dictionary with text common to the records, which helps most for short records.
+ * <br>
+ * The Deflater, Inflater and their byte arrays are reused, so no objects are allocated
+ * per frame once the arrays have grown to the largest frame. compress() is used by the
+ * writing thread only and inflate() by the reading thread only.
+ */
+public class FrameCompressor {
+	/**
+	 * HELLO capability bit for per-frame Deflate compression
+	 */
+	public static final int	CAP_DEFLATE = 1;
+
+	private final int   	    	threshold;
+	private final byte[]	    	dictionary;
+	private final Deflater  	    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final Inflater  	    inflater = new Inflater(true);
+	private byte[]  	    	deflateIn = new byte[0], deflateOut = new byte[0];	// writing thread
+	private byte[]  	    	inflateIn = new byte[0], inflateOut = new byte[0];	// reading thread
+	private ByteBuffer  	    	inflated = ByteBuffer.wrap(inflateOut).order(ByteOrder.LITTLE_ENDIAN);
+
+	/*****************************
+	 * <h1>FrameCompressor constructor</h1>
+	 * @param threshold smallest payload in bytes that is compressed
+	 * @param dictionary preset dictionary shared with the server, or <b>null</b>
+	 */
+	FrameCompressor(int threshold, byte[] dictionary) {
+		this.threshold	= threshold;
+		this.dictionary	= dictionary;
+	}
+
+	/*****************************
+	 * Compress the payload of a complete frame in place, if it is large enough and
+	 * gets smaller. The buffer position is moved to the new end of the frame.
+	 * @param dst buffer in fill mode that ends with the frame
+	 * @param start index of the frame header in the buffer
+	 * @return <b>true</b> if the payload was compressed, <b>false</b> if it is left as is
+	 */
+	boolean compress(ByteBuffer dst, int start) {
+		int 	len 	= dst.position() - start - FrameCodec.HEADER_LEN;
+		if (len < threshold) {
+			return false;
+		}
+		if (deflateIn.length < len) {
+			deflateIn	= new byte[len];
+			deflateOut	= new byte[len];
+		}
+		dst.position(start + FrameCodec.HEADER_LEN);
+		dst.get(deflateIn, 0, len);
+
+		deflater.reset();
+		if (null != dictionary) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(deflateIn, 0, len);
+		deflater.finish();
+		int 	n	= 0;
+		while (!deflater.finished() && n < len) {
+			n	+= deflater.deflate(deflateOut, n, len - n);
+		}
+		if (!deflater.finished() || n >= len) {
+			return false;			// no gain, dst is at the end of the frame again
+		}
+		int 	flags	= dst.getInt(start) & ~FrameCodec.LENGTH_MASK;
+		dst.position(start + FrameCodec.HEADER_LEN);
+		dst.put(deflateOut, 0, n);
+		dst.putInt(start, n | flags | FrameCodec.FLAG_COMPRESSED);
+		return true;
+	}
+
+	/*****************************
+	 * Inflate a compressed payload. The result is valid until the next call.
+	 * @param src buffer in drain mode positioned at the payload; it is moved past the payload
+	 * @param len number of payload bytes
+	 * @param maxLen largest size of the inflated payload
+	 * @return little-endian buffer in drain mode with the inflated payload
+	 * @throws ProtocolException if the payload is corrupt or inflates to more than maxLen bytes
+	 */
+	ByteBuffer inflate(ByteBuffer src, int len, int maxLen) throws ProtocolException {
+		if (inflateIn.length < len) {
+			inflateIn	= new byte[len];
+		}
+		src.get(inflateIn, 0, len);
+		inflater.reset();
+		if (null != dictionary) {
+			inflater.setDictionary(dictionary);
+		}
+		inflater.setInput(inflateIn, 0, len);
+		int 	n	= 0;
+		try {
+			while (!inflater.finished()) {
+				if (n == inflateOut.length) {
+					if (n >= maxLen) {
+						throw new ProtocolException("inflated frame too large");
+					}
+					byte[]	b	= new byte[Math.min(maxLen, Math.max(BufferPool.MIN_SIZE, 2 * n))];
+					System.arraycopy(inflateOut, 0, b, 0, n);
+					inflateOut	= b;
+					inflated	= ByteBuffer.wrap(inflateOut).order(ByteOrder.LITTLE_ENDIAN);
+				}
+				int 	k	= inflater.inflate(inflateOut, n, inflateOut.length - n);
+				if (0 == k && !inflater.finished()) {
+					throw new ProtocolException("truncated compressed frame");
+				}
+				n	+= k;
+			}
+		} catch (DataFormatException e) {
+			throw new ProtocolException("corrupt compressed frame: "+e.getMessage());
+		}
+		inflated.clear();
+		inflated.limit(n);
+		return inflated;
+	}
+
+}
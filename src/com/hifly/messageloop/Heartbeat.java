@@ -0,0 +1,275 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the Heartbeat class</h1>
+ * Keepalive of a connection: dead-peer detection with ping frames, RTT measurement and
+ * closing of idle connections.
+ * <br>
+ * When nothing was read from the server for the ping interval, a FrameCodec.ID_PING frame
+ * is sent with the System.nanoTime() of the moment in its payload; the server returns it
+ * unchanged as pong, which gives a sample of the round trip time. Any frame read proves the
+ * peer is alive as well, so a busy connection is not pinged. Pings are only sent after the
+ * server accepted CAP_PING in its HELLO answer.
+ * <br>
+ * The interval adapts to the link: it starts at DispatchWork.heartbeatMs and doubles with
+ * every pong up to DispatchWork.heartbeatMaxMs, so a quiet but healthy link wakes the radio
+ * rarely. While records wait for a reply, the interval is the retransmission timeout (RTO)
+ * instead, so a stalled pipeline is probed right away.
+ * <br>
+ * A pong is missed when it does not arrive within the RTO, computed from the smoothed RTT
+ * and its variation like TCP does (srtt + 4 * rttvar). After DispatchWork.heartbeatMisses
+ * missed pongs the peer is declared dead and CM_LINK_DOWN is reported, so the connection is
+ * closed (which also ends a blocked read) and its requests in flight are sent again on
+ * another connection.
+ * <br>
+ * A connection without records sent or received for DispatchWork.idleTimeoutMs is reported
+ * with CM_IDLE, to be closed until there is something to send again.
+ * <br>
+ * The RTO also drives the timeouts: with DispatchWork.requestTimeoutMs set, a request without
+ * a reply after that time plus the RTO fails, and the RTT of the previous connection of a
+ * slot is kept, so its reconnect is given up after CONNECT_RTOS times the RTO.
+ * <br>
+ * run() is called on the TaskThread; the received() and pong methods by the receiving thread.
+ * A pong posts run() again, as the next check was set for the pong being overdue.
+ */
+public class Heartbeat implements Runnable {
+	/**
+	 * HELLO capability bit for ping frames answered by the server
+	 */
+	public static final int 	CAP_PING = 4;
+	/**
+	 * smallest and largest retransmission timeout in milliseconds
+	 */
+	public static final int 	MIN_RTO = 200, MAX_RTO = 60000;
+	/**
+	 * connect timeout in RTOs: the TCP connect and a TLS handshake of up to two round trips
+	 */
+	public static final int 	CONNECT_RTOS = 4;
+	private static final String 	HB_TAG = "Heartbeat";
+	private final SrvConnect    	sc;
+	private final Dispatcher	hTask;
+	private volatile long   	    lastRx;			// uptime of the last frame read
+	private volatile long   	    lastTraffic;	// uptime of the last record sent or read
+	private volatile long   	    pingSentAt = 0;	// uptime of the ping waiting for its pong, 0 if none
+	private volatile long   	    srtt = -1, rttvar = 0;	// smoothed RTT and its variation in nanoseconds
+	private volatile long   	    interval;		// current ping interval in milliseconds
+	private volatile int	    	missed = 0;
+	private boolean 	    	bRunning = false;
+	private long	    	    	nextRun = Long.MAX_VALUE;	// uptime of the check posted
+
+	/*****************************
+	 * <h1>Heartbeat constructor</h1>
+	 * @param sc the connection
+	 * @param handle message handler of the Task Thread
+	 */
+	Heartbeat(SrvConnect sc, Dispatcher handle) {
+		this.sc 	= sc;
+		hTask   	= handle;
+	}
+
+	/*****************************
+	 * Start watching the connection, when its link is up.
+	 */
+	void start() {
+		long	now	= uptime();
+		lastRx  	= now;
+		lastTraffic	= now;
+		interval	= DispatchWork.heartbeatMs;
+		missed  	= 0;
+		pingSentAt	= 0;
+		bRunning	= true;
+		schedule(nextCheck(now) - now);
+	}
+
+	/*****************************
+	 * Take the RTT estimate of the previous connection of the slot, before connecting.
+	 * @param prev heartbeat of the previous connection
+	 */
+	void seed(Heartbeat prev) {
+		srtt	= prev.srtt;
+		rttvar	= prev.rttvar;
+	}
+
+	/*****************************
+	 * Stop watching the connection, when it is closed.
+	 */
+	void stop() {
+		bRunning	= false;
+		hTask.removeCallbacks(this);
+	}
+
+	/*****************************
+	 * A frame was read from the server.
+	 * @param bTraffic <b>true</b> for a record, <b>false</b> for a control frame
+	 */
+	void received(boolean bTraffic) {
+		long	now	= uptime();
+		lastRx	= now;
+		if (bTraffic) {
+			lastTraffic	= now;
+		}
+	}
+
+	/*****************************
+	 * A request was sent: have it checked for its timeout, with DispatchWork.requestTimeoutMs.
+	 * Called on the TaskThread.
+	 */
+	void requestSent() {
+		if (!bRunning || DispatchWork.requestTimeoutMs <= 0) {
+			return;
+		}
+		long	now 	= uptime();
+		long	due 	= now + DispatchWork.requestTimeoutMs + rto();
+		if (due < nextRun) {
+			schedule(due - now);
+		}
+	}
+
+	/*****************************
+	 * A record was written to the server.
+	 */
+	void sent() {
+		lastTraffic	= uptime();
+	}
+
+	/*****************************
+	 * The server returned a ping: take its RTT sample and lengthen the interval.
+	 * @param sentNanos System.nanoTime() in the payload of the pong
+	 */
+	void pongReceived(long sentNanos) {
+		long	rtt	= System.nanoTime() - sentNanos;
+		if (rtt < 0) {
+			return;
+		}
+		Metrics.global.pingRtt.record(rtt);
+		if (srtt < 0) {
+			srtt	= rtt;
+			rttvar	= rtt / 2;
+		} else {
+			rttvar	= (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt	= (7 * srtt + rtt) / 8;
+		}
+		pingSentAt	= 0;
+		missed  	= 0;
+		interval	= Math.min(interval * 2, DispatchWork.heartbeatMaxMs);
+		if (DispatchWork.bTrace) Log.i(HB_TAG, "... pong, rtt "+rtt / 1000+"us, rto "+rto()+"ms");
+		hTask.post(this);		// the next check was set for an overdue pong
+	}
+
+	/*****************************
+	 * Get the retransmission timeout: the time after which an answer is overdue.
+	 * Before the first RTT sample it is DispatchWork.connectTimeout.
+	 * @return timeout in milliseconds
+	 */
+	long rto() {
+		if (srtt < 0) {
+			return DispatchWork.connectTimeout;
+		}
+		long	ms	= (srtt + 4 * rttvar) / 1000000;
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, ms));
+	}
+
+	/*****************************
+	 * Get the connect timeout: DispatchWork.connectTimeout, or CONNECT_RTOS times the RTO if
+	 * that is shorter.
+	 * @return timeout in milliseconds
+	 */
+	int connectTimeout() {
+		return (int) Math.min(DispatchWork.connectTimeout, CONNECT_RTOS * rto());
+	}
+
+	/*****************************
+	 * check the connection, on the TaskThread
+	 */
+	@Override
+	public void run() {
+		if (!bRunning) {
+			return;
+		}
+		long	now	= uptime();
+		long	nextTimeout	= Long.MAX_VALUE;
+		if (DispatchWork.requestTimeoutMs > 0) {
+			nextTimeout	= sc.expireRequests(DispatchWork.requestTimeoutMs + rto());
+		}
+		if (0 != pingSentAt) {
+			if (lastRx < pingSentAt && now - pingSentAt >= rto()) {
+				missed++;
+				if (DispatchWork.bTrace) Log.i(HB_TAG, "... pong missed "+missed+"/"+DispatchWork.heartbeatMisses+", rto "+rto()+"ms");
+				if (missed >= DispatchWork.heartbeatMisses) {
+					Log.i(HB_TAG, "-- peer is dead: "+sc);
+					Metrics.global.deadPeers.incrementAndGet();
+					bRunning	= false;
+					sc.linkEvent(DispatchWork.CM_LINK_DOWN);
+					return;
+				}
+				interval	= DispatchWork.heartbeatMs;
+				ping(now);
+			} else if (lastRx >= pingSentAt) {
+				pingSentAt	= 0;		// something else was read meanwhile
+				missed  	= 0;
+			}
+		} else if (DispatchWork.idleTimeoutMs > 0 && !sc.isBusy()
+				&& now - lastTraffic >= DispatchWork.idleTimeoutMs) {
+			Log.i(HB_TAG, "-- idle: "+sc);
+			bRunning	= false;
+			sc.linkEvent(DispatchWork.CM_IDLE);
+			return;
+		} else if (DispatchWork.heartbeatMs > 0 && now - lastRx >= pingInterval()) {
+			ping(now);
+		}
+		schedule(Math.min(nextCheck(now) - now, nextTimeout));
+	}
+
+	/*****************************
+	 * current ping interval: the RTO while records wait for a reply
+	 */
+	private long pingInterval() {
+		return (sc.getOutstanding() > 0)? Math.min(interval, rto()): interval;
+	}
+
+	/*****************************
+	 * send a ping, if the server answers them
+	 */
+	private void ping(long now) {
+		pingSentAt	= now;			// before the pong can arrive
+		if (!sc.ping(System.nanoTime())) {
+			pingSentAt	= 0;
+		}
+	}
+
+	/*****************************
+	 * uptime of the next check
+	 */
+	private long nextCheck(long now) {
+		long	next	= Long.MAX_VALUE;
+		if (0 != pingSentAt) {
+			next	= pingSentAt + rto();
+		} else if (DispatchWork.heartbeatMs > 0) {
+			next	= lastRx + pingInterval();
+		}
+		if (DispatchWork.idleTimeoutMs > 0) {
+			next	= Math.min(next, lastTraffic + DispatchWork.idleTimeoutMs);
+		}
+		return Math.max(next, now + MIN_RTO / 2);
+	}
+
+	/*****************************
+	 * monotonic time in milliseconds
+	 */
+	private static long uptime() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	/*****************************
+	 * post the next check, if there is anything to check
+	 */
+	private void schedule(long delay) {
+		hTask.removeCallbacks(this);
+		nextRun 	= Long.MAX_VALUE;
+		if (delay < Long.MAX_VALUE / 2) {
+			nextRun 	= uptime() + delay;
+			hTask.postDelayed(this, delay);
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.hifly.messageloop;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <h1>the LatencyHistogram class</h1>
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the way of HdrHistogram.
+ * <br>
+ * Values below 64 have a bucket each. Above, every power of two is split into 32 buckets,
+ * so a value is known within about 3%, from nanoseconds up to many minutes, with a fixed
+ * array of counters. Recording is lock-free and may be done from any thread.
+ */
+public class LatencyHistogram {
+	private static final int	SUB_BITS = 5;				// 32 buckets per power of two
+	private static final int	SUB_COUNT = 1 << SUB_BITS;
+	private static final int	LINEAR = 2 * SUB_COUNT;		// values with a bucket each
+	private static final int	NBUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT;
+	private final AtomicLongArray	counts = new AtomicLongArray(NBUCKETS);
+	private final AtomicLong    	total = new AtomicLong();
+	private final AtomicLong    	sum = new AtomicLong();
+	private final AtomicLong    	max = new AtomicLong();
+
+	/*****************************
+	 * Record a latency.
+	 * @param nanos latency in nanoseconds; negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		long	v	= Math.max(0, nanos);
+		counts.incrementAndGet(index(v));
+		total.incrementAndGet();
+		sum.addAndGet(v);
+		long	m;
+		while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+			// retry
+		}
+	}
+
+	/*****************************
+	 * @return number of recorded values
+	 */
+	public long count() {
+		return total.get();
+	}
+
+	/*****************************
+	 * @return mean of the recorded values in nanoseconds, 0 if none
+	 */
+	public long mean() {
+		long	n	= total.get();
+		return (0 == n)? 0: sum.get() / n;
+	}
+
+	/*****************************
+	 * @return largest recorded value in nanoseconds
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/*****************************
+	 * Get a percentile of the recorded values.
+	 * @param p percentile, e.g. 99.9
+	 * @return upper bound of the bucket holding the percentile in nanoseconds, 0 if none
+	 */
+	public long percentile(double p) {
+		long	n	= total.get();
+		if (0 == n) {
+			return 0;
+		}
+		long	rank	= Math.max(1, (long) Math.ceil(p / 100.0 * n));
+		long	seen	= 0;
+		for (int i = 0; i < NBUCKETS; i++) {
+			seen	+= counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/*****************************
+	 * Clear all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < NBUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/*****************************
+	 * Describe the histogram as "count mean p50 p99 p999 max", all in microseconds.
+	 * @param sb buffer to append to
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append(count()).append(' ').append(mean() / 1000)
+			.append(' ').append(percentile(50) / 1000)
+			.append(' ').append(percentile(99) / 1000)
+			.append(' ').append(percentile(99.9) / 1000)
+			.append(' ').append(max() / 1000);
+	}
+
+	/*****************************
+	 * get the bucket of a value
+	 */
+	private static int index(long v) {
+		if (v < LINEAR) {
+			return (int) v;
+		}
+		int 	shift	= 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;	// >= 1
+		int 	sub 	= (int) (v >>> shift);				// SUB_COUNT .. 2*SUB_COUNT-1
+		return LINEAR + (shift - 1) * SUB_COUNT + (sub - SUB_COUNT);
+	}
+
+	/*****************************
+	 * get the largest value of a bucket
+	 */
+	private static long upperBound(int i) {
+		if (i < LINEAR) {
+			return i;
+		}
+		int 	shift	= (i - LINEAR) / SUB_COUNT + 1;
+		long	sub 	= (i - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the Log class</h1>
+ * Log of the messaging core: android.util.Log on Android, or else the standard output, so
+ * the core also runs on a JVM without the Android platform.
+ * <br>
+ * The sink is chosen once: AndroidLog, which calls android.util.Log directly, if it can be
+ * loaded, so a log call costs no reflection. Log messages of the hot paths are built and
+ * logged only with DispatchWork.bTrace.
+ */
+final class Log {
+	private static final Sink   	sink = lookup();
+
+	/**
+	 * where the log messages go
+	 */
+	interface Sink {
+		void	i(String tag, String msg);
+	}
+
+	private Log() {
+	}
+
+	/*****************************
+	 * Log an info message.
+	 * @param tag source of the message
+	 * @param msg the message
+	 */
+	static void i(String tag, String msg) {
+		sink.i(tag, msg);
+	}
+
+	/*****************************
+	 * take AndroidLog if the Android platform is there, or else the standard output
+	 */
+	private static Sink lookup() {
+		try {
+			// loaded by name, as a JVM build does not have it
+			return (Sink) Class.forName("com.hifly.messageloop.AndroidLog").newInstance();
+		} catch (Exception e) {
+			// not in the build
+		} catch (LinkageError e) {
+			// no android.util.Log
+		}
+		return new Sink() {
+			@Override
+			public void i(String tag, String msg) {
+				System.out.println("I/"+tag+": "+msg);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the LogRing class</h1>
+ * Bounded log of the last lines shown in the UI.
+ * <br>
+ * The lines are kept in a ring buffer of a fixed capacity: when it is full, a new line
+ * replaces the oldest one, so the text shown does not grow without limit however many
+ * results arrive. Not thread safe; used by the main UI thread only.
+ */
+public class LogRing {
+	private final String[]  	lines;
+	private int 	    	    next = 0;		// index of the next line to write
+	private int 	    	    count = 0;
+
+	/*****************************
+	 * <h1>LogRing constructor</h1>
+	 * @param capacity number of lines kept
+	 */
+	LogRing(int capacity) {
+		lines	= new String[capacity];
+	}
+
+	/*****************************
+	 * Add a line, dropping the oldest one if the log is full.
+	 * @param line text of the line
+	 */
+	void add(String line) {
+		lines[next]	= line;
+		next	= (next + 1) % lines.length;
+		if (count < lines.length) {
+			count++;
+		}
+	}
+
+	/*****************************
+	 * @return number of lines in the log
+	 */
+	int size() {
+		return count;
+	}
+
+	/*****************************
+	 * drop all lines
+	 */
+	void clear() {
+		for (int i = 0; i < lines.length; i++) {
+			lines[i]	= null;
+		}
+		next	= 0;
+		count	= 0;
+	}
+
+	/*****************************
+	 * Append the lines from the oldest to the newest, each followed by a separator.
+	 * @param sb builder to append to
+	 * @param sep separator after each line
+	 * @return the builder
+	 */
+	StringBuilder appendTo(StringBuilder sb, String sep) {
+		int 	i	= (next - count + lines.length) % lines.length;
+		for (int n = 0; n < count; n++) {
+			sb.append(lines[i]).append(sep);
+			i	= (i + 1) % lines.length;
+		}
+		return sb;
+	}
+
+}
@@ -1,22 +1,46 @@
 package com.hifly.messageloop;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.TextView;
 
 /**
  * This MainActivity displays the screen's UI and starts a single TaskFragment that
  * will retain itself when configuration changes occur.
+ * <br>
+ * Results are not shown one by one: updActivity() only records them, and the views are
+ * updated at most once per display frame, so a burst of server messages costs one layout
+ * instead of one per message. The result log is a LogRing of the last LOG_LINES results.
  */
 public class MainActivity extends FragmentActivity implements TaskFragment.TaskCallbacks {
 	private static final String	TAG = MainActivity.class.getSimpleName();
 	private static final String	KEY_TEXT = "current_text";
+	private static final int	LOG_LINES = 100;	// results kept in the log view
+	private static final long	FRAME_MS = 16;		// frame interval before Jelly Bean
 	private TaskFragment	mTaskFragment;
 	private Button	    	mButton;
-	private EditText    	vw1, vw2;
+	private EditText    	vw1, vw2;		// record text, server address
+	private TextView    	vw3;			// result log
+	private final LogRing	mLog = new LogRing(LOG_LINES);
+	private final StringBuilder	mText = new StringBuilder();	// record text to show in vw1
+	private final StringBuilder	mLogText = new StringBuilder();	// text of vw3
+	private boolean     	bTextChanged = false;
+	private boolean     	bFrameScheduled = false;
+	private final Handler	mHandler = new Handler();
+	private Object	    	mFrameCallback;		// Choreographer.FrameCallback from Jelly Bean
+	private final Runnable	renderTask = new Runnable() {
+		@Override
+		public void run() {
+			render();
+		}
+	};
 
 
 	/* ****************************
@@ -31,6 +55,7 @@ public class MainActivity extends FragmentActivity implements TaskFragment.TaskC
 		// Initialize views
 		vw1    	= (EditText) findViewById(R.id.text1);
 		vw2    	= (EditText) findViewById(R.id.text2);
+		vw3    	= (TextView) findViewById(R.id.text3);
 		mButton	= (Button)   findViewById(R.id.task_button);
 
 		// Restore saved state
@@ -58,6 +83,19 @@ public class MainActivity extends FragmentActivity implements TaskFragment.TaskC
 		vw2.setText( DispatchWork.SERVERIP );
 	}
 
+	@Override
+	protected void onDestroy() {
+		Log.i(TAG, "onDestroy "+this);
+		if (bFrameScheduled) {
+			if (null != mFrameCallback) {
+				FrameScheduler.remove(mFrameCallback);
+			}
+			mHandler.removeCallbacks(renderTask);
+			bFrameScheduled	= false;
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	public void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
@@ -66,15 +104,19 @@ public class MainActivity extends FragmentActivity implements TaskFragment.TaskC
 
 	/*****************************
 	 * Called when task button is clicked. Sends connect command to DispatchWork with
-	 * ip address of server in server_IP.
+	 * ip address of server as its argument.
 	 * @param view calling UI object
 	 */
 	public void onBtnTask(View view) {
 		String txt	= getString(DispatchWork.isConnected()?R.string.start:R.string.cancel);
 		mButton.setText(txt);
-		DispatchWork.server_IP	= vw2.getText().toString().trim();
-		Log.i(TAG, "onBtnTask("+txt+")="+DispatchWork.server_IP);
-		mTaskFragment.doCmd(DispatchWork.isConnected()?DispatchWork.CM_CANCEL:DispatchWork.CM_START);
+		String	server	= vw2.getText().toString().trim();
+		Log.i(TAG, "onBtnTask("+txt+")="+server);
+		if (DispatchWork.isConnected()) {
+			mTaskFragment.doCmd(DispatchWork.CM_CANCEL);
+		} else {
+			mTaskFragment.doCmd(DispatchWork.CM_START, server);
+		}
 	}
 
 	/**
@@ -83,18 +125,79 @@ public class MainActivity extends FragmentActivity implements TaskFragment.TaskC
 	 * @param view calling UI object
 	 */
 	public void onBtnSend(View view) {
-		DispatchWork.val	= vw1.getText().toString().trim();
-		mTaskFragment.doCmd(DispatchWork.CM_WRITESRV);
+		mTaskFragment.doCmd(DispatchWork.CM_WRITESRV, vw1.getText().toString().trim());
 	}
 
 	/**
 	 * Callback to update the views with the return values from the TaskThread.
 	 * Called as result of an action of DispatchWork.
+	 * The result is recorded, and shown with the others of the same frame by render().
 	 * @param t text to display
+	 * @param ev event with the result and its payload, or <b>null</b>
+	 */
+	public void updActivity(String t, MsgEvent ev) {
+		if (null != ev && ev.getText().length() > 0) {
+			// the event is recycled on return, so keep a copy of its text
+			mText.setLength(0);
+			mText.append(ev.getText());
+			bTextChanged	= true;
+		}
+		mLog.add(t);
+		scheduleFrame();
+	}
+
+	/*****************************
+	 * Have render() called at the next display frame, if not done yet.
+	 */
+	private void scheduleFrame() {
+		if (bFrameScheduled) {
+			return;
+		}
+		bFrameScheduled	= true;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			if (null == mFrameCallback) {
+				mFrameCallback	= FrameScheduler.newCallback(renderTask);
+			}
+			FrameScheduler.post(mFrameCallback);
+		} else {
+			mHandler.postDelayed(renderTask, FRAME_MS);
+		}
+	}
+
+	/*****************************
+	 * update the views with the results recorded since the last frame
 	 */
-	public void updActivity(String t) {
-		vw1.setText(DispatchWork.val);
-		vw2.setText(vw2.getText() + t + " " );
+	private void render() {
+		bFrameScheduled	= false;
+		if (bTextChanged) {
+			vw1.setText(mText);
+			bTextChanged	= false;
+		}
+		mLogText.setLength(0);
+		vw3.setText(mLog.appendTo(mLogText, " "));
+	}
+
+	/**
+	 * Choreographer access, in a class of its own so that it is only loaded from
+	 * Jelly Bean (API 16) on.
+	 */
+	private static class FrameScheduler {
+		static Object newCallback(final Runnable task) {
+			return new Choreographer.FrameCallback() {
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					task.run();
+				}
+			};
+		}
+
+		static void post(Object callback) {
+			Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+		}
+
+		static void remove(Object callback) {
+			Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+		}
 	}
 
 
@@ -126,11 +229,5 @@ public class MainActivity extends FragmentActivity implements TaskFragment.TaskC
 		Log.i(TAG, "onStop "+this);
 		super.onStop();
 	}
-
-	@Override
-	protected void onDestroy() {
-		Log.i(TAG, "onDestroy "+this);
-		super.onDestroy();
-	}
 /* ********************** */
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package com.hifly.messageloop;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>the Metrics class</h1>
+ * Counters and latency histograms of the messaging, exposed by DispatchWork.metrics().
+ * <br>
+ * The counters and histograms can be updated from any thread without locking. dump()
+ * gives all values as "name value..." lines, so they can be read by a program as well.
+ */
+public final class Metrics {
+	/**
+	 * the one set of metrics of the process
+	 */
+	static final Metrics	global = new Metrics();
+
+	/**
+	 * bytes and records read from and written to the server
+	 */
+	public final AtomicLong 	bytesIn = new AtomicLong(), bytesOut = new AtomicLong(),
+			msgsIn = new AtomicLong(), msgsOut = new AtomicLong();
+	/**
+	 * reconnect attempts, and errors: failed connections, reads, writes and invalid frames
+	 */
+	public final AtomicLong 	reconnects = new AtomicLong(), errors = new AtomicLong();
+	/**
+	 * connections closed because the server did not answer the heartbeat pings
+	 */
+	public final AtomicLong 	deadPeers = new AtomicLong();
+	/**
+	 * TLS handshakes done, and how many of them resumed an earlier session
+	 */
+	public final AtomicLong 	tlsHandshakes = new AtomicLong(), tlsResumed = new AtomicLong();
+	/**
+	 * cached requests answered from the ResponseCache, sent to the server, and joined to
+	 * the same request in flight; replies evicted over the budget, and invalidations
+	 */
+	public final AtomicLong 	cacheHits = new AtomicLong(), cacheMisses = new AtomicLong(),
+			cacheJoined = new AtomicLong(), cacheEvictions = new AtomicLong(),
+			cacheInvalidations = new AtomicLong();
+	/**
+	 * time from writing a request to reading its reply
+	 */
+	public final LatencyHistogram	roundTrip = new LatencyHistogram();
+	/**
+	 * time a command waits in the TaskThread message queue (millisecond resolution), or in
+	 * its control lane
+	 */
+	public final LatencyHistogram	queueWait = new LatencyHistogram();
+	/**
+	 * time from creating a MsgEvent to its delivery to the UI by the MainHandler
+	 */
+	public final LatencyHistogram	uiDelay = new LatencyHistogram();
+	/**
+	 * round trip time of the heartbeat pings
+	 */
+	public final LatencyHistogram	pingRtt = new LatencyHistogram();
+	/**
+	 * duration of the TLS handshakes
+	 */
+	public final LatencyHistogram	tlsHandshake = new LatencyHistogram();
+
+	private Metrics() {
+	}
+
+	/*****************************
+	 * Clear all counters and histograms.
+	 */
+	public void reset() {
+		bytesIn.set(0);
+		bytesOut.set(0);
+		msgsIn.set(0);
+		msgsOut.set(0);
+		reconnects.set(0);
+		errors.set(0);
+		deadPeers.set(0);
+		tlsHandshakes.set(0);
+		tlsResumed.set(0);
+		cacheHits.set(0);
+		cacheMisses.set(0);
+		cacheJoined.set(0);
+		cacheEvictions.set(0);
+		cacheInvalidations.set(0);
+		roundTrip.reset();
+		queueWait.reset();
+		uiDelay.reset();
+		pingRtt.reset();
+		tlsHandshake.reset();
+	}
+
+	/*****************************
+	 * Get all values, one per line. Counters are "name value"; histograms are
+	 * "name count mean p50 p99 p999 max" with the times in microseconds.
+	 * @return the values
+	 */
+	public String dump() {
+		StringBuilder	sb	= new StringBuilder(256);
+		sb.append("bytes_in ").append(bytesIn.get()).append('\n');
+		sb.append("bytes_out ").append(bytesOut.get()).append('\n');
+		sb.append("msgs_in ").append(msgsIn.get()).append('\n');
+		sb.append("msgs_out ").append(msgsOut.get()).append('\n');
+		sb.append("reconnects ").append(reconnects.get()).append('\n');
+		sb.append("errors ").append(errors.get()).append('\n');
+		sb.append("dead_peers ").append(deadPeers.get()).append('\n');
+		sb.append("tls_handshakes ").append(tlsHandshakes.get()).append('\n');
+		sb.append("tls_resumed ").append(tlsResumed.get()).append('\n');
+		sb.append("cache_hits ").append(cacheHits.get()).append('\n');
+		sb.append("cache_misses ").append(cacheMisses.get()).append('\n');
+		sb.append("cache_joined ").append(cacheJoined.get()).append('\n');
+		sb.append("cache_evictions ").append(cacheEvictions.get()).append('\n');
+		sb.append("cache_invalidations ").append(cacheInvalidations.get()).append('\n');
+		sb.append("round_trip_us ");
+		roundTrip.appendTo(sb);
+		sb.append("\nqueue_wait_us ");
+		queueWait.appendTo(sb);
+		sb.append("\nui_delay_us ");
+		uiDelay.appendTo(sb);
+		sb.append("\nping_rtt_us ");
+		pingRtt.appendTo(sb);
+		sb.append("\ntls_handshake_us ");
+		tlsHandshake.appendTo(sb);
+		sb.append('\n');
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the MsgEvent class</h1>
+ * Result of a DispatchWork action or a record received from the server, as it is passed
+ * in Message.obj from the worker threads to the MainHandler.
+ * <br>
+ * An event carries the result code, the payload text with its length in bytes on the wire,
+ * and the System.nanoTime() at which it was created. It cannot be changed by its receiver.
+ * <br>
+ * Like android.os.Message, events are taken from a pool with obtain() and must be given back
+ * with recycle() by the final receiver, so a burst of records does not create garbage. The
+ * payload is copied into a text buffer of the event that is reused.
+ */
+public final class MsgEvent {
+	private static final int	MAX_POOL_SIZE = 50;
+	private static final Object	sPoolSync = new Object();
+	private static MsgEvent 	sPool;
+	private static int  	    	sPoolSize = 0;
+
+	private final StringBuilder	text = new StringBuilder();
+	private int 	    	    	code;
+	private int 	    	    	length;
+	private long	    	    	timestamp;
+	private MsgEvent    	    	next;		// link in the pool
+
+	private MsgEvent() {
+	}
+
+	/*****************************
+	 * Get an event from the pool, or create one if the pool is empty.
+	 * @param code result code, one of the DispatchWork DW_ codes
+	 * @param txt payload text, or <b>null</b>
+	 * @param len payload length in bytes
+	 * @return the event, to be returned with recycle()
+	 */
+	static MsgEvent obtain(int code, CharSequence txt, int len) {
+		MsgEvent	ev	= null;
+		synchronized (sPoolSync) {
+			if (null != sPool) {
+				ev  	= sPool;
+				sPool	= ev.next;
+				ev.next	= null;
+				sPoolSize--;
+			}
+		}
+		if (null == ev) {
+			ev	= new MsgEvent();
+		}
+		ev.code 	= code;
+		ev.length	= len;
+		ev.timestamp	= System.nanoTime();
+		ev.text.setLength(0);
+		if (null != txt) {
+			ev.text.append(txt);
+		}
+		return ev;
+	}
+
+	/*****************************
+	 * Get an event without payload from the pool.
+	 * @param code result code, one of the DispatchWork DW_ codes
+	 * @return the event, to be returned with recycle()
+	 */
+	static MsgEvent obtain(int code) {
+		return obtain(code, null, 0);
+	}
+
+	/*****************************
+	 * Return the event to the pool. It must not be used by the caller anymore.
+	 */
+	public void recycle() {
+		synchronized (sPoolSync) {
+			if (sPoolSize < MAX_POOL_SIZE) {
+				next	= sPool;
+				sPool	= this;
+				sPoolSize++;
+			}
+		}
+	}
+
+	/*****************************
+	 * @return result code, one of the DispatchWork DW_ codes
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/*****************************
+	 * @return payload text; valid until the event is recycled
+	 */
+	public CharSequence getText() {
+		return text;
+	}
+
+	/*****************************
+	 * @return payload length in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/*****************************
+	 * @return System.nanoTime() at which the event was created
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "<"+code+">["+length+"]";
+	}
+
+}
@@ -0,0 +1,446 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>the OutboundQueue class</h1>
+ * Queue of encoded frames waiting to be written to a connection.
+ * <br>
+ * Frames are collected until the batch window has passed or the queued bytes reach the
+ * batch size, and are then written with a single GatheringByteChannel.write(ByteBuffer[]),
+ * so a burst of records costs one system call instead of one per record.
+ * <br>
+ * When the queued bytes would exceed the queue limit, offer() refuses the frame, so the
+ * sender can hold back (backpressure) instead of letting the queue grow without bound.
+ * <br>
+ * The frames are queued in lanes, and interleaved on the wire when they are written:
+ * <ul><li>
+ * LANE_CONTROL: HELLO and ping frames, written before any other frame (strict priority);
+ * </li><li>
+ * LANE_RECORDS: records, messages and requests;
+ * </li><li>
+ * one lane per stream being sent, opened with openLane() under the stream id.
+ * </li></ul>
+ * The data lanes share the connection by deficit round robin, a form of weighted fair
+ * queuing: each turn a lane may write its weight times QUANTUM bytes, so the records get
+ * their share while a large stream is sent, and do not wait behind all of its chunks.
+ * A stream lane holds at most half the queue limit, so the records always find room.
+ * <br>
+ * The frames of a lane are written in the order they were queued. Only the frames of the
+ * gathering write at hand are taken from the lanes, so a frame that was written in part
+ * is completed before any other frame.
+ * <br>
+ * A frame may be followed by a FileRegion, the data of a file chunk: once the frame
+ * header is written, the region is written from the file with FileChannel.transferTo(),
+ * so the data is not copied through the heap (and, on a plain socket, not even through
+ * user space). The region is part of the frame for the limits and the lanes.
+ * <br>
+ * Frames are offered by one thread and flushed by one thread, which may be another one.
+ * The queue may be cleared by a third thread, e.g. when the TaskThread closes a connection
+ * that a SelectorLoop thread flushes, so flush() and clear() hold the lock of the queue.
+ * The frame buffers come from the BufferPool and are returned to it when written.
+ */
+public class OutboundQueue {
+	/**
+	 * lane of the control frames, and lane of the records
+	 */
+	public static final int 	LANE_CONTROL = -1, LANE_RECORDS = 0;
+	/**
+	 * number of bytes a data lane may write per turn, per unit of its weight
+	 */
+	public static final int 	QUANTUM = BufferPool.MIN_SIZE;
+	private static final int	MAX_GATHER = 64;	// frames per gathering write
+
+	/**
+	 * a lane of frames with its weight and deficit counter
+	 */
+	private static class Lane {
+		final int   	    	id;
+		final ConcurrentLinkedQueue<ByteBuffer>	frames = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicInteger 	nBytes = new AtomicInteger();
+		volatile int	    	weight;
+		volatile boolean    	bClosed = false;
+		int 	    	    	deficit = 0;		// used by the flushing thread
+
+		Lane(int id, int weight) {
+			this.id 	= id;
+			this.weight	= Math.max(1, weight);
+		}
+	}
+
+	/**
+	 * the data of a file chunk, written after its frame header
+	 */
+	static class FileRegion {
+		final FileChannel	file;
+		final boolean	    	bClose;		// close the file when the region is written or dropped
+		long	    	    	position;
+		long	    	    	remaining;
+
+		/*****************************
+		 * @param file the file
+		 * @param position position of the data in the file
+		 * @param count number of bytes
+		 * @param bClose <b>true</b> to close the file after this region, the last of the file
+		 */
+		FileRegion(FileChannel file, long position, long count, boolean bClose) {
+			this.file	= file;
+			this.position	= position;
+			this.remaining	= count;
+			this.bClose	= bClose;
+		}
+
+		/*****************************
+		 * write the data to a channel, as far as it takes it
+		 * @return number of bytes written
+		 */
+		long transferTo(GatheringByteChannel ch) throws IOException {
+			long	n	= file.transferTo(position, remaining, ch);
+			if (0 == n && position >= file.size()) {
+				throw new IOException("file ended at "+position);
+			}
+			position	+= n;
+			remaining	-= n;
+			return n;
+		}
+
+		void release() {
+			if (bClose) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private final Lane  	    	control = new Lane(LANE_CONTROL, 1);
+	private final CopyOnWriteArrayList<Lane>	dataLanes = new CopyOnWriteArrayList<Lane>();
+	private final ConcurrentHashMap<Integer, Lane>	laneById = new ConcurrentHashMap<Integer, Lane>();
+	private final ConcurrentLinkedQueue<ByteBuffer>	ready = new ConcurrentLinkedQueue<ByteBuffer>();	// taken for writing
+	private final AtomicInteger 	nFrames = new AtomicInteger();	// frames queued, not yet written
+	private final AtomicInteger 	nBytes = new AtomicInteger();	// bytes queued, not yet written
+	private final ByteBuffer[]  	gather = new ByteBuffer[MAX_GATHER];	// used by the flushing thread
+	private final Map<ByteBuffer, FileRegion>	regions = Collections.synchronizedMap(
+			new IdentityHashMap<ByteBuffer, FileRegion>());	// by the frame they follow
+	private FileRegion  	    	current;		// region being written, used by the flushing thread
+	private final long  	    	batchDelayNs;
+	private final int   	    	batchBytes, maxBytes;
+	private int 	    	    	turn = 0;		// data lane at turn, used by the flushing thread
+	private volatile long   	    firstQueued;	// time the oldest frame of the batch was queued
+
+	/*****************************
+	 * <h1>OutboundQueue constructor</h1>
+	 * @param batchDelay batch window in milliseconds, 0 to write as soon as possible
+	 * @param batchBytes number of queued bytes that ends the batch window early
+	 * @param maxBytes queue limit in bytes
+	 */
+	OutboundQueue(int batchDelay, int batchBytes, int maxBytes) {
+		this(batchDelay, batchBytes, maxBytes, 1);
+	}
+
+	/*****************************
+	 * <h1>OutboundQueue constructor</h1>
+	 * @param batchDelay batch window in milliseconds, 0 to write as soon as possible
+	 * @param batchBytes number of queued bytes that ends the batch window early
+	 * @param maxBytes queue limit in bytes
+	 * @param recordWeight weight of LANE_RECORDS
+	 */
+	OutboundQueue(int batchDelay, int batchBytes, int maxBytes, int recordWeight) {
+		this.batchDelayNs	= batchDelay * 1000000L;
+		this.batchBytes 	= batchBytes;
+		this.maxBytes   	= maxBytes;
+		openLane(LANE_RECORDS, recordWeight);
+	}
+
+	/*****************************
+	 * Open a data lane, e.g. for a stream, or change the weight of an open one.
+	 * @param id lane id, &gt; 0 for a stream: its stream id
+	 * @param weight share of the lane in the writes, relative to the other lanes
+	 */
+	void openLane(int id, int weight) {
+		Lane	lane	= laneById.get(id);
+		if (null != lane) {
+			lane.weight	= Math.max(1, weight);
+			return;
+		}
+		lane	= new Lane(id, weight);
+		laneById.put(id, lane);
+		dataLanes.add(lane);
+	}
+
+	/*****************************
+	 * Close a data lane; it is dropped once its frames are written.
+	 * @param id lane id
+	 */
+	void closeLane(int id) {
+		Lane	lane	= laneById.get(id);
+		if (null != lane && LANE_RECORDS != id) {
+			lane.bClosed	= true;
+		}
+	}
+
+	/*****************************
+	 * Queue a frame of LANE_RECORDS for writing.
+	 * @param frame encoded frame in drain mode (after flip())
+	 * @return <b>true</b> if queued, <b>false</b> if the queue limit would be exceeded
+	 */
+	boolean offer(ByteBuffer frame) {
+		return offer(frame, LANE_RECORDS);
+	}
+
+	/*****************************
+	 * Queue a frame for writing in a lane.
+	 * @param frame encoded frame in drain mode (after flip())
+	 * @param laneId LANE_CONTROL, LANE_RECORDS or the id of an open lane; a lane that is
+	 * not open is taken as LANE_RECORDS
+	 * @return <b>true</b> if queued, <b>false</b> if the queue limit would be exceeded
+	 */
+	boolean offer(ByteBuffer frame, int laneId) {
+		return offer(frame, null, laneId);
+	}
+
+	/*****************************
+	 * Queue a frame header for writing in a lane, followed by the file data of the frame.
+	 * @param frame encoded frame header in drain mode (after flip())
+	 * @param region the data of the frame, or <b>null</b>
+	 * @param laneId lane id, see offer(ByteBuffer, int)
+	 * @return <b>true</b> if queued, <b>false</b> if the queue limit would be exceeded
+	 */
+	boolean offer(ByteBuffer frame, FileRegion region, int laneId) {
+		int 	n	= frame.remaining() + ((null == region)? 0: (int) region.remaining);
+		if (!hasRoom(n, laneId)) {
+			return false;
+		}
+		if (null != region) {
+			regions.put(frame, region);
+		}
+		Lane	lane	= lane(laneId);
+		if (0 == nFrames.get()) {
+			firstQueued	= System.nanoTime();
+		}
+		nBytes.addAndGet(n);
+		lane.nBytes.addAndGet(n);
+		lane.frames.add(frame);
+		nFrames.incrementAndGet();		// after the frame is in its lane
+		return true;
+	}
+
+	/*****************************
+	 * get the lane of an id
+	 */
+	private Lane lane(int laneId) {
+		if (LANE_CONTROL == laneId) {
+			return control;
+		}
+		Lane	lane	= laneById.get(laneId);
+		return (null == lane)? laneById.get(LANE_RECORDS): lane;
+	}
+
+	/*****************************
+	 * test if a frame of LANE_RECORDS would be accepted by offer()
+	 * @param n size of the frame in bytes
+	 * @return <b>true</b> if so, <b>false</b> if the queue limit would be exceeded
+	 */
+	boolean hasRoom(int n) {
+		return hasRoom(n, LANE_RECORDS);
+	}
+
+	/*****************************
+	 * Test if a frame would be accepted by offer(). A stream lane may fill half the queue;
+	 * a control frame is always accepted.
+	 * @param n size of the frame in bytes
+	 * @param laneId lane of the frame
+	 * @return <b>true</b> if so, <b>false</b> if the queue limit would be exceeded
+	 */
+	boolean hasRoom(int n, int laneId) {
+		if (0 == nFrames.get() || LANE_CONTROL == laneId) {
+			return true;
+		}
+		if (nBytes.get() + n > maxBytes) {
+			return false;
+		}
+		Lane	lane	= lane(laneId);
+		return lane.id <= LANE_RECORDS || 0 == lane.nBytes.get()
+				|| lane.nBytes.get() + n <= maxBytes / 2;
+	}
+
+	/*****************************
+	 * test if there are no frames queued
+	 * @return <b>true</b> if so, <b>false</b> if not
+	 */
+	boolean isEmpty() {
+		return 0 == nFrames.get();
+	}
+
+	/*****************************
+	 * Get the time left in the batch window.
+	 * @return -1 if the queue is empty, 0 if the queued frames should be written now,
+	 * or else the number of milliseconds until they should be written
+	 */
+	long delayUntilReady() {
+		if (0 == nFrames.get()) {
+			return -1;
+		}
+		if (nBytes.get() >= batchBytes || !control.frames.isEmpty()) {
+			return 0;
+		}
+		long	left	= batchDelayNs - (System.nanoTime() - firstQueued);
+		return (left <= 0)? 0: Math.max(1, left / 1000000L);
+	}
+
+	/*****************************
+	 * Write the queued frames with gathering writes, until the queue is empty or the
+	 * channel does not take all data (non-blocking channel with a full socket buffer).
+	 * @param ch channel to write to
+	 * @return <b>true</b> if the queue was emptied, <b>false</b> if data is left
+	 * @throws IOException if the write fails
+	 */
+	synchronized boolean flush(GatheringByteChannel ch) throws IOException {
+		while (true) {
+			if (null != current) {
+				long	written	= current.transferTo(ch);
+				nBytes.addAndGet((int) -written);
+				Metrics.global.bytesOut.addAndGet(written);
+				if (current.remaining > 0) {
+					return false;
+				}
+				current.release();
+				current	= null;
+				nFrames.decrementAndGet();
+			}
+			if (ready.isEmpty()) {
+				schedule();
+			}
+			int 	n	= 0;
+			for (ByteBuffer frame : ready) {
+				if (MAX_GATHER == n) {
+					break;
+				}
+				gather[n++]	= frame;
+				if (!regions.isEmpty() && regions.containsKey(frame)) {
+					break;			// its region is written next
+				}
+			}
+			if (0 == n) {
+				return true;
+			}
+			long	written	= ch.write(gather, 0, n);
+			nBytes.addAndGet((int) -written);
+			Metrics.global.bytesOut.addAndGet(written);
+			for (int i = 0; i < n; i++) {
+				if (gather[i].hasRemaining()) {
+					Arrays.fill(gather, i, n, null);
+					return false;
+				}
+				ByteBuffer	frame	= ready.poll();
+				current	= regions.isEmpty()? null: regions.remove(frame);
+				BufferPool.release(frame);
+				if (null == current) {
+					nFrames.decrementAndGet();	// else when its region is written
+				}
+				gather[i]	= null;
+			}
+		}
+	}
+
+	/*****************************
+	 * Take the frames of the next gathering write from the lanes: all control frames,
+	 * then data frames by deficit round robin, up to MAX_GATHER frames or batchBytes.
+	 */
+	private void schedule() {
+		int 	nTaken	= 0;
+		long	nTakenBytes	= 0;
+		ByteBuffer	frame;
+		while (nTaken < MAX_GATHER && null != (frame = control.frames.poll())) {
+			ready.add(frame);
+			nTaken++;
+		}
+		int 	nLanes	= dataLanes.size();
+		int 	nIdle	= 0;			// lanes in a row that had nothing to write
+		while (nTaken < MAX_GATHER && nTakenBytes < batchBytes && nIdle < nLanes && nLanes > 0) {
+			if (turn >= nLanes) {
+				turn	= 0;
+			}
+			Lane	lane	= dataLanes.get(turn);
+			if (lane.frames.isEmpty()) {
+				lane.deficit	= 0;
+				if (lane.bClosed) {
+					dataLanes.remove(lane);
+					laneById.remove(lane.id, lane);
+					nLanes	= dataLanes.size();
+					continue;
+				}
+				turn++;
+				nIdle++;
+				continue;
+			}
+			nIdle	= 0;
+			lane.deficit	+= lane.weight * QUANTUM;
+			int 	size;
+			while (nTaken < MAX_GATHER && null != (frame = lane.frames.peek())
+					&& (size = size(frame)) <= lane.deficit) {
+				lane.frames.poll();
+				lane.deficit	-= size;
+				lane.nBytes.addAndGet(-size);
+				nTakenBytes 	+= size;
+				ready.add(frame);
+				nTaken++;
+			}
+			turn++;
+		}
+	}
+
+	/*****************************
+	 * size of a queued frame, with its file region
+	 */
+	private int size(ByteBuffer frame) {
+		FileRegion	region	= regions.isEmpty()? null: regions.get(frame);
+		return frame.remaining() + ((null == region)? 0: (int) region.remaining);
+	}
+
+	/*****************************
+	 * Drop all queued frames. Waits for a flush() in progress on another thread, so no
+	 * frame is released twice.
+	 */
+	synchronized void clear() {
+		if (null != current) {
+			current.release();
+			current	= null;
+		}
+		synchronized (regions) {
+			for (FileRegion region : regions.values()) {
+				region.release();
+			}
+			regions.clear();
+		}
+		ByteBuffer	frame;
+		while (null != (frame = ready.poll())) {
+			BufferPool.release(frame);
+		}
+		while (null != (frame = control.frames.poll())) {
+			BufferPool.release(frame);
+		}
+		for (Lane lane : dataLanes) {
+			while (null != (frame = lane.frames.poll())) {
+				BufferPool.release(frame);
+			}
+			lane.nBytes.set(0);
+			lane.deficit	= 0;
+		}
+		nFrames.set(0);
+		nBytes.set(0);
+	}
+
+}
@@ -0,0 +1,325 @@
+package com.hifly.messageloop;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <h1>the Outbox class</h1>
+ * Durable outbox of the text records sent with CM_WRITESRV, in an append-only journal
+ * file accessed through a memory map (FileChannel.map).
+ * <br>
+ * Every record is appended with the next sequence number, and stays in the journal until
+ * the server acknowledges it, so records survive a connection that is down and a process
+ * that is killed, and are sent again on the next link up:
+ * <pre>
+ *   header: | int MAGIC | int head | long ackedSeq | reserved (16 bytes) |
+ *   entry:  | int length | long seq | record (length bytes, UTF-8) |
+ * </pre>
+ * head is the offset of the oldest entry that is not acknowledged; ackedSeq the highest
+ * sequence number acknowledged. An entry is complete once its length is written, which is
+ * done last, and the entries end at a length of 0; so after a crash the journal is read up
+ * to the last complete entry.
+ * <br>
+ * With the HELLO capability CAP_ACK the records are sent as FrameCodec.ID_SEQ frames with
+ * their sequence number, and the server acknowledges them with an ID_SEQ frame holding the
+ * highest sequence number it stored, which truncates the journal. Without it, a record
+ * is dropped from the journal as soon as it is queued on a connection.
+ * <br>
+ * An append is a copy into the mapped file. The pages are not forced to the storage per
+ * record: they survive the process, and are forced at most once per DispatchWork.journalSyncMs
+ * (group commit) for a crash of the device.
+ * <br>
+ * Used by the TaskThread only, so it needs no synchronization.
+ */
+public class Outbox {
+	/**
+	 * HELLO capability bit for sequenced records that are acknowledged by the server
+	 */
+	public static final int 	CAP_ACK = 2;
+	/**
+	 * number of bytes in the header of an entry
+	 */
+	public static final int 	ENTRY_HEADER = 12;
+	/**
+	 * milliseconds to wait before sending again when the outbound queue is full
+	 */
+	static final int    	    	RETRY_DELAY = 5;
+	private static final String 	OB_TAG = "Outbox";
+	private static final int	MAGIC = 0x4a58424f;		// "OBXJ"
+	private static final int	HEADER_LEN = 32;
+	private static final int	POS_HEAD = 4, POS_ACKED = 8;
+	private final Dispatcher	hTask;
+	private final RandomAccessFile	file;
+	private final MappedByteBuffer	map;
+	private final ByteBuffer    	view;			// payload of the entry to send
+	private final TextCodec     	textCodec = new TextCodec(0);
+	private final long  	    	syncDelay;
+	private int 	    	    	head, tail, sendPos;
+	private long	    	    	ackedSeq, nextSeq, sendSeq;
+	private boolean 	    	bSyncScheduled = false;
+	private final Runnable  	    	syncTask = new Runnable() {
+		@Override
+		public void run() {
+			bSyncScheduled	= false;
+			map.force();
+		}
+	};
+
+	/*****************************
+	 * <h1>Outbox constructor</h1>
+	 * Open or create the journal, and take the records that are not acknowledged yet.
+	 * @param handle message handler of the Task Thread
+	 * @param path journal file
+	 * @param size size of the journal file in bytes, if it is created
+	 * @param syncDelay group commit interval in milliseconds, 0 to leave it to the system
+	 * @throws IOException if the journal cannot be opened or mapped
+	 */
+	Outbox(Dispatcher handle, File path, int size, long syncDelay) throws IOException {
+		hTask   	= handle;
+		this.syncDelay	= syncDelay;
+		file	= new RandomAccessFile(path, "rw");
+		try {
+			FileChannel	ch	= file.getChannel();
+			map 	= ch.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, ch.size()));
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		view	= map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (MAGIC != map.getInt(0) || !recover()) {
+			Log.i(OB_TAG, "... new journal: "+path);
+			map.putInt(HEADER_LEN, 0);
+			map.putLong(POS_ACKED, 0);
+			map.putInt(POS_HEAD, HEADER_LEN);
+			map.putInt(0, MAGIC);
+			recover();
+		}
+		rewind();
+		Log.i(OB_TAG, "-- opened "+path+", "+count()+" records to send");
+	}
+
+	/*****************************
+	 * find the entries after the last acknowledged one
+	 * @return <b>false</b> if the header is not valid
+	 */
+	private boolean recover() {
+		head	= map.getInt(POS_HEAD);
+		ackedSeq	= map.getLong(POS_ACKED);
+		if (head < HEADER_LEN || head > map.capacity()) {
+			return false;
+		}
+		nextSeq	= ackedSeq + 1;
+		int 	pos	= head;
+		while (pos + ENTRY_HEADER <= map.capacity()) {
+			int 	len	= map.getInt(pos);
+			if (len <= 0 || len > map.capacity() - pos - ENTRY_HEADER) {
+				break;			// end of the journal, or an incomplete entry
+			}
+			long	seq	= map.getLong(pos + 4);
+			if (seq <= ackedSeq || (pos != head && seq != nextSeq)) {
+				break;			// left over from before the journal was truncated
+			}
+			nextSeq	= seq + 1;
+			pos 	+= ENTRY_HEADER + len;
+		}
+		tail	= pos;
+		return true;
+	}
+
+	/*****************************
+	 * Append a record to the journal.
+	 * @param txt record text
+	 * @return sequence number of the record, or -1 if it does not fit in the journal
+	 * or is larger than a frame
+	 */
+	long append(CharSequence txt) {
+		int 	maxLen	= DispatchWork.bufferSize - FrameCodec.HEADER_LEN - 8;
+		if (!encodeAt(tail, txt, maxLen)) {
+			if (!compact() || !encodeAt(tail, txt, maxLen)) {
+				return -1;
+			}
+		}
+		int 	len	= map.position() - tail - ENTRY_HEADER;
+		long	seq	= nextSeq++;
+		int 	end	= map.position();
+		map.putLong(tail + 4, seq);
+		if (end + 4 <= map.capacity()) {
+			map.putInt(end, 0);			// end of the journal
+		}
+		map.putInt(tail, len);			// the entry is complete
+		tail	= end;
+		scheduleSync();
+		return seq;
+	}
+
+	/*****************************
+	 * encode a record at an offset in the journal; on success the map position is at its end
+	 */
+	private boolean encodeAt(int pos, CharSequence txt, int maxLen) {
+		if (pos + ENTRY_HEADER + 4 > map.capacity()) {
+			return false;
+		}
+		map.limit(Math.min(map.capacity() - 4, pos + ENTRY_HEADER + maxLen));	// room for the end mark
+		map.position(pos + ENTRY_HEADER);
+		boolean	bFits	= textCodec.encode(txt, map);
+		map.limit(map.capacity());
+		return bFits;
+	}
+
+	/*****************************
+	 * Move the entries that are not acknowledged to the start of the journal, if they
+	 * fit in front of the oldest one with the end mark, so a crash during the move leaves
+	 * them intact.
+	 * Moving to a lower offset, an overlapping copy is not needed.
+	 * @return <b>true</b> if room was made, <b>false</b> if not
+	 */
+	private boolean compact() {
+		int 	live	= tail - head;
+		// the copy and its end mark must end before the oldest entry, or the end mark
+		// overwrites its length while POS_HEAD still points at it
+		if (head == HEADER_LEN || live + 4 > head - HEADER_LEN) {
+			return false;
+		}
+		ByteBuffer	src	= map.duplicate();
+		src.limit(tail).position(head);
+		map.position(HEADER_LEN);
+		map.put(src);
+		map.putInt(HEADER_LEN + live, 0);
+		sendPos 	-= head - HEADER_LEN;
+		head	= HEADER_LEN;
+		tail	= HEADER_LEN + live;
+		map.putInt(POS_HEAD, head);
+		Log.i(OB_TAG, "... compacted, "+live+" bytes");
+		return true;
+	}
+
+	/*****************************
+	 * The server stored the records up to a sequence number: drop them from the journal.
+	 * @param seq highest sequence number acknowledged
+	 */
+	void ack(long seq) {
+		if (seq <= ackedSeq) {
+			return;
+		}
+		while (head < tail && map.getLong(head + 4) <= seq) {
+			head	+= ENTRY_HEADER + map.getInt(head);
+		}
+		if (head == tail) {
+			// empty: start at the front again
+			map.putInt(HEADER_LEN, 0);
+			head	= tail = HEADER_LEN;
+		}
+		if (sendPos < head) {
+			sendPos	= head;
+			sendSeq	= seqAt(head);
+		} else if (sendPos > tail) {
+			// moved to the front; a late ack may have dropped records not resent yet
+			sendPos	= tail;
+			sendSeq	= seqAt(tail);
+		}
+		ackedSeq	= seq;
+		map.putLong(POS_ACKED, ackedSeq);
+		map.putInt(POS_HEAD, head);
+		scheduleSync();
+	}
+
+	/*****************************
+	 * Send all records that are not acknowledged again, after a link went down.
+	 */
+	void rewind() {
+		sendPos	= head;
+		sendSeq	= seqAt(head);
+	}
+
+	/*****************************
+	 * sequence number of the entry at an offset, or the next one at the end
+	 */
+	private long seqAt(int pos) {
+		return (pos < tail)? map.getLong(pos + 4): nextSeq;
+	}
+
+	/*****************************
+	 * @return <b>true</b> if there are records that are not sent yet
+	 */
+	boolean hasUnsent() {
+		return sendPos < tail;
+	}
+
+	/*****************************
+	 * @return sequence number of the next record to send
+	 */
+	long unsentSeq() {
+		return sendSeq;
+	}
+
+	/*****************************
+	 * Get the next record to send. The buffer is reused by the next call.
+	 * @return buffer with the UTF-8 record between its position and limit
+	 */
+	ByteBuffer unsentData() {
+		int 	len	= map.getInt(sendPos);
+		view.limit(map.capacity());
+		view.position(sendPos + ENTRY_HEADER);
+		view.limit(sendPos + ENTRY_HEADER + len);
+		return view;
+	}
+
+	/*****************************
+	 * The record returned by unsentData() is queued on a connection.
+	 * @param bAcked <b>true</b> if the server does not acknowledge records, so the record
+	 * is dropped right away
+	 */
+	void markSent(boolean bAcked) {
+		long	seq	= sendSeq;
+		sendPos 	+= ENTRY_HEADER + map.getInt(sendPos);
+		sendSeq	= seqAt(sendPos);
+		if (bAcked) {
+			ack(seq);
+		}
+	}
+
+	/*****************************
+	 * @param seq sequence number of a record
+	 * @return <b>true</b> if the record was queued on a connection, <b>false</b> if it waits
+	 */
+	boolean isSent(long seq) {
+		return seq < sendSeq;
+	}
+
+	/*****************************
+	 * @return number of records in the journal
+	 */
+	int count() {
+		return (int) (nextSeq - seqAt(head));
+	}
+
+	/*****************************
+	 * force the journal to the storage at the end of the group commit interval
+	 */
+	private void scheduleSync() {
+		if (syncDelay > 0 && !bSyncScheduled) {
+			bSyncScheduled	= true;
+			hTask.postDelayed(syncTask, syncDelay);
+		}
+	}
+
+	/*****************************
+	 * force the journal to the storage and close it
+	 */
+	void close() {
+		hTask.removeCallbacks(syncTask);
+		bSyncScheduled	= false;
+		map.force();
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
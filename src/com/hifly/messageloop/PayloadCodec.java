@@ -0,0 +1,43 @@
+package com.hifly.messageloop;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * <h1>the PayloadCodec interface</h1>
+ * Encoding of messages into frame payloads and decoding of frame payloads into messages.
+ * <br>
+ * A codec works directly on the connection buffers: encode() writes the payload in place
+ * after the frame header, decode() reads it from the read buffer. SrvConnect uses a
+ * TextCodec for text records, and a BinaryCodec for frames flagged FrameCodec.FLAG_BINARY.
+ * <br>
+ * A codec instance may be used by one writing and one reading thread at the same time,
+ * so any state it keeps for encode() must be apart from the state for decode().
+ * @param <T> type of the messages
+ */
+public interface PayloadCodec<T> {
+
+	/*****************************
+	 * @param msg message to encode
+	 * @return largest number of payload bytes the message can be encoded in
+	 */
+	public int  	maxLength(T msg);
+
+	/*****************************
+	 * Encode a message as frame payload.
+	 * @param msg message to encode
+	 * @param dst buffer in fill mode, positioned after the frame header
+	 * @return <b>true</b> if encoded, <b>false</b> if it does not fit; dst may be partly written
+	 */
+	public boolean	encode(T msg, ByteBuffer dst);
+
+	/*****************************
+	 * Decode a frame payload. The message returned may be reused by the next call of
+	 * decode() on the same thread, so it must be copied to be kept.
+	 * @param src buffer in drain mode, positioned at the payload; moved past the payload
+	 * @param len number of payload bytes
+	 * @return the decoded message
+	 * @throws ProtocolException if the payload is not a valid message
+	 */
+	public T    	decode(ByteBuffer src, int len) throws ProtocolException;
+
+}
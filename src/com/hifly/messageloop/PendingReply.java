@@ -0,0 +1,211 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <h1>the PendingReply class</h1>
+ * A request to the server that is waiting for its reply, returned by DispatchWork.request().
+ * <br>
+ * The request is tagged with a correlation id when it is written, see FrameCodec. When the
+ * frame with the same id is read, the reply completes this object. The result can be
+ * waited for with get(), or be delivered to a Callback, which is called by the Executor
+ * passed at construction, e.g. on the TaskThread.
+ * <br>
+ * A request answered with a stream may have a file as sink: the chunks of the stream are
+ * written to the file at their offsets, and the request completes with an empty reply
+ * after the last chunk, see DispatchWork.receiveFile().
+ */
+public class PendingReply implements Future<String> {
+	/**
+	 * Callback interface through which the reply, or the failure of the request, is reported.
+	 */
+	public static interface Callback {
+		public void 	onReply(PendingReply reply);
+	}
+
+	private final CountDownLatch	done = new CountDownLatch(1);
+	private final String	    	payload;
+	private final Callback	    	callback;
+	private final Executor	    	hCallback;	//executor of the thread the callback is called on
+	private volatile int    	    id = FrameCodec.ID_NONE;
+	private volatile long	    	sentAt;		// System.nanoTime() when the id was assigned
+	private volatile String     	reply;
+	private volatile Exception  	failure;
+	private volatile boolean    	bCancelled = false;
+	private volatile FileChannel	sink;		// file the stream of the reply is written to, or null
+
+	/*****************************
+	 * <h1>PendingReply constructor</h1>
+	 * @param payload request text to send
+	 * @param callback called when the request completes, or <b>null</b>
+	 * @param handler executor of the thread to call the callback on
+	 */
+	PendingReply(String payload, Callback callback, Executor handler) {
+		this.payload	= payload;
+		this.callback	= callback;
+		this.hCallback	= handler;
+	}
+
+	/*****************************
+	 * @return request text
+	 */
+	public String getPayload() {
+		return payload;
+	}
+
+	/*****************************
+	 * @return correlation id assigned when the request was written, or FrameCodec.ID_NONE
+	 */
+	public int getId() {
+		return id;
+	}
+
+	void setId(int id) {
+		this.id 	= id;
+		this.sentAt	= System.nanoTime();
+	}
+
+	/*****************************
+	 * @return System.nanoTime() at which the request was last written
+	 */
+	long getSentAt() {
+		return sentAt;
+	}
+
+	/*****************************
+	 * @param file file to write the stream of the reply to; closed when the request completes
+	 */
+	void setSink(FileChannel file) {
+		this.sink	= file;
+	}
+
+	/*****************************
+	 * @return file to write the stream of the reply to, or <b>null</b>
+	 */
+	FileChannel getSink() {
+		return sink;
+	}
+
+	/*****************************
+	 * @return reply text, or <b>null</b> if the request did not complete successfully
+	 */
+	public String getReply() {
+		return reply;
+	}
+
+	/*****************************
+	 * @return reason of failure, or <b>null</b> if the request did not fail
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	/*****************************
+	 * complete the request with the reply from the server
+	 * @param txt reply text
+	 */
+	synchronized void complete(String txt) {
+		if (isDone()) {
+			return;
+		}
+		reply	= txt;
+		finish();
+	}
+
+	/*****************************
+	 * complete the request with a failure
+	 * @param e reason of failure
+	 */
+	synchronized void fail(Exception e) {
+		if (isDone()) {
+			return;
+		}
+		failure	= e;
+		finish();
+	}
+
+	/*****************************
+	 * release the waiters and post the callback
+	 */
+	private void finish() {
+		closeSink();
+		done.countDown();
+		if (null != callback) {
+			hCallback.execute(new Runnable() {
+				@Override
+				public void run() {
+					callback.onReply(PendingReply.this);
+				}
+			});
+		}
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) {
+			return false;
+		}
+		// a reply that arrives later is dropped by complete()
+		bCancelled	= true;
+		closeSink();
+		done.countDown();
+		return true;
+	}
+
+	/*****************************
+	 * close the file of the stream, if any
+	 */
+	private void closeSink() {
+		if (null == sink) {
+			return;
+		}
+		try {
+			sink.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return bCancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return 0 == done.getCount();
+	}
+
+	@Override
+	public String get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public String get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("no reply for request "+id);
+		}
+		return result();
+	}
+
+	private String result() throws ExecutionException {
+		if (bCancelled) {
+			throw new CancellationException();
+		}
+		if (null != failure) {
+			throw new ExecutionException(failure);
+		}
+		return reply;
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.hifly.messageloop;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <h1>The ReadLoop class</h1>
+ * implements the blocking reader of one connection as a task of an Executor, as an
+ * alternative to the ReceiveData thread with its Looper, see DispatchWork.readExecutor.
+ * <br>
+ * The task connects the blocking SocketChannel and then reads until the connection
+ * ends, so unsolicited data pushed by the server is seen as soon as it arrives, and no
+ * command message is needed from the TaskThread to start a read. Each decoded record is
+ * passed on with Dispatcher.sendResult(), like the ReceiveData thread does.
+ * <br>
+ * The task blocks in the read for the whole life of the connection. On a JVM 21 or
+ * later, virtualThreads() runs each task on a virtual thread, which costs a few KB
+ * instead of a platform thread with its stack, so a process can hold many thousands of
+ * connections in blocking mode.
+ */
+public class ReadLoop implements Runnable, BlockingReader {
+	private static final String 	RL_TAG = "ReadLoop";
+	private final Dispatcher	hTask;	//handler of worker thread
+	private final SrvConnect    	srvConnect;
+
+	/*****************************
+	 * ReadLoop constructor
+	 * @param handle message handler of the Task Thread
+	 * @param sc server connection object, with its blocking channel not connected yet
+	 */
+	ReadLoop(Dispatcher handle, SrvConnect sc) {
+		hTask   	= handle;
+		srvConnect	= sc;
+	}
+
+	/*****************************
+	 * connect, and read until the connection is closed or fails
+	 */
+	@Override
+	public void run() {
+		if (srvConnect.connect()) {
+			while (srvConnect.readRecord() >= 0) {
+				// one read may have delivered several frames
+				MsgEvent	ev;
+				while (null != (ev = srvConnect.nextRecord())) {
+					if (DispatchWork.bTrace) Log.i(RL_TAG, "... rcv {"+ ev.getLength() +"}=<"+ ev.getText()+">");
+					hTask.sendResult(DispatchWork.DW_READ_SRV, ev);
+				}
+			}
+			if (!srvConnect.isClosing()) {
+				hTask.sendResult(DispatchWork.DW_READ_SRV_NULL);
+				srvConnect.linkEvent(DispatchWork.CM_LINK_DOWN);
+			}
+		}
+		srvConnect.releaseReadBuffer();
+		if (DispatchWork.bTrace) Log.i(RL_TAG, "-- read loop ends");
+	}
+
+	/*****************************
+	 * no read commands needed, the loop reads continuously
+	 */
+	@Override
+	public void sendReadCmd(int what) {
+	}
+
+	/*****************************
+	 * nothing to stop: the loop ends when the channel is closed
+	 */
+	@Override
+	public void quit() {
+	}
+
+	/*****************************
+	 * Get an executor that runs each ReadLoop on a virtual thread of its own, if the JVM has
+	 * them (Java 21 or later), or else on a daemon thread of a cached pool.
+	 * @return the executor, for DispatchWork.readExecutor
+	 */
+	public static Executor virtualThreads() {
+		try {
+			// looked up by name, as the Android platform and older JVMs do not have it
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			Log.i(RL_TAG, "-- no virtual threads, using a thread pool");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread	t	= new Thread(r, RL_TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+}
@@ -1,4 +1,6 @@
 package com.hifly.messageloop;
+import java.util.concurrent.CountDownLatch;
+
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -9,26 +11,27 @@ import android.util.Log;
  * implements a thread that runs independently and separately from
  * the main UI thread and the worker thread.
  * <br>
- * Class variables may be declared static without problem as this class will be created
- * only once and will not change after configuration changes.
+ * Every SrvConnect connection has its own ReceiveData thread, so the variables
+ * are per instance. It is the BlockingReader that TaskFragment.TaskHandler starts.
  */
-public class ReceiveData extends Thread {
+public class ReceiveData extends Thread implements BlockingReader {
 	private static final String 	RT_TAG = "ReceiveThread";
 	private static final String 	RH_TAG = "ReceiveHandler";
-	private static TaskFragment.TaskHandler 	hTask;	//handler of worker thread
-	private static ReceiveHandler  	mReceiveHandler;
-	private static SrvConnect   	SrvConnect;
+	private final Dispatcher 	hTask;	//handler of worker thread
+	private final SrvConnect    	srvConnect;
+	private final CountDownLatch	ready = new CountDownLatch(1);	// mReceiveHandler is created
+	private volatile ReceiveHandler	mReceiveHandler;
 
 	/*****************************
 	 * ReceiveData constructor
 	 * @param handle message handler of the Task Thread
 	 * @param sc server connection object
 	 */
-	ReceiveData(TaskFragment.TaskHandler handle, SrvConnect sc) {
+	ReceiveData(Dispatcher handle, SrvConnect sc) {
 		this.setName(RT_TAG);
 		hTask   	= handle;
-		SrvConnect	= sc;
-		Log.i(RT_TAG, "-- Rcv("+ hTask +":"+ SrvConnect +  ") constructed: "+this);
+		srvConnect	= sc;
+		Log.i(RT_TAG, "-- Rcv("+ hTask +":"+ srvConnect +  ") constructed: "+this);
 	}
 
 	/*****************************
@@ -37,25 +40,41 @@ public class ReceiveData extends Thread {
 	@Override
 	public void run() {
 		Looper.prepare();
-		mReceiveHandler = new ReceiveHandler();
+		mReceiveHandler = new ReceiveHandler(hTask, srvConnect);
+		ready.countDown();
 		Log.i(RT_TAG, "-- "+ mReceiveHandler +" in "+this+" bound to " + mReceiveHandler.getLooper().getThread().getName());
 		Looper.loop();
+		srvConnect.releaseReadBuffer();
 		Log.i(RT_TAG, "-- receive thread ends");
 	}
 
 	/*****************************
 	 * quit ReceiveData
 	 */
+	@Override
 	public void quit() {
-		mReceiveHandler.getLooper().quit();
+		handler().getLooper().quit();
 	}
 
 	/*****************************
 	 * send command message to ReceiveData thread handler
 	 * @param what command code
 	 */
+	@Override
 	public void sendReadCmd(int what) {
-		mReceiveHandler.sendEmptyMessage(what);
+		handler().sendEmptyMessage(what);
+	}
+
+	/*****************************
+	 * get the handler, waiting until the thread has created it
+	 */
+	private ReceiveHandler handler() {
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return mReceiveHandler;
 	}
 
 	/*****************************
@@ -65,10 +84,15 @@ public class ReceiveData extends Thread {
 	 * This handler will process the messages.
 	 */
 	private static class ReceiveHandler extends Handler {
+		private final Dispatcher	hTask;	//handler of worker thread
+		private final SrvConnect    	srvConnect;
+
 		/* ********************** */
 		// explicitly specify constructor, for testing and logging only
-		ReceiveHandler() {
+		ReceiveHandler(Dispatcher handle, SrvConnect sc) {
 			super();
+			hTask   	= handle;
+			srvConnect	= sc;
 			Log.i(RH_TAG, "-- "+this+" bound to: "+this.getLooper().getThread().getName());
 		}
 		/* ********************** */
@@ -78,14 +102,30 @@ public class ReceiveData extends Thread {
 		 */
 		@Override
 		public void handleMessage(Message msg) {
-			Log.i(RH_TAG, "... rcv readSrv("+msg+")");
-			SrvConnect.readRecord();
-			Log.i(RH_TAG, "... rcv readSrv{"+ DispatchWork.num +"}=<"+ DispatchWork.val+">");
-			// send message to worker thread for DispatchWork
-			//hTask.sendEmptyMessage(DispatchWork.DW_READ_SRV);
+			if (DispatchWork.bTrace) Log.i(RH_TAG, "... rcv readSrv("+msg+")");
+			if (DispatchWork.CM_CONNECT == msg.what) {
+				srvConnect.connect();
+				return;
+			}
+			if (srvConnect.readRecord() < 0) {
+				hTask.sendResult(DispatchWork.DW_READ_SRV_NULL);
+				srvConnect.linkEvent(DispatchWork.CM_LINK_DOWN);
+				return;
+			}
+			// one read may have delivered several frames
+			MsgEvent	ev;
+			while (null != (ev = srvConnect.nextRecord())) {
+				if (DispatchWork.bTrace) Log.i(RH_TAG, "... rcv readSrv{"+ ev.getLength() +"}=<"+ ev.getText()+">");
+				// send message to worker thread for DispatchWork
+				//hTask.sendEmptyMessage(DispatchWork.DW_READ_SRV);
 
-			// for testing, send message to main thread for displaying
-			hTask.sendResult(DispatchWork.DW_READ_SRV);	// to updMain for testing
+				// for testing, send message to main thread for displaying
+				hTask.sendResult(DispatchWork.DW_READ_SRV, ev);	// to updMain for testing
+			}
+			if (srvConnect.hasOpenStreams()) {
+				// the chunks of a stream keep coming without read commands
+				sendEmptyMessage(DispatchWork.CM_READSRV);
+			}
 		}
 	}	// ---- end ReceiveHandler
 	
@@ -0,0 +1,201 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * <h1>the ResponseCache class</h1>
+ * The replies of the idempotent requests, kept for a time so the same request is answered
+ * without a round trip to the server, see DispatchWork.cachedRequest().
+ * <br>
+ * A reply is kept under the request text until its time to live is over, and the least
+ * recently used replies are evicted while the cache holds more than its budget of bytes.
+ * When the server accepted CAP_CACHE in the HELLO, it pushes an ID_INVALIDATE frame when
+ * the answer to a request changes, and the reply is dropped, see FrameCodec.
+ * <br>
+ * Identical requests given while the first one is in flight wait for its reply, so they
+ * cost one round trip together. A reply that was invalidated while in flight is passed
+ * to its waiters, but not kept.
+ * <br>
+ * The hits, misses, joined requests, evictions and invalidations are counted in Metrics.
+ * All methods may be called from any thread.
+ */
+public class ResponseCache {
+	/**
+	 * capability bit offered in the HELLO: the client caches replies and takes invalidations
+	 */
+	public static final int 	CAP_CACHE = 16;
+	/**
+	 * bytes counted for an entry on top of its text, for the map entry and the objects
+	 */
+	static final int    	    	ENTRY_OVERHEAD = 64;
+
+	/**
+	 * a reply with its expiry time
+	 */
+	private static class Entry {
+		final String	reply;
+		final long  	expires;		// System.nanoTime()
+		final int   	size;
+
+		Entry(String reply, long expires, int size) {
+			this.reply	= reply;
+			this.expires	= expires;
+			this.size	= size;
+		}
+	}
+
+	/**
+	 * a request in flight, with the requests waiting for its reply
+	 */
+	private class Call implements PendingReply.Callback {
+		final String	key;
+		final long  	ttlNs;
+		final ArrayList<PendingReply>	waiters = new ArrayList<PendingReply>(2);
+		boolean     	bStale = false;		// invalidated while in flight
+
+		Call(String key, long ttlNs) {
+			this.key	= key;
+			this.ttlNs	= ttlNs;
+		}
+
+		@Override
+		public void onReply(PendingReply reply) {
+			completed(this, reply);
+		}
+	}
+
+	private final LinkedHashMap<String, Entry>	entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private final HashMap<String, Call>	calls = new HashMap<String, Call>();
+	private long	    	    	bytes = 0;
+
+	/*****************************
+	 * Answer a request from the cache, or join the same request in flight, or else start
+	 * the request.
+	 * @param pr the request, completed right away on a hit
+	 * @param ttlMs time to keep the reply, in milliseconds
+	 * @param handler executor of the thread on which the reply of a new request is stored
+	 * @return the request to send to the server, whose reply completes pr, or <b>null</b>
+	 * if pr is answered already or waits for a request in flight
+	 */
+	synchronized PendingReply lookup(PendingReply pr, long ttlMs, Executor handler) {
+		String	key 	= pr.getPayload();
+		Entry	e	= entries.get(key);
+		if (null != e) {
+			if (e.expires - System.nanoTime() > 0) {
+				Metrics.global.cacheHits.incrementAndGet();
+				pr.complete(e.reply);
+				return null;
+			}
+			remove(key);
+		}
+		Call	call	= calls.get(key);
+		if (null != call) {
+			Metrics.global.cacheJoined.incrementAndGet();
+			call.waiters.add(pr);
+			return null;
+		}
+		Metrics.global.cacheMisses.incrementAndGet();
+		call	= new Call(key, ttlMs * 1000000L);
+		call.waiters.add(pr);
+		calls.put(key, call);
+		return new PendingReply(key, call, handler);
+	}
+
+	/*****************************
+	 * keep the reply of a request, unless it failed or was invalidated, and pass it to
+	 * the requests waiting for it
+	 */
+	private synchronized void completed(Call call, PendingReply reply) {
+		if (calls.get(call.key) == call) {
+			calls.remove(call.key);
+		}
+		String	txt 	= reply.getReply();
+		if (null != txt && !call.bStale && call.ttlNs > 0) {
+			store(call.key, txt, call.ttlNs);
+		}
+		for (PendingReply pr : call.waiters) {
+			if (null != txt) {
+				pr.complete(txt);
+			} else {
+				Exception	e	= reply.getFailure();
+				pr.fail((null == e)? new IOException("request cancelled"): e);
+			}
+		}
+	}
+
+	/*****************************
+	 * keep a reply and evict the least recently used ones over the budget
+	 */
+	private void store(String key, String reply, long ttlNs) {
+		long	max 	= DispatchWork.cacheBytes;
+		int 	size	= 2 * (key.length() + reply.length()) + ENTRY_OVERHEAD;
+		if (size > max) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(reply, System.nanoTime() + ttlNs, size));
+		bytes	+= size;
+		Iterator<Map.Entry<String, Entry>>	it	= entries.entrySet().iterator();
+		while (bytes > max && it.hasNext()) {
+			bytes	-= it.next().getValue().size;
+			it.remove();
+			Metrics.global.cacheEvictions.incrementAndGet();
+		}
+	}
+
+	private void remove(String key) {
+		Entry	e	= entries.remove(key);
+		if (null != e) {
+			bytes	-= e.size;
+		}
+	}
+
+	/*****************************
+	 * Drop the reply to a request, and do not keep the reply of the request in flight.
+	 * Called by the receive thread for an ID_INVALIDATE frame.
+	 * @param key request text, or <b>null</b> to drop all replies
+	 */
+	synchronized void invalidate(String key) {
+		Metrics.global.cacheInvalidations.incrementAndGet();
+		if (null == key) {
+			clear();
+			for (Call call : calls.values()) {
+				call.bStale	= true;
+			}
+			return;
+		}
+		remove(key);
+		Call	call	= calls.get(key);
+		if (null != call) {
+			call.bStale	= true;
+		}
+	}
+
+	/*****************************
+	 * Drop all replies, e.g. when invalidations may have been missed while no link was up.
+	 */
+	synchronized void clear() {
+		entries.clear();
+		bytes	= 0;
+	}
+
+	/*****************************
+	 * @return number of replies kept
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/*****************************
+	 * @return bytes counted for the replies kept
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <h1>The SelectorLoop class</h1>
+ * implements a thread that handles all socket I/O of a non-blocking SocketChannel
+ * with an EventLoop, as an alternative to the ReceiveData thread.
+ * <br>
+ * Reads are done continuously, so unsolicited data pushed by the server is seen as
+ * soon as it arrives, and records queued by SrvConnect.writeRecord() are written in
+ * batches as soon as the socket is writable, see EventLoop.
+ * No command message is needed from the TaskThread to start a read, so there is no
+ * handshake between the threads for each message.
+ */
+public class SelectorLoop extends Thread {
+	private static final String 	SL_TAG = "SelectorLoop";
+	private final Dispatcher	hTask;	//handler of worker thread
+	private final SrvConnect    	srvConnect;
+	private final SocketChannel 	socketCh;
+	private final EventLoop     	loop;
+	private volatile boolean    	bRunning = true;
+
+	/*****************************
+	 * SelectorLoop constructor
+	 * @param handle message handler of the Task Thread
+	 * @param sc server connection object
+	 * @param ch non-blocking socket channel, connected or with a pending connect
+	 * @throws IOException if the selector cannot be opened
+	 */
+	SelectorLoop(Dispatcher handle, SrvConnect sc, SocketChannel ch) throws IOException {
+		this.setName(SL_TAG);
+		hTask   	= handle;
+		srvConnect	= sc;
+		socketCh	= ch;
+		loop    	= new EventLoop(handle);
+		Log.i(SL_TAG, "-- Sel("+ hTask +":"+ srvConnect +  ") constructed: "+this);
+	}
+
+	/*****************************
+	 * run the event loop until quit() is called or the connection ends
+	 */
+	@Override
+	public void run() {
+		try {
+			loop.register(srvConnect, socketCh);
+			while (bRunning && loop.size() > 0) {
+				loop.poll(0);
+			}
+		} catch (ClosedSelectorException e) {
+			Log.i(SL_TAG, "... selector closed");
+		} catch (IOException e) {
+			e.printStackTrace();
+			hTask.sendResult(DispatchWork.DW_READ_SRV_NULL);
+			srvConnect.linkEvent(DispatchWork.CM_LINK_DOWN);
+		}
+		loop.close();
+		srvConnect.releaseReadBuffer();
+		Log.i(SL_TAG, "-- selector thread ends");
+	}
+
+	/*****************************
+	 * @return the event loop of this thread
+	 */
+	EventLoop getLoop() {
+		return loop;
+	}
+
+	/*****************************
+	 * wake up the selector, e.g. to pick up newly queued records
+	 */
+	public void wakeup() {
+		loop.wakeup();
+	}
+
+	/*****************************
+	 * quit SelectorLoop
+	 */
+	public void quit() {
+		bRunning	= false;
+		loop.wakeup();
+	}
+
+}
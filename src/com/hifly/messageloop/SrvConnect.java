@@ -2,72 +2,315 @@ package com.hifly.messageloop;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.util.Log;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 
 /**
  * <h1>the SrvConnect class</h1>
  * Handle the socket channel connection to the server and its read and send buffers. 
+ * <br>
+ * Reads are done either by the BlockingReader of the Dispatcher in blocking mode, on
+ * Android a ReceiveData thread with one read per written record, or when
+ * DispatchWork.bSelectorLoop is set, by the SelectorLoop thread
+ * on a non-blocking channel that reads continuously and writes the queued records.
+ * With DispatchWork.bEventLoop the same EventLoop is run by the TaskThread itself.
+ * With DispatchWork.readExecutor set, the blocking mode reads continuously instead, in a
+ * ReadLoop task of the executor.
+ * <br>
+ * Each SrvConnect instance owns its own channel, buffers and receive thread, so
+ * several connections can be open at the same time, see ConnectionPool.
+ * <br>
+ * Records to be sent are collected in an OutboundQueue and written in batches. HELLO and
+ * ping frames go in its control lane, and every stream has a lane of its own, so their
+ * frames are interleaved with the records on the wire.
+ * <br>
+ * The buffers come from the BufferPool and payloads are encoded and decoded in place by
+ * a PayloadCodec: text records by a TextCodec of the connection, binary messages by
+ * DispatchWork.binaryCodec. Decoding is done by the receive thread, encoding by the TaskThread.
+ * <br>
+ * When DispatchWork.compressThreshold is set, a HELLO frame offers compression to the
+ * server on link up. Once the server accepted it, larger payloads are written compressed,
+ * see FrameCompressor. Compressed frames from the server are inflated only when the server
+ * was granted FrameCompressor.CAP_DEFLATE; without it, a compressed frame is a protocol
+ * error, skipped by its length, and the request or stream it answers fails.
+ * With DispatchWork.journalFile set, the HELLO also offers Outbox.CAP_ACK, for the records
+ * of the Outbox to be sent with their sequence number and acknowledged.
+ * <br>
+ * Payloads of any size are sent as a stream of chunks by a StreamSender, and the chunks
+ * of streams from the server are passed to DispatchWork.streamConsumer as they arrive.
+ * <br>
+ * With DispatchWork.heartbeatMs set, the HELLO offers Heartbeat.CAP_PING, and a Heartbeat
+ * pings the server on a quiet link to detect a dead peer and to measure the round trip time.
+ * The retransmission timeout from it bounds the connect and, with DispatchWork.requestTimeoutMs,
+ * the wait for the reply of a request.
  */
 public class SrvConnect {
 	private static final String 	SRV_TAG = "SrvConnect";
-	private static TaskFragment.TaskHandler	 hTask; 	//handler of worker thread
-	private static final int    	BUFLEN = 512;
-	private static ReceiveData  	receiveData;
-	private static SocketChannel	socketCh;
-	private static ByteBuffer   	readBuf, sendBuf;
+	private final Dispatcher	 hTask; 	//handler of worker thread
+	private final OutboundQueue 	outQueue = new OutboundQueue(DispatchWork.batchDelay,
+			DispatchWork.batchBytes, DispatchWork.maxQueueBytes, DispatchWork.recordWeight);
+	private final AtomicInteger 	outstanding = new AtomicInteger();	// records written, reply not yet read
+	private final AtomicInteger 	lastId = new AtomicInteger();		// last correlation id used
+	private final ConcurrentHashMap<Integer, PendingReply>	inFlight = new ConcurrentHashMap<Integer, PendingReply>();
+	private final Set<Integer>  	openStreams = Collections.newSetFromMap(
+			new ConcurrentHashMap<Integer, Boolean>());	// ids of streams being received
+	private final Set<Integer>  	timedOut = Collections.newSetFromMap(
+			new ConcurrentHashMap<Integer, Boolean>());	// ids of requests failed by their timeout
+	private final ArrayList<StreamSender>	senders = new ArrayList<StreamSender>();	// streams being sent
+	private BlockingReader  	    	reader;			// null in non-blocking mode
+	private SelectorLoop	    	selectorLoop;
+	private EventLoop   	    	ioLoop;			// null in blocking mode
+	private final TextCodec 	    	textCodec;
+	private final FrameCompressor	compressor;		// null if compression is off
+	private final Heartbeat 	    	heartbeat;
+	private volatile int	    	peerCaps = 0;	// capabilities accepted by the server
+	private volatile boolean    	bHelloDone = false;	// the server answered the HELLO
+	private SocketChannel	    	socketCh;
+	private TlsChannel  	    	tls;			// null without TLS
+	private InetSocketAddress   	address;
+	private volatile boolean    	bClosing = false;	// Close() was called, report no link events
+	private volatile boolean    	bCorrupt = false;	// a frame length was corrupt, the stream is out of sync
+	private ByteBuffer  	    	readBuf;
+	private boolean 	    	bFlushScheduled = false;	// flushTask is posted to the TaskThread
+	private final Runnable  	    	flushTask = new Runnable() {
+		@Override
+		public void run() {
+			bFlushScheduled	= false;
+			flushNow();
+		}
+	};
 
 	/*****************************
 	 * <h1>SrvConnect constructor</h1>
-	 * Initialize parameters, create read and send ByteBuffers.
+	 * Initialize parameters, get the read ByteBuffer from the BufferPool.
 	 * @param handler message handler of the worker Task Thread
 	 */
-	SrvConnect(TaskFragment.TaskHandler handler) {
+	SrvConnect(Dispatcher handler) {
 		socketCh	= null;
-		receiveData	= null;
+		reader  	= null;
+		selectorLoop	= null;
+		ioLoop  	= null;
 		hTask		= handler;		// for submitting messages
 		Log.i(SRV_TAG, "-- SrvConnect("+ hTask + ") constructed: "+this);
-		readBuf		= ByteBuffer.allocateDirect(BUFLEN);
-		readBuf.order(ByteOrder.LITTLE_ENDIAN);
-		sendBuf		= ByteBuffer.allocateDirect(BUFLEN);
-		sendBuf.order(ByteOrder.LITTLE_ENDIAN);
+		readBuf		= BufferPool.acquire(DispatchWork.bufferSize);
+		textCodec	= new TextCodec(readBuf.capacity());
+		compressor	= (DispatchWork.compressThreshold > 0)? new FrameCompressor(
+				DispatchWork.compressThreshold, DispatchWork.compressDictionary): null;
+		heartbeat	= new Heartbeat(this, hTask);
 	}
 
 	/*****************************
-	 * Open server connection as SocketChannel and start the ReceiveData thread.
+	 * Open server connection as SocketChannel and start its BlockingReader.
+	 * <br>
+	 * The connect is done asynchronously by the reader, with a timeout of
+	 * connectTimeout(). Its result is reported to the TaskThread as command
+	 * CM_LINK_UP or CM_LINK_DOWN, with this SrvConnect in Message.obj. CM_LINK_DOWN is
+	 * also reported when an open connection fails.
 	 * @param server_IP IP address of server
 	 * @param serverPort port at server
-	 * @return handle to SocketChannel
+	 * @return handle to SocketChannel, or <b>null</b> if no channel could be created
 	 */
 	SocketChannel Open(String server_IP, int serverPort) {
 		Log.i(SRV_TAG, "... Open:"+server_IP+":"+serverPort);
+		address	= new InetSocketAddress(server_IP, serverPort);
+		if (DispatchWork.bSelectorLoop || DispatchWork.bEventLoop) {
+			return OpenNonBlocking();
+		}
 		try {
-			socketCh = SocketChannel.open(new InetSocketAddress(server_IP, serverPort));
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		} catch (ConnectException e) {
-			e.printStackTrace();
+			socketCh = SocketChannel.open();
+			tls 	= openTls(socketCh);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
 		Log.i(SRV_TAG, "... Open>>"+socketCh);
-		
-		// start receive thread to loop for data reads
-		if( null == receiveData) {
-			receiveData	= new ReceiveData(hTask, this);
-			receiveData.start();
+
+		// start the reader to connect and to loop for data reads
+		Executor	executor	= DispatchWork.readExecutor;
+		try {
+			if (null != executor) {
+				// the read loop connects and reads until the connection ends
+				ReadLoop	loop	= new ReadLoop(hTask, this);
+				executor.execute(loop);
+				reader	= loop;
+			} else {
+				reader	= hTask.startReader(this);
+			}
+		} catch (RejectedExecutionException e) {
+			e.printStackTrace();
+			linkEvent(DispatchWork.CM_LINK_DOWN);
 		}
-		
 		return socketCh;
 	}
 
 	/*****************************
-	 * Close socket connection and its ReceiveData thread.
+	 * Connect the blocking SocketChannel. Called by the BlockingReader.
+	 * @return <b>true</b> if connected, <b>false</b> if the connect failed and CM_LINK_DOWN
+	 * is reported
+	 */
+	boolean connect() {
+		try {
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(address.getHostName());
+			}
+			int 	timeout	= heartbeat.connectTimeout();
+			socketCh.socket().connect(address, timeout);
+			Log.i(SRV_TAG, "... connected: "+socketCh);
+			if (null != tls) {
+				socketCh.socket().setSoTimeout(timeout);
+				tls.handshake();
+				socketCh.socket().setSoTimeout(0);
+				Log.i(SRV_TAG, "... TLS: "+tls.getSession().getProtocol()
+						+" "+tls.getSession().getCipherSuite());
+			}
+			linkEvent(DispatchWork.CM_LINK_UP);
+			return true;
+		} catch (UnknownHostException e) {
+			Log.i(SRV_TAG, "... unknown host: "+address);
+		} catch (ConnectException e) {
+			Log.i(SRV_TAG, "... connect failed: "+address);
+		} catch (IOException e) {
+			if (!bClosing) {
+				e.printStackTrace();
+			}
+		}
+		linkEvent(DispatchWork.CM_LINK_DOWN);
+		return false;
+	}
+
+	/*****************************
+	 * Report a change of the link state to the TaskThread, unless the connection is
+	 * being closed on purpose.
+	 * @param what CM_LINK_UP, CM_LINK_DOWN, CM_HELLO or CM_IDLE
+	 */
+	void linkEvent(int what) {
+		if (!bClosing) {
+			hTask.sendCommand(what, 0, 0, this);
+		}
+	}
+
+	/*****************************
+	 * @return <b>true</b> if Close() was called, so a failing read is no link failure
+	 */
+	boolean isClosing() {
+		return bClosing;
+	}
+
+	/*****************************
+	 * Open server connection as non-blocking SocketChannel and start the SelectorLoop
+	 * thread, or with DispatchWork.bEventLoop add it to the EventLoop of the TaskThread.
+	 * The connect completes in the EventLoop, which reports it like Open().
+	 * @return handle to SocketChannel, or <b>null</b> if no channel could be created
+	 */
+	private SocketChannel OpenNonBlocking() {
+		try {
+			socketCh	= SocketChannel.open();
+			socketCh.configureBlocking(false);
+			tls 	= openTls(socketCh);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(address.getHostName());
+			}
+			socketCh.connect(address);
+			if (DispatchWork.bEventLoop) {
+				ioLoop	= hTask.eventLoop();
+				ioLoop.register(this, socketCh);
+			} else {
+				selectorLoop	= new SelectorLoop(hTask, this, socketCh);
+				ioLoop	= selectorLoop.getLoop();
+				selectorLoop.start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			linkEvent(DispatchWork.CM_LINK_DOWN);
+		}
+		Log.i(SRV_TAG, "... OpenNonBlocking>>"+socketCh);
+		return socketCh;
+	}
+
+	/*****************************
+	 * Create the TLS layer of a channel if DispatchWork.sslContext is set. The SSLEngine is
+	 * created for the host and port of the server, so the SSLContext can resume the session
+	 * of an earlier connection to it.
+	 * @param ch channel, not connected yet
+	 * @return the TLS channel, or <b>null</b> without TLS
+	 */
+	private TlsChannel openTls(SocketChannel ch) {
+		SSLContext	context	= DispatchWork.sslContext;
+		if (null == context) {
+			return null;
+		}
+		SSLEngine	engine	= context.createSSLEngine(address.getHostString(), address.getPort());
+		engine.setUseClientMode(true);
+		if (DispatchWork.tlsHostnameCheck) {
+			SSLParameters	params	= engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+		}
+		return new TlsChannel(ch, engine);
+	}
+
+	/*****************************
+	 * @return the channel to read and write the frames: the TLS layer, or the socket
+	 */
+	private GatheringByteChannel channel() {
+		return (null == tls)? socketCh: tls;
+	}
+
+	/*****************************
+	 * Continue the TLS handshake on the non-blocking socket. Used by the EventLoop.
+	 * @return <b>true</b> if the handshake is done or there is no TLS, <b>false</b> if it
+	 * waits for the socket
+	 * @throws IOException if the handshake failed
+	 */
+	boolean handshake() throws IOException {
+		if (null == tls || tls.isHandshakeDone()) {
+			return true;
+		}
+		if (!tls.handshake()) {
+			return false;
+		}
+		Log.i(SRV_TAG, "... TLS: "+tls.getSession().getProtocol()+" "+tls.getSession().getCipherSuite());
+		return true;
+	}
+
+	/*****************************
+	 * @return <b>true</b> if the TLS handshake is in progress
+	 */
+	boolean isHandshaking() {
+		return null != tls && !tls.isHandshakeDone();
+	}
+
+	/*****************************
+	 * Test if the TLS layer holds data that was read from the socket but not returned
+	 * yet; the socket does not report it as readable.
+	 * @return <b>true</b> if so, <b>false</b> if not
+	 */
+	boolean hasBufferedInput() {
+		return null != tls && tls.hasBufferedInput();
+	}
+
+	/*****************************
+	 * Close socket connection and its BlockingReader or SelectorLoop thread.
+	 * Must be called from the TaskThread.
 	 */
 	void Close() {
 		if(null == socketCh) {
@@ -75,11 +318,40 @@ public class SrvConnect {
 			return;
 		}
 		Log.i(SRV_TAG, "... Close>>"+socketCh.toString());
+		bClosing	= true;
+		heartbeat.stop();
 		
+		// abort the requests waiting for a reply
+		for (PendingReply pr : inFlight.values()) {
+			pr.fail(new IOException("connection closed"));
+		}
+		inFlight.clear();
+		timedOut.clear();
+		for (StreamSender sender : new ArrayList<StreamSender>(senders)) {
+			sender.fail(new IOException("connection closed"));
+		}
+		StreamConsumer	consumer	= DispatchWork.streamConsumer;
+		if (null != consumer) {
+			for (Integer id : openStreams) {
+				consumer.onFailed(id, new IOException("connection closed"));
+			}
+		}
+		openStreams.clear();
+
 		// abort possible pending read operation
-		receiveData.quit();
+		if (null != reader) {
+			reader.quit();
+		}
+		if (null != selectorLoop) {
+			selectorLoop.quit();
+		} else if (null != ioLoop) {
+			ioLoop.cancel(socketCh);
+		}
 
 		try {
+			if (null != tls) {
+				tls.close();			// sends close_notify, closes socketCh
+			}
 			socketCh.close();
 		} catch (UnknownHostException e1) {
 			e1.printStackTrace();
@@ -90,51 +362,973 @@ public class SrvConnect {
 		} catch (Exception e1) {
 			e1.printStackTrace();
 		}
+		// the read buffer is released by the receive thread when it ends
+		if (null == reader && null == selectorLoop) {
+			releaseReadBuffer();
+		}
+		hTask.removeCallbacks(flushTask);
+		outQueue.clear();
 		Log.i(SRV_TAG, "... Close: "+ ((null == socketCh )?"$$": socketCh.toString()) );
 		return;
 	}
 
 	/*****************************
-	 * send command message to ReceiveData thread handler
+	 * Take the requests that are waiting for a reply, so they can be sent again on
+	 * another connection after this one failed.
+	 * @return requests in flight, in the order they were sent
+	 */
+	ArrayList<PendingReply> takeInFlight() {
+		ArrayList<PendingReply>	list	= new ArrayList<PendingReply>(inFlight.values());
+		inFlight.clear();
+		Collections.sort(list, new Comparator<PendingReply>() {
+			@Override
+			public int compare(PendingReply a, PendingReply b) {
+				return (a.getId() < b.getId())? -1: (a.getId() == b.getId())? 0: 1;
+			}
+		});
+		return list;
+	}
+
+	/*****************************
+	 * Return the read buffer, and the TLS buffers, to the BufferPool. Called by the
+	 * receive thread when it ends.
+	 */
+	void releaseReadBuffer() {
+		BufferPool.release(readBuf);
+		readBuf	= null;
+		if (null != tls) {
+			tls.release();
+		}
+	}
+
+	/*****************************
+	 * send command message to the BlockingReader
 	 * @param what command code
 	 */
 	void sendReadCmd(int what) {
-		Log.i(SRV_TAG, "... sendReadCmd:"+what);
-		receiveData.sendReadCmd(what);
+		if (null == reader) {
+			return;
+		}
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... sendReadCmd:"+what);
+		reader.sendReadCmd(what);
 	}
 
 	/*****************************
-	 *	read data from the socket into the read buffer readBuf
+	 * Read data from the socket into the read buffer readBuf until it holds at least
+	 * one complete frame. Data of following frames that arrived in the same read is
+	 * kept in readBuf, so the frames are to be drained by calling nextRecord().
+	 * @return number of bytes read, or -1 if the connection was closed or failed
 	 */
-	void readRecord(){
-		readBuf.clear();
+	int readRecord(){
+		int nRead	= 0;				// number of bytes read
+		if (bCorrupt) {
+			return -1;
+		}
 		try {
-			socketCh.read(readBuf);
+			while (!FrameCodec.hasFrame(readBuf)) {
+				int n	= (null == tls)? socketCh.read(readBuf): tls.read(readBuf);
+				if (n < 0) {
+					Log.i(SRV_TAG, "... end of stream");
+					return -1;
+				}
+				nRead	+= n;
+			}
 		} catch (AsynchronousCloseException e) {
 			Log.i(SRV_TAG, "... canceled read");
+			return -1;
+		} catch (ProtocolException e) {
+			streamCorrupt(e);
+			return -1;
+		} catch (IOException e) {
+			if (bClosing) {
+				return -1;			// closed by Close(), not a failure
+			}
+			e.printStackTrace();
+			Metrics.global.errors.incrementAndGet();
+			return -1;
+		}
+		Metrics.global.bytesIn.addAndGet(nRead);
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... read ["+nRead+"]");
+		return nRead;
+	}
+
+	/*****************************
+	 * Read the data that is available on a non-blocking socket into the read buffer
+	 * readBuf, without waiting for a complete frame. Used by the SelectorLoop thread.
+	 * @return number of bytes read, or -1 if the connection was closed or failed
+	 */
+	int readAvailable(){
+		if (bCorrupt) {
+			return -1;
+		}
+		try {
+			int n	= (null == tls)? socketCh.read(readBuf): tls.read(readBuf);
+			if (n > 0) {
+				Metrics.global.bytesIn.addAndGet(n);
+			}
+			return n;
 		} catch (IOException e) {
+			if (bClosing) {
+				return -1;			// closed by Close(), not a failure
+			}
 			e.printStackTrace();
+			Metrics.global.errors.incrementAndGet();
+			return -1;
+		}
+	}
+
+	/*****************************
+	 * Take the next complete frame from the read buffer readBuf.
+	 * Replies to requests made by request() are passed to their PendingReply and binary
+	 * messages to DispatchWork.binaryCodec, and skipped; other frames are returned as a MsgEvent.
+	 * <br>
+	 * A frame that cannot be handled, e.g. a compressed frame without negotiated compression,
+	 * is skipped by its length, and the request or stream it answers fails. A corrupt length
+	 * in a frame header loses the frame boundaries, so the link is reported down and the
+	 * requests in flight fail.
+	 * @return event with the record as DW_READ_SRV, or <b>null</b> if no complete frame is buffered
+	 */
+	MsgEvent nextRecord(){
+		readBuf.flip();
+		try {
+			int len;
+			while ((len = FrameCodec.nextFrame(readBuf)) >= 0) {
+				int 	id	= FrameCodec.frameId(readBuf);
+				int 	flags	= FrameCodec.frameFlags(readBuf);
+				int 	end 	= readBuf.position() + len;
+				try {
+					MsgEvent	ev	= frameReceived(len, id, flags);
+					if (null != ev) {
+						return ev;
+					}
+				} catch (ProtocolException e) {
+					readBuf.position(end);
+					frameFailed(id, flags, e);
+				}
+			}
+			return null;
+		} catch (ProtocolException e) {
+			// discard what was buffered and give up the link
+			readBuf.position(readBuf.limit());
+			streamCorrupt(e);
+			linkEvent(DispatchWork.CM_LINK_DOWN);
+			return null;
+		} finally {
+			readBuf.compact();
+		}
+	}
+
+	/*****************************
+	 * Handle a frame whose header was just consumed by FrameCodec.nextFrame().
+	 * @param len payload length of the frame
+	 * @param id correlation id of the frame
+	 * @param flags flags of the frame
+	 * @return event with the record as DW_READ_SRV, or <b>null</b> if the frame is handled
+	 * @throws ProtocolException if the payload is invalid; readBuf may be anywhere in the frame
+	 */
+	private MsgEvent frameReceived(int len, int id, int flags) throws ProtocolException {
+		if (FrameCodec.ID_HELLO == id) {
+			heartbeat.received(false);
+			helloReceived(len);
+			return null;
+		}
+		if (FrameCodec.ID_PING == id) {
+			heartbeat.received(false);
+			pongReceived(len);
+			return null;
+		}
+		if (FrameCodec.ID_SUBSCRIBE == id) {
+			// the server confirms a subscription
+			heartbeat.received(false);
+			readBuf.position(readBuf.position() + len);
+			replyReceived();
+			return null;
+		}
+		heartbeat.received(true);
+		ByteBuffer	src	= readBuf;
+		if (0 != (flags & FrameCodec.FLAG_COMPRESSED)) {
+			if (0 == (peerCaps & FrameCompressor.CAP_DEFLATE)) {
+				throw new ProtocolException("compression not negotiated");
+			}
+			src	= compressor.inflate(readBuf, len, DispatchWork.bufferSize);
+			len	= src.remaining();
+		}
+		Metrics.global.msgsIn.incrementAndGet();
+		if (FrameCodec.ID_TOPIC == id) {
+			topicReceived(src, len);
+			return null;
+		}
+		if (FrameCodec.ID_INVALIDATE == id) {
+			String	key 	= (0 == len)? null: textCodec.decode(src, len).toString();
+			if (DispatchWork.bTrace) Log.i(SRV_TAG, "... invalidate ["+len+"]");
+			DispatchWork.cache.invalidate(key);
+			return null;
+		}
+		if (FrameCodec.ID_SEQ == id) {
+			// acknowledgement of the Outbox, with the reply to the record if any
+			if (len < 8) {
+				throw new ProtocolException("invalid ack: "+len);
+			}
+			hTask.sendCommand(DispatchWork.CM_ACK, 0, 0, Long.valueOf(src.getLong()));
+			len 	-= 8;
+			id  	= FrameCodec.ID_NONE;
+			if (0 == len) {
+				replyReceived();
+				return null;
+			}
+		}
+		if (0 != (flags & FrameCodec.FLAG_CHUNK)) {
+			chunkReceived(src, len, id);
+			return null;
+		}
+		if (0 != (flags & FrameCodec.FLAG_BINARY)) {
+			BinaryCodec<?>	codec	= DispatchWork.binaryCodec;
+			if (null == codec) {
+				throw new ProtocolException("no binary codec");
+			}
+			codec.deliver(src, len, id);
+			replyReceived();
+			// the message went to the codec, a request it answers completes with an empty reply
+			PendingReply	pr	= (FrameCodec.ID_NONE == id)? null: inFlight.remove(id);
+			if (null != pr) {
+				if (DispatchWork.bTrace) Log.i(SRV_TAG, "... binary reply #"+id+" ["+len+"]");
+				Metrics.global.roundTrip.record(System.nanoTime() - pr.getSentAt());
+				pr.complete("");
+			} else if (FrameCodec.ID_NONE != id) {
+				timedOut.remove(id);
+			}
+			return null;
+		}
+		replyReceived();
+		CharSequence	txt	= textCodec.decode(src, len);
+		PendingReply	pr	= (FrameCodec.ID_NONE == id)? null: inFlight.remove(id);
+		if (null != pr) {
+			if (DispatchWork.bTrace) Log.i(SRV_TAG, "... reply #"+id+" ["+len+"]");
+			Metrics.global.roundTrip.record(System.nanoTime() - pr.getSentAt());
+			pr.complete(txt.toString());
+			return null;
+		}
+		if (FrameCodec.ID_NONE != id && timedOut.remove(id)) {
+			if (DispatchWork.bTrace) Log.i(SRV_TAG, "... late reply #"+id+" dropped");
+			return null;
+		}
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... ["+len+"]="+txt);
+		return MsgEvent.obtain(DispatchWork.DW_READ_SRV, txt, len);
+	}
+
+	/*****************************
+	 * The length in a frame header is corrupt, so the frame boundaries are lost: read no
+	 * more from the connection, and fail the requests in flight rather than sending them
+	 * again, as their replies may be what broke the stream.
+	 * @param e reason of the failure
+	 */
+	private void streamCorrupt(ProtocolException e) {
+		e.printStackTrace();
+		Metrics.global.errors.incrementAndGet();
+		bCorrupt	= true;
+		for (PendingReply pr : takeInFlight()) {
+			pr.fail(e);
+		}
+	}
+
+	/*****************************
+	 * A frame was skipped as invalid: fail the request or the stream it belongs to.
+	 * @param id correlation id of the frame
+	 * @param flags flags of the frame
+	 * @param e reason of the failure
+	 */
+	private void frameFailed(int id, int flags, ProtocolException e) {
+		e.printStackTrace();
+		Metrics.global.errors.incrementAndGet();
+		PendingReply	pr	= (FrameCodec.ID_NONE == id)? null: inFlight.remove(id);
+		if (0 != (flags & FrameCodec.FLAG_CHUNK)) {
+			// a stream written to the file of the request fails with the request
+			openStreams.remove(id);
+			StreamConsumer	consumer	= DispatchWork.streamConsumer;
+			if (null != consumer && (null == pr || null == pr.getSink())) {
+				consumer.onFailed(id, e);
+			}
+		}
+		if (null != pr) {
+			pr.fail(e);
+			replyReceived();
+		} else if (0 == (flags & FrameCodec.FLAG_CHUNK)) {
+			replyReceived();
+		}
+	}
+
+	/*****************************
+	 * Write text to socket channel as one frame, see writeRecord(int, CharSequence).
+	 * @param txt record text
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	int writeRecord(CharSequence txt) {
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... writeRecord{"+txt.length()+"}"+txt);
+		return writeRecord(FrameCodec.ID_NONE, txt);
+	}
+
+	/*****************************
+	 * Write a binary message to socket channel as one frame flagged FrameCodec.FLAG_BINARY,
+	 * encoded by DispatchWork.binaryCodec.
+	 * @param msg the message
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	@SuppressWarnings("unchecked")
+	int writeMessage(BinaryCodec.Message msg) {
+		BinaryCodec<BinaryCodec.Message>	codec	= (BinaryCodec<BinaryCodec.Message>) DispatchWork.binaryCodec;
+		if (null == codec) {
+			return DispatchWork.DW_WRITE_SRV_NULL;
+		}
+		return writeFrame(FrameCodec.ID_NONE, FrameCodec.FLAG_BINARY, codec, msg);
+	}
+
+	/*****************************
+	 * Encode text as one frame and put it in the outbound queue,
+	 * see writeFrame(int, int, PayloadCodec, Object).
+	 * @param id correlation id of the frame
+	 * @param txt payload text of the frame
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	private int writeRecord(int id, CharSequence txt) {
+		return writeFrame(id, 0, textCodec, txt);
+	}
+
+	/*****************************
+	 * Encode a message as one frame and put it in the outbound queue. The queued frames are
+	 * written together with one gathering write, by the SelectorLoop thread when the
+	 * socket is writable, or else by the TaskThread after the records that are already
+	 * waiting in its message queue (or the batch window) are added.
+	 * <br>
+	 * Must be called from the TaskThread.
+	 * @param id correlation id of the frame
+	 * @param flags frame flags, e.g. FrameCodec.FLAG_BINARY
+	 * @param codec codec of the message
+	 * @param msg payload of the frame
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	private <T> int writeFrame(int id, int flags, PayloadCodec<T> codec, T msg) {
+		if (null == socketCh) {
+			return DispatchWork.DW_WRITE_SRV_NULL;
+		}
+		ByteBuffer frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + codec.maxLength(msg));
+		if (!encodeFrame(frame, id, flags, codec, msg) || frame.position() > DispatchWork.bufferSize) {
+			Log.i(SRV_TAG, "... record too large: "+codec.maxLength(msg));
+			BufferPool.release(frame);
+			return DispatchWork.DW_WRITE_SRV_NULL;
+		}
+		if (0 != (peerCaps & FrameCompressor.CAP_DEFLATE)) {
+			compressor.compress(frame, 0);
+		}
+		frame.flip();
+		int 	rc	= queueAnswered(frame, OutboundQueue.LANE_RECORDS);
+		if (DispatchWork.DW_WRITE_SRV == rc) {
+			heartbeat.sent();
+		}
+		return rc;
+	}
+
+	/*****************************
+	 * Write a record of the Outbox as one frame: an ID_SEQ frame with its sequence number
+	 * if the server accepted Outbox.CAP_ACK, else a plain record.
+	 * Must be called from the TaskThread.
+	 * @param seq sequence number of the record
+	 * @param data UTF-8 text of the record between position and limit; not changed
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	int writeSequenced(long seq, ByteBuffer data) {
+		if (null == socketCh) {
+			return DispatchWork.DW_WRITE_SRV_NULL;
+		}
+		boolean	bSeq	= 0 != (peerCaps & Outbox.CAP_ACK);
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + 8 + data.remaining());
+		int 	start	= FrameCodec.beginFrame(frame);
+		if (bSeq) {
+			frame.putLong(seq);
+		}
+		frame.put(data.duplicate());
+		FrameCodec.endFrame(frame, start, bSeq? FrameCodec.ID_SEQ: FrameCodec.ID_NONE);
+		if (0 != (peerCaps & FrameCompressor.CAP_DEFLATE)) {
+			compressor.compress(frame, 0);
+		}
+		frame.flip();
+		if (null == ioLoop) {
+			sendReadCmd(DispatchWork.CM_READ_INIT);		// prepare to receive the answer
+		}
+		int 	rc	= queueAnswered(frame, OutboundQueue.LANE_RECORDS);
+		if (DispatchWork.DW_WRITE_SRV == rc) {
+			heartbeat.sent();
+		}
+		return rc;
+	}
+
+	/*****************************
+	 * Test if the server answered the HELLO, so the capabilities to use are known.
+	 * @return <b>true</b> if so, or if there was nothing to offer
+	 */
+	boolean isReady() {
+		return bHelloDone || 0 == helloCaps();
+	}
+
+	/*****************************
+	 * @return <b>true</b> if the server acknowledges the records of the Outbox
+	 */
+	boolean isAcking() {
+		return 0 != (peerCaps & Outbox.CAP_ACK);
+	}
+
+	/*****************************
+	 * Put a chunk frame of a StreamSender in the lane of its stream in the outbound queue.
+	 * @param id stream id
+	 * @param frame buffer in fill mode with the complete frame
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	int writeChunk(int id, ByteBuffer frame) {
+		if (null == socketCh) {
+			BufferPool.release(frame);
+			return DispatchWork.DW_WRITE_SRV_NULL;
+		}
+		if (0 != (peerCaps & FrameCompressor.CAP_DEFLATE)) {
+			compressor.compress(frame, 0);
+		}
+		frame.flip();
+		heartbeat.sent();
+		return queueFrame(frame, id);
+	}
+
+	/*****************************
+	 * Put the header of a file chunk in the lane of its stream in the outbound queue, with
+	 * the data of the chunk, which is written from the file by FileChannel.transferTo().
+	 * The chunk is not compressed.
+	 * @param id stream id
+	 * @param frame buffer in fill mode with the frame header and the chunk header
+	 * @param region the data of the chunk; its file is closed after it if it is the last
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	int writeRegion(int id, ByteBuffer frame, OutboundQueue.FileRegion region) {
+		if (null == socketCh) {
+			BufferPool.release(frame);
+			region.release();
+			return DispatchWork.DW_WRITE_SRV_NULL;
+		}
+		frame.flip();
+		heartbeat.sent();
+		return queueFrame(frame, region, id);
+	}
+
+	/*****************************
+	 * Test if a chunk frame of a stream can be queued for writing without being refused.
+	 * @param id stream id
+	 * @param n size of the frame in bytes
+	 * @return <b>true</b> if so, <b>false</b> if the outbound queue or the lane of the
+	 * stream is full
+	 */
+	boolean canWrite(int id, int n) {
+		// a blocking channel writes the queue when it is full
+		return null == ioLoop || outQueue.hasRoom(n, id);
+	}
+
+	/*****************************
+	 * Start sending a stream on this connection. Must be called from the TaskThread.
+	 * @param sender the stream
+	 * @return <b>true</b> if started, <b>false</b> if the connection is not open
+	 */
+	boolean sendStream(StreamSender sender) {
+		if (null == socketCh || bClosing) {
+			return false;
+		}
+		if (null == ioLoop) {
+			sendReadCmd(DispatchWork.CM_READ_INIT);		// prepare to receive an answer
+		}
+		int 	id	= nextId();
+		senders.add(sender);
+		outQueue.openLane(id, DispatchWork.streamWeight);
+		sender.start(this, hTask, id);
+		return true;
+	}
+
+	/*****************************
+	 * A stream started by sendStream() ended or failed.
+	 * @param sender the stream
+	 */
+	void streamEnded(StreamSender sender) {
+		senders.remove(sender);
+		outQueue.closeLane(sender.getId());
+	}
+
+	/*****************************
+	 * Test if a stream from the server is being received, so the blocking receive
+	 * thread has to keep reading.
+	 * @return <b>true</b> if so, <b>false</b> if not
+	 */
+	boolean hasOpenStreams() {
+		return !openStreams.isEmpty();
+	}
+
+	/*****************************
+	 * Pass a chunk frame to DispatchWork.streamConsumer, or write it to the file of the
+	 * request it answers. If the stream answers a request, the request completes with an
+	 * empty reply after the last chunk.
+	 * @param src buffer in drain mode, positioned at the payload; moved past the payload
+	 * @param len number of payload bytes
+	 * @param id stream id
+	 * @throws ProtocolException if the chunk header is missing
+	 */
+	private void chunkReceived(ByteBuffer src, int len, int id) throws ProtocolException {
+		if (len < StreamSender.CHUNK_HEADER) {
+			throw new ProtocolException("invalid chunk: "+len);
+		}
+		int 	end 	= src.position() + len;
+		int 	limit	= src.limit();
+		long	total	= src.getLong();
+		long	offset	= src.getLong();
+		boolean	bLast	= total >= 0 && offset + (end - src.position()) >= total;
+		StreamConsumer	consumer	= DispatchWork.streamConsumer;
+		if (bLast) {
+			openStreams.remove(id);
+		} else {
+			openStreams.add(id);
+		}
+		PendingReply	target	= inFlight.get(id);
+		FileChannel 	sink	= (null == target)? null: target.getSink();
+		if (null != sink) {
+			if (!target.isDone()) {
+				src.limit(end);
+				writeSink(target, sink, src, offset, bLast? total: -1);
+				src.limit(limit);
+			}
+		} else if (null != consumer) {
+			src.limit(end);
+			consumer.onChunk(id, offset, total, src);
+			src.limit(limit);
+		}
+		src.position(end);
+		if (bLast) {
+			if (null != consumer && null == sink) {
+				consumer.onEnd(id, total);
+			}
+			PendingReply	pr	= inFlight.remove(id);
+			if (null != pr) {
+				replyReceived();
+				pr.complete("");
+			}
+		}
+	}
+
+	/*****************************
+	 * Write the data of a chunk to the file of a request, at its offset, straight from the
+	 * read buffer; the request fails if the file cannot be written.
+	 * @param pr the request
+	 * @param sink its file
+	 * @param src buffer with the data between position and limit
+	 * @param offset offset of the data in the stream
+	 * @param total length of the stream at its last chunk, to cut off the rest of an older
+	 * file; -1 before
+	 */
+	private void writeSink(PendingReply pr, FileChannel sink, ByteBuffer src, long offset, long total) {
+		try {
+			while (src.hasRemaining()) {
+				offset	+= sink.write(src, offset);
+			}
+			if (total >= 0) {
+				sink.truncate(total);
+			}
+		} catch (IOException e) {
+			pr.fail(e);
+		}
+	}
+
+	/*****************************
+	 * Put a frame in a lane of the outbound queue, and have it written.
+	 * @param frame buffer in drain mode with the frame; released when written or dropped
+	 * @param lane OutboundQueue.LANE_CONTROL, LANE_RECORDS or a stream id
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	private int queueFrame(ByteBuffer frame, int lane) {
+		return queueFrame(frame, null, lane);
+	}
+
+	/*****************************
+	 * Put a frame, followed by a file region, in a lane of the outbound queue, and have
+	 * it written, see queueFrame(ByteBuffer, int).
+	 * @param frame buffer in drain mode with the frame; released when written or dropped
+	 * @param region the file data of the frame, or <b>null</b>
+	 * @param lane OutboundQueue.LANE_CONTROL, LANE_RECORDS or a stream id
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	private int queueFrame(ByteBuffer frame, OutboundQueue.FileRegion region, int lane) {
+		if (null == ioLoop) {
+			if (!outQueue.offer(frame, region, lane)) {
+				// queue full, block the TaskThread until it is written
+				if (!flushNow()) {
+					BufferPool.release(frame);
+					if (null != region) {
+						region.release();
+					}
+					return DispatchWork.DW_WRITE_SRV_NULL;
+				}
+				outQueue.offer(frame, region, lane);
+			}
+			scheduleFlush();
+		} else {
+			if (!outQueue.offer(frame, region, lane)) {
+				BufferPool.release(frame);
+				if (null != region) {
+					region.release();
+				}
+				return DispatchWork.DW_WRITE_SRV_BUSY;
+			}
+			if (ioLoop.inLoop() && 0 == outQueue.delayUntilReady()) {
+				// the TaskThread runs the event loop, write now instead of at the next poll
+				try {
+					outQueue.flush(channel());
+				} catch (IOException e) {
+					e.printStackTrace();		// the event loop fails the link at its next write
+				}
+			} else {
+				ioLoop.wakeup();
+			}
+		}
+		Metrics.global.msgsOut.incrementAndGet();
+		return DispatchWork.DW_WRITE_SRV;
+	}
+
+	/*****************************
+	 * Put a frame that the server answers in a lane of the outbound queue, and count it
+	 * as outstanding until the answer. It is counted before it is queued, as the answer
+	 * may be read before queueFrame() returns.
+	 * @param frame buffer in drain mode with the frame; released when written or dropped
+	 * @param lane OutboundQueue.LANE_CONTROL or LANE_RECORDS
+	 * @return DispatchWork.DW_WRITE_SRV if the frame is queued for writing,
+	 * DW_WRITE_SRV_BUSY if the write queue is full, or DW_WRITE_SRV_NULL if it failed
+	 */
+	private int queueAnswered(ByteBuffer frame, int lane) {
+		outstanding.incrementAndGet();
+		int 	rc	= queueFrame(frame, lane);
+		if (DispatchWork.DW_WRITE_SRV != rc) {
+			outstanding.decrementAndGet();
+		}
+		return rc;
+	}
+
+	/*****************************
+	 * Schedule the write of the outbound queue on the TaskThread, at the end of the batch
+	 * window, or right away when the batch is full.
+	 */
+	private void scheduleFlush() {
+		long	delay	= outQueue.delayUntilReady();
+		if (0 == delay) {
+			hTask.removeCallbacks(flushTask);
+			bFlushScheduled	= false;
+			flushNow();
+		} else if (!bFlushScheduled) {
+			bFlushScheduled	= true;
+			hTask.postDelayed(flushTask, delay);
 		}
-		int nRead	        = readBuf.position();	// number of bytes read
-		String txt        	= new String(readBuf.array(), 0, nRead);
-		DispatchWork.num	= nRead;
-		DispatchWork.val	= txt;
-		Log.i(SRV_TAG, "... ["+nRead+"]="+txt);
 	}
 
 	/*****************************
-	 * write data to socket channel
+	 * Write the outbound queue to the blocking socket.
+	 * @return <b>true</b> if written, <b>false</b> if the write failed
 	 */
-	void writeRecord() {
-		Log.i(SRV_TAG, "... writeRecord{"+DispatchWork.num+"}"+DispatchWork.val);
-		sendBuf.clear();
-		sendBuf.put(DispatchWork.val.getBytes());
-		sendBuf.flip();
+	private boolean flushNow() {
 		try {
-			socketCh.write(sendBuf);		
-		} catch (Exception e) {
+			while (!outQueue.flush(channel())) {
+				// a blocking channel takes all data; just continue
+			}
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			Metrics.global.errors.incrementAndGet();
+			outQueue.clear();
+			return false;
+		}
+	}
+
+	/*****************************
+	 * Send a request tagged with a new correlation id. Any number of requests may be
+	 * in flight on the connection; the reply completes the PendingReply when it is read.
+	 * @param pr request to send
+	 * @return <b>true</b> if the request is sent, <b>false</b> if not
+	 */
+	boolean request(PendingReply pr) {
+		int id	= nextId();
+		pr.setId(id);
+		inFlight.put(id, pr);
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... request #"+id);
+
+		if (null == ioLoop) {
+			sendReadCmd(DispatchWork.CM_READ_INIT);		// prepare to receive the reply
+		}
+		if (DispatchWork.DW_WRITE_SRV != writeRecord(id, pr.getPayload())) {
+			inFlight.remove(id);
+			return false;
 		}
+		heartbeat.requestSent();
+		return true;
+	}
+
+	/*****************************
+	 * get a new correlation id, &gt; 0
+	 */
+	private int nextId() {
+		int id;
+		do {
+			id	= lastId.incrementAndGet() & Integer.MAX_VALUE;
+		} while (FrameCodec.ID_NONE == id);
+		return id;
+	}
+
+	/*****************************
+	 * Get the time left before the queued frames are to be written. Used by the
+	 * SelectorLoop thread to decide on OP_WRITE interest and its select timeout.
+	 * @return -1 if nothing is queued, 0 if the frames are to be written now,
+	 * or else the number of milliseconds to wait
+	 */
+	long writeDelay() {
+		if (null != tls && tls.hasPendingOutput()) {
+			return 0;
+		}
+		return outQueue.delayUntilReady();
+	}
+
+	/*****************************
+	 * Write queued frames to the non-blocking socket until the queue is empty or the
+	 * socket cannot take more data. Used by the EventLoop.
+	 * @throws IOException if the write fails
+	 */
+	void flushQueue() throws IOException {
+		if (null != tls && !tls.flush()) {
+			return;
+		}
+		outQueue.flush(channel());
+	}
+
+	/*****************************
+	 * Encode a message as a frame payload directly into a buffer in fill mode.
+	 * @param dst buffer to write the frame into
+	 * @param id correlation id of the frame
+	 * @param flags frame flags
+	 * @param codec codec of the message
+	 * @param msg payload of the frame
+	 * @return <b>true</b> if the frame was written, <b>false</b> if it does not fit
+	 */
+	private static <T> boolean encodeFrame(ByteBuffer dst, int id, int flags, PayloadCodec<T> codec, T msg) {
+		int 	start	= FrameCodec.beginFrame(dst);
+		if (start < 0) {
+			return false;
+		}
+		if (!codec.encode(msg, dst)) {
+			dst.position(start);
+			return false;
+		}
+		int 	len 	= FrameCodec.endFrame(dst, start, id);
+		dst.putInt(start, len | flags);
+		return true;
+	}
+
+	/*****************************
+	 * Take the capabilities accepted by the server from its HELLO frame.
+	 * @param len number of payload bytes at the position of readBuf
+	 */
+	private void helloReceived(int len) {
+		int 	caps	= (len >= 4)? readBuf.getInt(readBuf.position()): 0;
+		readBuf.position(readBuf.position() + len);
+		replyReceived();
+		peerCaps	= caps & helloCaps();
+		bHelloDone	= true;
+		Log.i(SRV_TAG, "... hello, capabilities: "+peerCaps);
+		linkEvent(DispatchWork.CM_HELLO);
+	}
+
+	/*****************************
+	 * capabilities offered to the server
+	 */
+	private int helloCaps() {
+		return ((null == compressor)? 0: FrameCompressor.CAP_DEFLATE)
+				| (DispatchWork.hasOutbox()? Outbox.CAP_ACK: 0)
+				| ((DispatchWork.heartbeatMs > 0)? Heartbeat.CAP_PING: 0)
+				| TopicRegistry.CAP_TOPICS
+				| ((DispatchWork.cacheBytes > 0)? ResponseCache.CAP_CACHE: 0);
+	}
+
+	/*****************************
+	 * Subscribe to a topic at the server, or unsubscribe. Called by the TaskThread.
+	 * @param topic name of the topic
+	 * @param bOn <b>true</b> to subscribe, <b>false</b> to unsubscribe
+	 * @return <b>true</b> if the frame is queued, <b>false</b> if the server does not
+	 * accept topics or the connection is not open
+	 */
+	boolean subscribe(String topic, boolean bOn) {
+		if (0 == (peerCaps & TopicRegistry.CAP_TOPICS) || null == socketCh || bClosing) {
+			return false;
+		}
+		byte[]	name	= topic.getBytes(TopicRegistry.UTF8);
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + 1 + name.length);
+		int 	start	= FrameCodec.beginFrame(frame);
+		frame.put((byte) (bOn? 1: 0)).put(name);
+		FrameCodec.endFrame(frame, start, FrameCodec.ID_SUBSCRIBE);
+		frame.flip();
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... subscribe "+bOn+": "+topic);
+		if (null == ioLoop) {
+			sendReadCmd(DispatchWork.CM_READ_INIT);		// prepare to receive the answer
+		}
+		return DispatchWork.DW_WRITE_SRV == queueAnswered(frame, OutboundQueue.LANE_CONTROL);
+	}
+
+	/*****************************
+	 * Decode a record pushed on a topic once, and pass it to the listeners of the topic.
+	 * @param src buffer positioned at the payload; moved past the payload
+	 * @param len number of payload bytes
+	 * @throws ProtocolException if the topic name does not fit in the payload
+	 */
+	private void topicReceived(ByteBuffer src, int len) throws ProtocolException {
+		int 	n	= (len >= 2)? src.getShort() & 0xffff: -1;
+		if (n < 0 || n > len - 2) {
+			throw new ProtocolException("invalid topic frame: "+len);
+		}
+		String	topic	= textCodec.decode(src, n).toString();
+		String	msg 	= textCodec.decode(src, len - 2 - n).toString();
+		if (DispatchWork.bTrace) Log.i(SRV_TAG, "... topic "+topic+" ["+len+"]");
+		DispatchWork.topics.publish(topic, msg);
+	}
+
+	/*****************************
+	 * Offer the capabilities of this side to the server with a HELLO frame, if there
+	 * are any. Called by the TaskThread when the link is up.
+	 */
+	void hello() {
+		int 	caps	= helloCaps();
+		if (0 == caps || null == socketCh) {
+			return;
+		}
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + 4);
+		int 	start	= FrameCodec.beginFrame(frame);
+		frame.putInt(caps);
+		FrameCodec.endFrame(frame, start, FrameCodec.ID_HELLO);
+		frame.flip();
+		if (null == ioLoop) {
+			sendReadCmd(DispatchWork.CM_READ_INIT);		// prepare to receive the answer
+		}
+		queueAnswered(frame, OutboundQueue.LANE_CONTROL);
+	}
+
+	/*****************************
+	 * Start the Heartbeat of the connection. Called by the TaskThread when the link is up.
+	 */
+	void startHeartbeat() {
+		heartbeat.start();
+	}
+
+	/*****************************
+	 * Send a ping frame with a timestamp, to be returned by the server as pong.
+	 * Called by the Heartbeat on the TaskThread.
+	 * @param nanos System.nanoTime() of the ping
+	 * @return <b>true</b> if the ping is queued, <b>false</b> if the server does not
+	 * answer pings or the connection is not open
+	 */
+	boolean ping(long nanos) {
+		if (0 == (peerCaps & Heartbeat.CAP_PING) || null == socketCh || bClosing) {
+			return false;
+		}
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + 8);
+		int 	start	= FrameCodec.beginFrame(frame);
+		frame.putLong(nanos);
+		FrameCodec.endFrame(frame, start, FrameCodec.ID_PING);
+		frame.flip();
+		if (null == ioLoop) {
+			sendReadCmd(DispatchWork.CM_READ_INIT);		// prepare to receive the pong
+		}
+		return DispatchWork.DW_WRITE_SRV == queueFrame(frame, OutboundQueue.LANE_CONTROL);
+	}
+
+	/*****************************
+	 * Pass the timestamp of a pong to the Heartbeat.
+	 * @param len number of payload bytes at the position of readBuf
+	 */
+	private void pongReceived(int len) {
+		if (len >= 8) {
+			heartbeat.pongReceived(readBuf.getLong(readBuf.position()));
+		}
+		readBuf.position(readBuf.position() + len);
+	}
+
+	/*****************************
+	 * Test if the connection has work in progress: records waiting for a reply, queued
+	 * frames or streams. A busy connection is not closed as idle.
+	 * @return <b>true</b> if so, <b>false</b> if not
+	 */
+	boolean isBusy() {
+		return outstanding.get() > 0 || !inFlight.isEmpty() || !outQueue.isEmpty()
+				|| !senders.isEmpty() || !openStreams.isEmpty();
+	}
+
+	/*****************************
+	 * Fail the requests that have waited longer than a timeout for their reply, with a
+	 * SocketTimeoutException. A reply that arrives later is dropped.
+	 * Called on the TaskThread by the Heartbeat.
+	 * @param timeoutMs timeout in milliseconds
+	 * @return milliseconds until the next request times out, Long.MAX_VALUE if none waits
+	 */
+	long expireRequests(long timeoutMs) {
+		long	now 	= System.nanoTime();
+		long	next	= Long.MAX_VALUE;
+		Iterator<PendingReply>	it	= inFlight.values().iterator();
+		while (it.hasNext()) {
+			PendingReply	pr	= it.next();
+			long	left	= pr.getSentAt() + timeoutMs * 1000000L - now;
+			if (left > 0) {
+				next	= Math.min(next, left);
+			} else if (inFlight.remove(pr.getId(), pr)) {
+				timedOut.add(pr.getId());
+				if (DispatchWork.bTrace) Log.i(SRV_TAG, "... request #"+pr.getId()+" timed out");
+				pr.fail(new SocketTimeoutException("no reply in "+timeoutMs+"ms"));
+			}
+		}
+		return (Long.MAX_VALUE == next)? next: (next + 999999L) / 1000000L;
+	}
+
+	/*****************************
+	 * Take the RTT estimate of the previous connection of the same slot.
+	 * @param prev previous connection
+	 */
+	void seedRtt(SrvConnect prev) {
+		heartbeat.seed(prev.heartbeat);
+	}
+
+	/*****************************
+	 * @return connect timeout in milliseconds, see Heartbeat.connectTimeout()
+	 */
+	int connectTimeout() {
+		return heartbeat.connectTimeout();
+	}
+
+	/*****************************
+	 * Number of records written to this connection for which no reply has been read yet.
+	 * Used by ConnectionPool to balance requests over its connections.
+	 * @return number of outstanding records
+	 */
+	int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/*****************************
+	 * count down the outstanding records for a received reply; server pushes
+	 * that arrive without a pending record do not make it negative
+	 */
+	private void replyReceived() {
+		int n;
+		do {
+			n	= outstanding.get();
+		} while (n > 0 && !outstanding.compareAndSet(n, n - 1));
 	}
 
 }
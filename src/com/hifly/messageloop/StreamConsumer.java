@@ -0,0 +1,43 @@
+package com.hifly.messageloop;
+import java.nio.ByteBuffer;
+
+/**
+ * <h1>the StreamConsumer interface</h1>
+ * Receiver of the chunks of the streams sent by the server, see StreamSender for the
+ * chunk format.
+ * <br>
+ * The chunks are passed as they arrive, straight from the read buffer of the connection,
+ * so a stream of any size is received in the memory of one frame. The methods are called
+ * on the receive thread of the connection (ReceiveData or SelectorLoop); onFailed() may be
+ * called on the TaskThread. Set the consumer in DispatchWork.streamConsumer.
+ * <br>
+ * In blocking mode the receive thread starts reading on a read command, so a stream is
+ * received when it answers a request, a record or a stream that was sent; once it started,
+ * the receive thread keeps reading until its last chunk.
+ */
+public interface StreamConsumer {
+
+	/*****************************
+	 * A chunk of a stream arrived.
+	 * @param id stream id; the id of the request if the stream answers one
+	 * @param offset offset of the chunk data in the stream
+	 * @param total length of the stream, or -1 if it is not known yet
+	 * @param data the chunk data, valid during the call only
+	 */
+	public void 	onChunk(int id, long offset, long total, ByteBuffer data);
+
+	/*****************************
+	 * The last chunk of a stream arrived.
+	 * @param id stream id
+	 * @param total length of the stream
+	 */
+	public void 	onEnd(int id, long total);
+
+	/*****************************
+	 * The connection closed before the end of a stream.
+	 * @param id stream id
+	 * @param e reason of the failure
+	 */
+	public void 	onFailed(int id, Exception e);
+
+}
@@ -0,0 +1,287 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <h1>the StreamSender class</h1>
+ * Sends a payload of any size, like a file or a blob, as a stream of chunks.
+ * <br>
+ * Each chunk is a frame flagged FrameCodec.FLAG_CHUNK with the stream id as its id,
+ * and a chunk header in its payload:
+ * <pre>
+ *   | long total | long offset | data |
+ * </pre>
+ * total is the length of the stream, or -1 if it is not known in advance; the last chunk
+ * always carries the real length, and is the chunk for which offset + data length == total.
+ * <br>
+ * The chunks are read from the source channel one at a time into a pooled frame buffer,
+ * only while the outbound queue has room, so the memory used does not depend on the size
+ * of the stream. The sender runs on the TaskThread, a burst of chunks at a time, so other
+ * commands are handled in between. Its Listener is called on the TaskThread as well.
+ * <br>
+ * The chunks are queued in a lane of the stream, with weight DispatchWork.streamWeight,
+ * so they are interleaved on the wire with the records and the other streams.
+ * <br>
+ * A file is not read into the frame buffers: only the headers of its chunks are, and the
+ * data follows each header as an OutboundQueue.FileRegion, written from the file with
+ * FileChannel.transferTo(). The offsets are those in the file, so a transfer that broke
+ * off is resumed by sending the file again from the offset the server has.
+ */
+public class StreamSender implements Runnable {
+	/**
+	 * Listener for the progress of a stream being sent.
+	 */
+	public static interface Listener {
+		/**
+		 * @param sender the stream
+		 * @param sent number of bytes sent so far
+		 * @param total length of the stream, or -1 if not known
+		 */
+		public void 	onProgress(StreamSender sender, long sent, long total);
+		/**
+		 * @param sender the stream, of which all chunks are queued for writing
+		 */
+		public void 	onDone(StreamSender sender);
+		/**
+		 * @param sender the stream
+		 * @param e reason why the stream could not be sent completely
+		 */
+		public void 	onFailed(StreamSender sender, Exception e);
+	}
+
+	/**
+	 * number of bytes in the chunk header
+	 */
+	public static final int 	CHUNK_HEADER = 16;
+	private static final int	BURST = 8;			// chunks per run on the TaskThread
+	private static final int	RETRY_DELAY = 5;	// milliseconds to wait for room or data
+	private final ReadableByteChannel	src;
+	private final FileChannel   	file;			// src if it is a file sent with transferTo()
+	private final long  	    	total;
+	private final Listener	    	listener;
+	private Dispatcher	hTask;
+	private SrvConnect  	    	sc;
+	private int 	    	    	id = FrameCodec.ID_NONE;
+	private long	    	    	offset = 0;
+	private boolean 	    	bDone = false;
+	private boolean 	    	bFileQueued = false;	// the last region closes the file
+
+	/*****************************
+	 * <h1>StreamSender constructor</h1>
+	 * @param src source of the stream data; closed when the stream ends or fails
+	 * @param length length of the stream, or -1 if not known
+	 * @param listener listener for the progress, or <b>null</b>
+	 */
+	StreamSender(ReadableByteChannel src, long length, Listener listener) {
+		this.src	= src;
+		this.file	= null;
+		this.total	= length;
+		this.listener	= listener;
+	}
+
+	/*****************************
+	 * <h1>StreamSender constructor</h1>
+	 * @param file the file to send from an offset to its end; closed when the stream ends
+	 * or fails
+	 * @param offset offset in the file of the first byte to send
+	 * @param listener listener for the progress, or <b>null</b>
+	 * @throws IOException if the size of the file cannot be read
+	 */
+	StreamSender(FileChannel file, long offset, Listener listener) throws IOException {
+		this.src	= file;
+		this.file	= file;
+		this.total	= file.size();
+		this.offset	= offset;
+		this.listener	= listener;
+		if (offset < 0 || offset > total) {
+			throw new IllegalArgumentException("offset "+offset+" not in file of "+total);
+		}
+	}
+
+	/*****************************
+	 * Start sending the stream on a connection.
+	 * @param sc the connection
+	 * @param handler handler of the TaskThread
+	 * @param id stream id
+	 */
+	void start(SrvConnect sc, Dispatcher handler, int id) {
+		this.sc 	= sc;
+		this.hTask	= handler;
+		this.id 	= id;
+		hTask.post(this);
+	}
+
+	/*****************************
+	 * Send the next burst of chunks, and schedule the next run.
+	 */
+	@Override
+	public void run() {
+		if (bDone) {
+			return;
+		}
+		for (int n = 0; n < BURST; n++) {
+			if (!sc.canWrite(id, DispatchWork.bufferSize)) {
+				hTask.postDelayed(this, RETRY_DELAY);	// wait for the queue to drain
+				return;
+			}
+			if (null != file) {
+				if (!nextRegion()) {
+					return;
+				}
+				continue;
+			}
+			ByteBuffer	frame	= BufferPool.acquire(DispatchWork.bufferSize);
+			frame.limit(DispatchWork.bufferSize);		// the server reads frames up to bufferSize
+			int 	start	= FrameCodec.beginFrame(frame);
+			frame.putLong(total);
+			frame.putLong(offset);
+			if (total >= 0 && total - offset < frame.remaining()) {
+				frame.limit(frame.position() + (int) (total - offset));
+			}
+			boolean	bEof	= false;
+			try {
+				while (frame.hasRemaining()) {
+					int 	k	= src.read(frame);
+					if (k < 0) {
+						bEof	= true;
+						break;
+					}
+					if (0 == k) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				BufferPool.release(frame);
+				fail(e);
+				return;
+			}
+			int 	len	= frame.position() - start - FrameCodec.HEADER_LEN - CHUNK_HEADER;
+			offset	+= len;
+			boolean	bLast	= bEof || (total >= 0 && offset >= total);
+			if (bEof && total >= 0 && offset < total) {
+				BufferPool.release(frame);
+				fail(new IOException("stream source ended at "+offset+" of "+total));
+				return;
+			}
+			if (0 == len && !bLast) {
+				BufferPool.release(frame);
+				hTask.postDelayed(this, RETRY_DELAY);	// no data available yet
+				return;
+			}
+			if (bLast) {
+				frame.putLong(start + FrameCodec.HEADER_LEN, offset);
+			}
+			int 	flen	= FrameCodec.endFrame(frame, start, id);
+			frame.putInt(start, flen | FrameCodec.FLAG_CHUNK);
+			if (DispatchWork.DW_WRITE_SRV != sc.writeChunk(id, frame)) {
+				fail(new IOException("chunk not sent"));
+				return;
+			}
+			if (null != listener) {
+				listener.onProgress(this, offset, total);
+			}
+			if (bLast) {
+				finish();
+				if (null != listener) {
+					listener.onDone(this);
+				}
+				return;
+			}
+		}
+		hTask.post(this);			// let other commands run in between
+	}
+
+	/*****************************
+	 * Queue the next chunk of the file: its header, followed by its data as a FileRegion.
+	 * @return <b>true</b> to go on, <b>false</b> if the stream ended or failed
+	 */
+	private boolean nextRegion() {
+		long	count	= Math.min(total - offset,
+				DispatchWork.bufferSize - FrameCodec.HEADER_LEN - CHUNK_HEADER);
+		boolean	bLast	= offset + count >= total;
+		ByteBuffer	frame	= BufferPool.acquire(FrameCodec.HEADER_LEN + CHUNK_HEADER);
+		int 	start	= FrameCodec.beginFrame(frame);
+		frame.putLong(total);
+		frame.putLong(offset);
+		int 	flen	= FrameCodec.endFrame(frame, start, id);
+		frame.putInt(start, (flen + (int) count) | FrameCodec.FLAG_CHUNK);
+		OutboundQueue.FileRegion	region	= new OutboundQueue.FileRegion(file, offset, count, bLast);
+		if (DispatchWork.DW_WRITE_SRV != sc.writeRegion(id, frame, region)) {
+			fail(new IOException("chunk not sent"));
+			return false;
+		}
+		offset	+= count;
+		if (null != listener) {
+			listener.onProgress(this, offset, total);
+		}
+		if (bLast) {
+			bFileQueued	= true;
+			finish();
+			if (null != listener) {
+				listener.onDone(this);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/*****************************
+	 * Stop sending the stream and report the failure.
+	 * @param e reason of the failure
+	 */
+	void fail(Exception e) {
+		if (bDone) {
+			return;
+		}
+		if (null != hTask) {
+			hTask.removeCallbacks(this);
+		}
+		finish();
+		if (null != listener) {
+			listener.onFailed(this, e);
+		}
+	}
+
+	/*****************************
+	 * end the stream and close its source, unless the last region of the file closes it
+	 * once written
+	 */
+	private void finish() {
+		bDone	= true;
+		if (null != sc) {
+			sc.streamEnded(this);
+		}
+		if (bFileQueued) {
+			return;
+		}
+		try {
+			src.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*****************************
+	 * @return stream id, or FrameCodec.ID_NONE if it was not started yet
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/*****************************
+	 * @return number of bytes sent so far
+	 */
+	public long getSent() {
+		return offset;
+	}
+
+	/*****************************
+	 * @return length of the stream, or -1 if not known
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+}
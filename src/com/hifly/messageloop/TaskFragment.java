@@ -1,9 +1,15 @@
 package com.hifly.messageloop;
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
 import android.app.Activity;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 
@@ -24,7 +30,8 @@ import android.util.Log;
  * For this a message looper is created in TaskThread and a handler
  * TaskHandler is defined with methods for sending messages to this looper.
  * </li><li>
- * TaskHandler dispatches the message commands to DispatchWork for actual processing.
+ * TaskHandler dispatches the message commands to DispatchWork for actual processing,
+ * which runs the Command registered for the command code.
  * </li><li>
  * Correspondingly, a handler MainHandler is created in TaskFragment by which
  * DispatchWork can deliver messages with results and replies from the worker
@@ -61,7 +68,12 @@ public class TaskFragment extends Fragment {
 	 * progress and results back to the Activity.
 	 */
 	static interface TaskCallbacks {
-		public void 	updActivity(String t);
+		/**
+		 * @param t result code as text
+		 * @param ev event with the result and its payload, or <b>null</b>; it is recycled
+		 * when the callback returns, so it must not be kept
+		 */
+		public void 	updActivity(String t, MsgEvent ev);
 	}
 
 	/*****************************
@@ -119,6 +131,7 @@ public class TaskFragment extends Fragment {
 		super.onDestroy();
 		DispatchWork.quit();
 		mTaskHandler.getLooper().quit();
+		mTaskHandler.wakeup();		// the looper may wait in the event loop
 	}
 
 	/*****************************
@@ -129,6 +142,37 @@ public class TaskFragment extends Fragment {
 		mTaskHandler.sendEmptyMessage(what);
 	}
 
+	/*****************************
+	 * process command with an argument from MainActivity by sending a command code
+	 * to the Task Thread
+	 * @param what action command code to submit
+	 * @param arg argument of the command, passed in Message.obj
+	 */
+	public void doCmd(int what, Object arg) {
+		mTaskHandler.sendMessage(mTaskHandler.obtainMessage(what, arg));
+	}
+
+	/*****************************
+	 * process command with its arguments from MainActivity by sending a command code
+	 * to the Task Thread
+	 * @param what action command code to submit
+	 * @param arg1 argument of the command, passed in Message.arg1
+	 * @param arg2 argument of the command, passed in Message.arg2
+	 * @param arg argument of the command, passed in Message.obj
+	 */
+	public void doCmd(int what, int arg1, int arg2, Object arg) {
+		mTaskHandler.sendMessage(mTaskHandler.obtainMessage(what, arg1, arg2, arg));
+	}
+
+	/*****************************
+	 * process a number of commands from MainActivity in one turn of the Task Thread,
+	 * see DispatchWork.CM_BATCH
+	 * @param batch the commands; not to be changed after the call
+	 */
+	public void doBatch(CommandBatch batch) {
+		doCmd(DispatchWork.CM_BATCH, batch);
+	}
+
 	/**************************************
 	 * <h1>the MainHandler class</h1>
 	 * Create the main handler.
@@ -152,10 +196,17 @@ public class TaskFragment extends Fragment {
 		@Override
 		public void handleMessage(Message msg) {
 			String	MsgTxt	= "<"+msg.what+">";
-			Log.i(MH_TAG, "<<"  + msg);
+			MsgEvent	ev	= (MsgEvent) msg.obj;
+			if (DispatchWork.bTrace) Log.i(MH_TAG, "<<"  + msg);
+			if (null != ev) {
+				DispatchWork.metrics().uiDelay.record(System.nanoTime() - ev.getTimestamp());
+			}
 			// Handle the message returned from the task thread.
 			// This is performed in MainActivity in the UI thread.
-			mCallbacks.updActivity(MsgTxt);
+			mCallbacks.updActivity(MsgTxt, ev);
+			if (null != ev) {
+				ev.recycle();
+			}
 		}
 	}	// ---- end MainHandler
 
@@ -178,6 +229,7 @@ public class TaskFragment extends Fragment {
 					" bound to " + mTaskHandler.getLooper().getThread().getName());
 			// Start looping the message queue of this thread.
 			Looper.loop();
+			mTaskHandler.closeEventLoop();
 			Log.i(TT_TAG, "-- task handler ends");
 		}
 	}	// ----- end TaskThread
@@ -192,8 +244,55 @@ public class TaskFragment extends Fragment {
 	 * mFragment and DispatchWork must be static as well, in that case.
 	 * Actually, the DispatchWork class is even not instantiated at all, and is
 	 * just called by its class name.
+	 * <p>
+	 * With DispatchWork.bEventLoop the TaskThread also does the socket I/O: the Looper
+	 * cannot wait on a Selector, so the EventLoop is polled by a task that posts itself
+	 * again, and every message sent to this handler wakes up the Selector when it is due.
+	 * <p>
+	 * The Looper queue is FIFO, so a command waits behind all commands sent before it.
+	 * Control commands (DispatchWork.isControl()) that are due now therefore go in a
+	 * control lane instead, which is run from the front of the Looper queue: a CM_CANCEL or
+	 * a link event is handled before a backlog of CM_WRITESRV records, and the control
+	 * commands keep their own order. Delayed commands, like CM_RECONNECT, are queued when due.
+	 * <p>
+	 * TaskHandler is the Dispatcher of the messaging core on Android: post(), postDelayed(),
+	 * removeCallbacks() and removeMessages() are those of the Handler.
 	 */
-	protected static class TaskHandler extends Handler {
+	protected static class TaskHandler extends Handler implements Dispatcher {
+		private volatile EventLoop  	eventLoop;		// created on first use by the TaskThread
+		private final PriorityQueue<Long>	wakeTimes = new PriorityQueue<Long>();	// uptime when messages are due
+		private final ConcurrentLinkedQueue<Control>	controlLane = new ConcurrentLinkedQueue<Control>();
+		private final Runnable  	    	controlTask = new Runnable() {
+			@Override
+			public void run() {
+				runControl();
+			}
+		};
+		private final Runnable  	    	pollTask = new Runnable() {
+			@Override
+			public void run() {
+				pollEvents();
+			}
+		};
+		private final Executor  	    	mainExecutor = new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				mMainHandler.post(r);
+			}
+		};
+
+		/**
+		 * a command of the control lane, with the time it was sent
+		 */
+		private static class Control {
+			final Message	msg;
+			final long  	sentAt = System.nanoTime();
+
+			Control(Message msg) {
+				this.msg	= msg;
+			}
+		}
+
 		TaskHandler() {
 			super();	    			// required?
 			new DispatchWork(this);		// call constructor for initialization
@@ -206,18 +305,181 @@ public class TaskFragment extends Fragment {
 		 */
 		@Override
 		public void handleMessage(Message msg) {
-			Log.i(TH_TAG, ">>"+msg);
-			DispatchWork.doWork(msg.what);
+			if (DispatchWork.bTrace) Log.i(TH_TAG, ">>"+msg);
+			// time the message waited in the queue after it was due, in milliseconds
+			DispatchWork.metrics().queueWait.record(
+					(SystemClock.uptimeMillis() - msg.getWhen()) * 1000000L);
+			DispatchWork.doWork(msg.what, msg.arg1, msg.arg2, msg.obj);
+		}
+
+		/**
+		 * Queue a message, and wake up the event loop if it is waiting, so the message
+		 * is handled when due. All sendMessage() and post() variants end up here.
+		 */
+		@Override
+		public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+			boolean	bControl	= null == msg.getCallback() && DispatchWork.isControl(msg.what)
+					&& uptimeMillis <= SystemClock.uptimeMillis();
+			EventLoop	loop	= eventLoop;
+			if (pollTask != msg.getCallback() && (null != loop || DispatchWork.bEventLoop)) {
+				// also before the loop exists, so it knows the delayed messages queued earlier
+				synchronized (wakeTimes) {
+					if (null == loop) {
+						// nothing drains the times yet, drop those that are past
+						long	now 	= SystemClock.uptimeMillis();
+						while (!wakeTimes.isEmpty() && wakeTimes.peek() < now) {
+							wakeTimes.poll();
+						}
+					}
+					wakeTimes.add(uptimeMillis);
+				}
+			}
+			boolean	bSent	= bControl? sendControl(msg): super.sendMessageAtTime(msg, uptimeMillis);
+			if (null != loop && pollTask != msg.getCallback()) {
+				loop.wakeup();
+			}
+			return bSent;
+		}
+
+		/**
+		 * Put a control command in the control lane, and have the lane run from the front
+		 * of the Looper queue.
+		 */
+		private boolean sendControl(Message msg) {
+			controlLane.add(new Control(msg));
+			return postAtFrontOfQueue(controlTask);
+		}
+
+		/**
+		 * Run the commands of the control lane in the order they were sent.
+		 */
+		private void runControl() {
+			Control	c;
+			while (null != (c = controlLane.poll())) {
+				Message	msg	= c.msg;
+				if (DispatchWork.bTrace) Log.i(TH_TAG, ">>control "+msg.what);
+				// time the command waited in the lane, like handleMessage() does for the queue
+				DispatchWork.metrics().queueWait.record(System.nanoTime() - c.sentAt);
+				DispatchWork.doWork(msg.what, msg.arg1, msg.arg2, msg.obj);
+				msg.recycle();
+			}
+		}
+
+		@Override
+		public void execute(Runnable r) {
+			post(r);
+		}
+
+		@Override
+		public void sendCommand(int what, int arg1, int arg2, Object obj) {
+			sendMessage(obtainMessage(what, arg1, arg2, obj));
+		}
+
+		@Override
+		public void sendCommandDelayed(int what, Object obj, long delayMillis) {
+			sendMessageDelayed(obtainMessage(what, obj), delayMillis);
+		}
+
+		/**
+		 * @return executor that posts to the MainHandler
+		 */
+		@Override
+		public Executor mainExecutor() {
+			return mainExecutor;
+		}
+
+		/**
+		 * Start a ReceiveData thread with its Looper, and have it connect the channel.
+		 * @param sc server connection object
+		 * @return the ReceiveData thread
+		 */
+		@Override
+		public BlockingReader startReader(SrvConnect sc) {
+			ReceiveData	receiveData	= new ReceiveData(this, sc);
+			receiveData.start();
+			receiveData.sendReadCmd(DispatchWork.CM_CONNECT);
+			return receiveData;
+		}
+
+		/**
+		 * Get the event loop run by the TaskThread, and start polling it.
+		 * Must be called from the TaskThread.
+		 * @return the event loop
+		 * @throws IOException if the selector cannot be opened
+		 */
+		@Override
+		public EventLoop eventLoop() throws IOException {
+			if (null == eventLoop) {
+				eventLoop	= new EventLoop(this);
+				post(pollTask);
+			}
+			return eventLoop;
+		}
+
+		/**
+		 * Poll the event loop once, waiting no longer than until the next message is due,
+		 * and post the poll again behind the messages that came in.
+		 */
+		private void pollEvents() {
+			long	now 	= SystemClock.uptimeMillis();
+			long	wait	= 0;			// no message queued, wait for I/O or a wakeup
+			synchronized (wakeTimes) {
+				while (!wakeTimes.isEmpty() && wakeTimes.peek() <= now) {
+					wakeTimes.poll();
+					wait	= -1;			// messages are due, only pick up the I/O ready now
+				}
+				if (0 == wait && !wakeTimes.isEmpty()) {
+					wait	= wakeTimes.peek() - now;
+				}
+			}
+			try {
+				eventLoop.poll(wait);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return; 			// selector broken, stop polling
+			}
+			post(pollTask);
+		}
+
+		/**
+		 * Wake up the event loop, e.g. after the Looper was told to quit.
+		 */
+		void wakeup() {
+			EventLoop	loop	= eventLoop;
+			if (null != loop) {
+				loop.wakeup();
+			}
+		}
+
+		/**
+		 * Close the event loop when the Looper has ended.
+		 */
+		void closeEventLoop() {
+			if (null != eventLoop) {
+				eventLoop.close();
+				eventLoop	= null;
+			}
 		}
 
 		/**
 		 * send a return value from the task to the Main UI Thread
 		 * @param n return value
 		 */
-		protected void sendResult(int n) {
+		@Override
+		public void sendResult(int n) {
 			mMainHandler.sendEmptyMessage(n);
 		}
 
+		/**
+		 * send a return value with its event from the task to the Main UI Thread
+		 * @param n return value
+		 * @param ev event with the result and its payload, recycled by the MainHandler
+		 */
+		@Override
+		public void sendResult(int n, MsgEvent ev) {
+			mMainHandler.sendMessage(mMainHandler.obtainMessage(n, ev));
+		}
+
 	}	// ----- end TaskHandler
 
 
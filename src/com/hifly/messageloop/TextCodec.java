@@ -0,0 +1,101 @@
+package com.hifly.messageloop;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * <h1>the TextCodec class</h1>
+ * PayloadCodec for text records in UTF-8.
+ * <br>
+ * Text is encoded and decoded in place with a reusable CharsetEncoder and CharsetDecoder,
+ * so no byte arrays or Strings are allocated per record. The text to encode is copied into
+ * a reusable CharBuffer instead of being wrapped, and the decoded text is kept in another
+ * one; both are grown only when a larger record comes.
+ * The encoder is used by the writing thread only, the decoder by the reading thread only.
+ */
+public class TextCodec implements PayloadCodec<CharSequence> {
+	private static final Charset	CHARSET = Charset.forName("UTF-8");
+	private final CharsetEncoder	encoder = CHARSET.newEncoder();
+	private final CharsetDecoder	decoder = CHARSET.newDecoder();
+	private CharBuffer  	    	charBuf;		// decoded text of the last payload
+	private CharBuffer  	    	encBuf;			// text of the payload being encoded
+
+	/*****************************
+	 * <h1>TextCodec constructor</h1>
+	 * @param capacity initial capacity in characters of the decoded text buffer
+	 */
+	TextCodec(int capacity) {
+		charBuf	= CharBuffer.allocate(capacity);
+		encBuf	= CharBuffer.allocate(capacity);
+		decoder.onMalformedInput(CodingErrorAction.REPLACE);
+		decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		encoder.onMalformedInput(CodingErrorAction.REPLACE);
+		encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public int maxLength(CharSequence txt) {
+		return (int) Math.ceil(encoder.maxBytesPerChar() * txt.length());
+	}
+
+	@Override
+	public boolean encode(CharSequence txt, ByteBuffer dst) {
+		encoder.reset();
+		CoderResult	cr	= encoder.encode(chars(txt), dst, true);
+		if (!cr.isOverflow()) {
+			cr	= encoder.flush(dst);
+		}
+		return !cr.isOverflow();
+	}
+
+	/**
+	 * copy the text into the reusable encode buffer, without allocating for a String or
+	 * a StringBuilder
+	 */
+	private CharBuffer chars(CharSequence txt) {
+		int 	len 	= txt.length();
+		if (encBuf.capacity() < len) {
+			encBuf	= CharBuffer.allocate(len);
+		}
+		char[]	a	= encBuf.array();
+		if (txt instanceof String) {
+			((String) txt).getChars(0, len, a, 0);
+		} else if (txt instanceof StringBuilder) {
+			((StringBuilder) txt).getChars(0, len, a, 0);
+		} else {
+			for (int i = 0; i < len; i++) {
+				a[i]	= txt.charAt(i);
+			}
+		}
+		encBuf.clear();
+		encBuf.limit(len);
+		return encBuf;
+	}
+
+	/*****************************
+	 * Decode a payload into the reusable text buffer.
+	 * @return the text; valid until the next call
+	 */
+	@Override
+	public CharSequence decode(ByteBuffer src, int len) {
+		int 	end 	= src.position() + len;
+		int 	limit	= src.limit();
+		if (charBuf.capacity() < len) {
+			charBuf	= CharBuffer.allocate(len);	// UTF-8 never has more chars than bytes
+		}
+		charBuf.clear();
+		src.limit(end);
+		decoder.reset();
+		decoder.decode(src, charBuf, true);
+		decoder.flush(charBuf);
+		charBuf.flip();
+		src.limit(limit);
+		src.position(end);
+		return charBuf;
+	}
+
+}
@@ -0,0 +1,327 @@
+package com.hifly.messageloop;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * <h1>the ThreadDispatcher class</h1>
+ * The TaskThread of the messaging core on a plain JVM, without the Android platform: the
+ * Dispatcher that TaskFragment.TaskHandler is on Android.
+ * <br>
+ * The thread runs the commands and tasks when due, in the order they were queued, with
+ * the control commands that are due now ahead of them, like the TaskHandler does. With
+ * DispatchWork.bEventLoop it polls the EventLoop between the rounds of commands, and a
+ * command queued wakes up the Selector. The blocking readers are ReadLoop tasks, on
+ * virtual threads when the JVM has them.
+ * <br>
+ * The results are passed to a Results listener, which is called on the TaskThread or on
+ * a reader thread; the TopicListener.ON_MAIN listeners run on the TaskThread.
+ * <p>
+ * Usage: create it and start() it, set DispatchWork.server_IP or DispatchWork.endpoints,
+ * and open the connections with sendCommand(DispatchWork.CM_START, 0, 0, null). Then give
+ * records with CM_WRITESRV or requests with DispatchWork.request(). quit() closes the
+ * connections and ends the thread.
+ */
+public class ThreadDispatcher extends Thread implements Dispatcher {
+	private static final String 	TD_TAG = "ThreadDispatcher";
+
+	/**
+	 * receiver of the results of the TaskThread
+	 */
+	public interface Results {
+		/**
+		 * @param n result code, one of the DispatchWork DW_ codes
+		 * @param ev event with the result and its payload, or <b>null</b>; recycled on return
+		 */
+		public void 	onResult(int n, MsgEvent ev);
+	}
+
+	/**
+	 * a task or a command, with the time it is due
+	 */
+	private static class Task implements Comparable<Task> {
+		final Runnable	r;			// null for a command
+		final int   	what;
+		final int   	arg1;
+		final int   	arg2;
+		final Object	obj;
+		final long  	due;		// System.nanoTime()
+		final long  	seq;		// FIFO order of the tasks due at the same time
+
+		Task(Runnable r, int what, int arg1, int arg2, Object obj, long due, long seq) {
+			this.r  	= r;
+			this.what	= what;
+			this.arg1	= arg1;
+			this.arg2	= arg2;
+			this.obj	= obj;
+			this.due	= due;
+			this.seq	= seq;
+		}
+
+		@Override
+		public int compareTo(Task t) {
+			long	d	= due - t.due;
+			if (0 != d) {
+				return (d < 0)? -1: 1;
+			}
+			return (seq < t.seq)? -1: (seq > t.seq)? 1: 0;
+		}
+	}
+
+	private final Results   	    	results;
+	private final Object    	    	lock = new Object();
+	private final PriorityQueue<Task>	queue = new PriorityQueue<Task>();
+	private final ArrayDeque<Task>  	controlLane = new ArrayDeque<Task>();
+	private long	    	    	seq = 0;
+	private boolean 	    	    	bQuit = false;
+	private volatile EventLoop  	eventLoop;		// created on first use by the TaskThread
+	private Executor	    	    	readers;		// runs the ReadLoop tasks
+
+	/*****************************
+	 * ThreadDispatcher constructor, which initializes DispatchWork with it.
+	 * @param results receiver of the results
+	 */
+	public ThreadDispatcher(Results results) {
+		super(TD_TAG);
+		this.results	= results;
+		new DispatchWork(this);		// call constructor for initialization
+	}
+
+	/*****************************
+	 * Run the commands and tasks when due, and poll the event loop if there is one,
+	 * until quit() has closed the connections.
+	 */
+	@Override
+	public void run() {
+		Log.i(TD_TAG, "-- "+this+" runs");
+		while (true) {
+			int 	n;
+			synchronized (lock) {
+				n	= controlLane.size() + queue.size();
+			}
+			// run those queued before this round, so the I/O is polled in between
+			for (int i = 0; i < n; i++) {
+				Task	t	= next();
+				if (null == t) {
+					break;
+				}
+				if (DispatchWork.bTrace) Log.i(TD_TAG, ">>"+((null == t.r)? t.what: t.r));
+				DispatchWork.metrics().queueWait.record(System.nanoTime() - t.due);
+				if (null == t.r) {
+					DispatchWork.doWork(t.what, t.arg1, t.arg2, t.obj);
+				} else {
+					t.r.run();
+				}
+			}
+			long	wait;
+			EventLoop	loop	= eventLoop;
+			synchronized (lock) {
+				if (bQuit) {
+					break;
+				}
+				wait	= waitTime();
+				if (null == loop) {
+					if (wait >= 0) {
+						try {
+							lock.wait(wait);
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+					continue;
+				}
+			}
+			try {
+				loop.poll(wait);
+			} catch (IOException e) {
+				e.printStackTrace();
+				eventLoop	= null;		// selector broken, stop polling
+				loop.close();
+			}
+		}
+		if (null != eventLoop) {
+			eventLoop.close();
+			eventLoop	= null;
+		}
+		Log.i(TD_TAG, "-- task thread ends");
+	}
+
+	/*****************************
+	 * Close the connections, like DispatchWork.quit(), and end the thread after the
+	 * commands queued before.
+	 */
+	public void quit() {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				DispatchWork.quit();
+				synchronized (lock) {
+					bQuit	= true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * take the next task that is due, from the control lane first
+	 */
+	private Task next() {
+		synchronized (lock) {
+			Task	t	= controlLane.poll();
+			if (null == t) {
+				Task	head	= queue.peek();
+				if (null != head && head.due - System.nanoTime() <= 0) {
+					t	= queue.poll();
+				}
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * time to wait in milliseconds for the next task: -1 if one is due, 0 if none is queued
+	 */
+	private long waitTime() {
+		if (!controlLane.isEmpty()) {
+			return -1;
+		}
+		Task	head	= queue.peek();
+		if (null == head) {
+			return 0;
+		}
+		long	ms	= (head.due - System.nanoTime() + 999999L) / 1000000L;
+		return (ms > 0)? ms: -1;
+	}
+
+	/**
+	 * queue a task or a command, and wake up the thread
+	 */
+	private boolean enqueue(Runnable r, int what, int arg1, int arg2, Object obj, long delayMillis) {
+		synchronized (lock) {
+			if (bQuit) {
+				return false;
+			}
+			long	now 	= System.nanoTime();
+			Task	t	= new Task(r, what, arg1, arg2, obj, now + Math.max(0, delayMillis) * 1000000L, seq++);
+			if (null == r && delayMillis <= 0 && DispatchWork.isControl(what)) {
+				controlLane.add(t);
+			} else {
+				queue.add(t);
+			}
+			lock.notify();
+		}
+		EventLoop	loop	= eventLoop;
+		if (null != loop) {
+			loop.wakeup();
+		}
+		return true;
+	}
+
+	@Override
+	public void execute(Runnable r) {
+		post(r);
+	}
+
+	@Override
+	public boolean post(Runnable r) {
+		return enqueue(r, 0, 0, 0, null, 0);
+	}
+
+	@Override
+	public boolean postDelayed(Runnable r, long delayMillis) {
+		return enqueue(r, 0, 0, 0, null, delayMillis);
+	}
+
+	@Override
+	public void removeCallbacks(Runnable r) {
+		synchronized (lock) {
+			removeIf(queue.iterator(), r, 0);
+		}
+	}
+
+	@Override
+	public void sendCommand(int what, int arg1, int arg2, Object obj) {
+		enqueue(null, what, arg1, arg2, obj, 0);
+	}
+
+	@Override
+	public void sendCommandDelayed(int what, Object obj, long delayMillis) {
+		enqueue(null, what, 0, 0, obj, delayMillis);
+	}
+
+	@Override
+	public void removeMessages(int what) {
+		synchronized (lock) {
+			removeIf(queue.iterator(), null, what);
+			removeIf(controlLane.iterator(), null, what);
+		}
+	}
+
+	/**
+	 * remove the tasks of a Runnable, or the commands with a code if r is null
+	 */
+	private static void removeIf(Iterator<Task> it, Runnable r, int what) {
+		while (it.hasNext()) {
+			Task	t	= it.next();
+			if (t.r == r && (null != r || t.what == what)) {
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public void sendResult(int n) {
+		results.onResult(n, null);
+	}
+
+	@Override
+	public void sendResult(int n, MsgEvent ev) {
+		if (null != ev) {
+			DispatchWork.metrics().uiDelay.record(System.nanoTime() - ev.getTimestamp());
+		}
+		results.onResult(n, ev);
+		if (null != ev) {
+			ev.recycle();
+		}
+	}
+
+	/*****************************
+	 * @return this dispatcher: a JVM has no main thread of its own
+	 */
+	@Override
+	public Executor mainExecutor() {
+		return this;
+	}
+
+	/*****************************
+	 * Get the event loop, which the thread polls from now on. Must be called from the
+	 * TaskThread.
+	 * @return the event loop
+	 * @throws IOException if the selector cannot be opened
+	 */
+	@Override
+	public EventLoop eventLoop() throws IOException {
+		if (null == eventLoop) {
+			eventLoop	= new EventLoop(this);
+		}
+		return eventLoop;
+	}
+
+	/*****************************
+	 * Run a ReadLoop for the connection, on a virtual thread if the JVM has them.
+	 * @param sc server connection object
+	 * @return the ReadLoop
+	 */
+	@Override
+	public BlockingReader startReader(SrvConnect sc) {
+		if (null == readers) {
+			readers	= ReadLoop.virtualThreads();
+		}
+		ReadLoop	loop	= new ReadLoop(this, sc);
+		readers.execute(loop);
+		return loop;
+	}
+
+}
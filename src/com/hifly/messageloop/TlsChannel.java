@@ -0,0 +1,450 @@
+package com.hifly.messageloop;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * <h1>the TlsChannel class</h1>
+ * TLS over a SocketChannel with an SSLEngine, for blocking and non-blocking channels,
+ * so the connections keep their java.nio read buffer, outbound queue and event loop.
+ * <br>
+ * read() decrypts into the read buffer of the connection, and write() encrypts the
+ * frames of a gathering write of the OutboundQueue; both count the plaintext bytes.
+ * The encrypted records are kept in two network buffers from the BufferPool, and a
+ * record that does not fit in the read buffer is kept decrypted in a third one, until
+ * the next read.
+ * <br>
+ * handshake() makes as much progress as the channel allows: on a blocking channel it
+ * returns when the handshake is done, on a non-blocking one it returns <b>false</b> when it
+ * has to wait for the socket, and is to be called again when the socket is ready.
+ * <br>
+ * The SSLEngine is created by the SSLContext for the host and port of the server, so a
+ * reconnect resumes the session from the client session cache of the context, and skips
+ * the full handshake.
+ * <br>
+ * One thread may read while another one writes, as the ReceiveData thread and the
+ * TaskThread do in blocking mode; the network output is guarded by a lock.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+	private static final ByteBuffer	EMPTY = ByteBuffer.allocate(0);
+	private final SocketChannel 	ch;
+	private final SSLEngine     	engine;
+	private ByteBuffer  	    	netIn;			// encrypted data read, in fill mode
+	private volatile ByteBuffer 	netOut;			// encrypted data to write, in drain mode
+	private ByteBuffer  	    	appIn;			// decrypted data not read yet, in drain mode
+	private final Object	    	writeLock = new Object();
+	private volatile boolean    	bHandshakeDone = false;
+	private boolean 	    	bHandshakeStarted = false;
+	private long	    	    	handshakeStart, handshakeStartMs;
+	private boolean 	    	bEof = false;
+
+	/*****************************
+	 * <h1>TlsChannel constructor</h1>
+	 * Get the network buffers from the BufferPool.
+	 * @param ch socket channel, connected or not yet
+	 * @param engine engine in client mode, created for the peer host and port
+	 */
+	TlsChannel(SocketChannel ch, SSLEngine engine) {
+		this.ch 	= ch;
+		this.engine	= engine;
+		SSLSession	session	= engine.getSession();
+		netIn   	= BufferPool.acquire(session.getPacketBufferSize());
+		netOut  	= BufferPool.acquire(session.getPacketBufferSize());
+		netOut.flip();			// nothing to write
+		appIn   	= BufferPool.acquire(session.getApplicationBufferSize());
+		appIn.flip();			// nothing decrypted
+	}
+
+	/*****************************
+	 * Do the handshake, or continue it.
+	 * @return <b>true</b> if the handshake is done, <b>false</b> if a non-blocking channel
+	 * has to wait to read or to write
+	 * @throws IOException if the handshake fails or the server closed the connection
+	 */
+	boolean handshake() throws IOException {
+		if (bHandshakeDone) {
+			return true;
+		}
+		if (!bHandshakeStarted) {
+			bHandshakeStarted	= true;
+			handshakeStart  	= System.nanoTime();
+			handshakeStartMs	= System.currentTimeMillis();
+			engine.beginHandshake();
+		}
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				runTasks();
+				break;
+			case NEED_WRAP:
+				synchronized (writeLock) {
+					if (!flushNet()) {
+						return false;
+					}
+					wrap(EMPTY);
+					if (!flushNet()) {
+						return false;
+					}
+				}
+				break;
+			case NEED_UNWRAP:
+				if (!unwrapNet(true)) {
+					return false;
+				}
+				break;
+			case NOT_HANDSHAKING:
+			case FINISHED:
+			default:
+				synchronized (writeLock) {
+					if (!flushNet()) {
+						return false;
+					}
+				}
+				handshakeDone();
+				return true;
+			}
+		}
+	}
+
+	/*****************************
+	 * count the handshake, and whether the session was resumed
+	 */
+	private void handshakeDone() {
+		bHandshakeDone	= true;
+		Metrics.global.tlsHandshake.record(System.nanoTime() - handshakeStart);
+		Metrics.global.tlsHandshakes.incrementAndGet();
+		// a resumed session was created by an earlier handshake
+		if (engine.getSession().getCreationTime() < handshakeStartMs) {
+			Metrics.global.tlsResumed.incrementAndGet();
+		}
+	}
+
+	/*****************************
+	 * @return <b>true</b> if the handshake is done
+	 */
+	boolean isHandshakeDone() {
+		return bHandshakeDone;
+	}
+
+	/*****************************
+	 * @return the TLS session, e.g. for its protocol and cipher suite
+	 */
+	SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	/*****************************
+	 * run the tasks of the engine, e.g. the certificate checks, on this thread
+	 */
+	private void runTasks() {
+		Runnable	task;
+		while (null != (task = engine.getDelegatedTask())) {
+			task.run();
+		}
+	}
+
+	/*****************************
+	 * Decrypt the next record from netIn into appIn, reading from the channel as needed.
+	 * @param bWait <b>true</b> if a blocking channel may wait for data, <b>false</b> to
+	 * decrypt only what was read already
+	 * @return <b>true</b> if a record was decrypted, <b>false</b> if the data is not complete
+	 * @throws IOException if the read fails or the server closed the connection
+	 */
+	private boolean unwrapNet(boolean bWait) throws IOException {
+		while (true) {
+			netIn.flip();
+			appIn.compact();
+			SSLEngineResult	rs;
+			try {
+				rs	= engine.unwrap(netIn, appIn);
+			} finally {
+				appIn.flip();
+				netIn.compact();
+			}
+			switch (rs.getStatus()) {
+			case OK:
+				if (SSLEngineResult.HandshakeStatus.NEED_TASK == rs.getHandshakeStatus()) {
+					runTasks();
+				}
+				return true;
+			case BUFFER_UNDERFLOW:
+				if (!bWait && ch.isBlocking()) {
+					return false;
+				}
+				if (!netIn.hasRemaining()) {
+					netIn	= grow(netIn, engine.getSession().getPacketBufferSize());
+				}
+				int 	n	= ch.read(netIn);
+				if (n < 0) {
+					bEof	= true;
+					throw new EOFException("connection closed by the server");
+				}
+				if (0 == n) {
+					return false;
+				}
+				break;
+			case BUFFER_OVERFLOW:
+				if (appIn.hasRemaining()) {
+					return true;		// read what was decrypted first
+				}
+				appIn.clear();
+				appIn	= grow(appIn, engine.getSession().getApplicationBufferSize());
+				appIn.flip();
+				break;
+			case CLOSED:
+			default:
+				bEof	= true;
+				throw new EOFException("TLS closed by the server");
+			}
+		}
+	}
+
+	/*****************************
+	 * replace a pooled buffer by a larger one with the same content
+	 */
+	private static ByteBuffer grow(ByteBuffer buf, int minCapacity) {
+		ByteBuffer	larger	= BufferPool.acquire(Math.max(minCapacity, 2 * buf.capacity()));
+		buf.flip();
+		larger.put(buf);
+		BufferPool.release(buf);
+		return larger;
+	}
+
+	/*****************************
+	 * Encrypt data into netOut, which must be empty. Must be called holding writeLock.
+	 * @return number of plaintext bytes consumed
+	 */
+	private int wrap(ByteBuffer... srcs) throws IOException {
+		return wrap(srcs, 0, srcs.length);
+	}
+
+	/*****************************
+	 * encrypt data into netOut, which must be empty; called holding writeLock
+	 */
+	private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		netOut.clear();
+		SSLEngineResult	rs;
+		try {
+			rs	= engine.wrap(srcs, offset, length, netOut);
+		} finally {
+			netOut.flip();
+		}
+		switch (rs.getStatus()) {
+		case OK:
+			if (SSLEngineResult.HandshakeStatus.NEED_TASK == rs.getHandshakeStatus()) {
+				runTasks();
+			}
+			return rs.bytesConsumed();
+		case CLOSED:
+			if (rs.bytesProduced() > 0) {
+				return rs.bytesConsumed();	// close_notify
+			}
+			throw new ClosedChannelException();
+		case BUFFER_OVERFLOW:
+		default:
+			throw new SSLException("wrap: "+rs.getStatus());
+		}
+	}
+
+	/*****************************
+	 * Write the encrypted data of netOut. Must be called holding writeLock.
+	 * @return <b>true</b> if all is written, <b>false</b> if a non-blocking channel is full
+	 * @throws ClosedChannelException if the buffers were released
+	 */
+	private boolean flushNet() throws IOException {
+		if (null == netOut) {
+			throw new ClosedChannelException();
+		}
+		while (netOut.hasRemaining()) {
+			if (0 == ch.write(netOut)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*****************************
+	 * Write the encrypted data left from an earlier write.
+	 * @return <b>true</b> if all is written, <b>false</b> if a non-blocking channel is full
+	 * @throws IOException if the write fails
+	 */
+	boolean flush() throws IOException {
+		synchronized (writeLock) {
+			return flushNet();
+		}
+	}
+
+	/*****************************
+	 * @return <b>true</b> if encrypted data waits to be written
+	 */
+	boolean hasPendingOutput() {
+		ByteBuffer	out	= netOut;
+		return null != out && out.hasRemaining();
+	}
+
+	/*****************************
+	 * Test if data was read that is not returned by read() yet: decrypted data, or a
+	 * complete record. As the socket will not signal it, read() has to be called again.
+	 * @return <b>true</b> if so, <b>false</b> if not
+	 */
+	boolean hasBufferedInput() {
+		if (appIn.hasRemaining()) {
+			return true;
+		}
+		// TLS record header: type, version (2 bytes), length (2 bytes)
+		if (netIn.position() < 5) {
+			return false;
+		}
+		int 	len	= ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+		return netIn.position() >= 5 + len;
+	}
+
+	/*****************************
+	 * Read decrypted data. On a blocking channel, waits until some data is decrypted.
+	 * @param dst buffer in fill mode
+	 * @return number of bytes read, 0 if a non-blocking channel has no complete record,
+	 * or -1 if the server closed the connection
+	 * @throws IOException if the read fails
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!bHandshakeDone && !handshake()) {
+			return 0;
+		}
+		int 	n	= 0;
+		while (dst.hasRemaining()) {
+			if (appIn.hasRemaining()) {
+				n	+= transfer(appIn, dst);
+				continue;
+			}
+			if (bEof) {
+				break;
+			}
+			boolean	bRecord;
+			try {
+				// a blocking channel waits only if nothing was returned yet
+				bRecord	= unwrapNet(0 == n);
+			} catch (EOFException e) {
+				break;
+			}
+			if (!bRecord) {
+				break;
+			}
+			SSLEngineResult.HandshakeStatus	hs	= engine.getHandshakeStatus();
+			if (SSLEngineResult.HandshakeStatus.NEED_WRAP == hs) {
+				// e.g. a key update after the handshake
+				synchronized (writeLock) {
+					if (flushNet()) {
+						wrap(EMPTY);
+						flushNet();
+					}
+				}
+			}
+		}
+		return (0 == n && bEof)? -1: n;
+	}
+
+	/*****************************
+	 * copy as much as fits from a buffer in drain mode to one in fill mode
+	 */
+	private static int transfer(ByteBuffer src, ByteBuffer dst) {
+		int 	n	= Math.min(src.remaining(), dst.remaining());
+		if (n == src.remaining()) {
+			dst.put(src);
+		} else {
+			int 	limit	= src.limit();
+			src.limit(src.position() + n);
+			dst.put(src);
+			src.limit(limit);
+		}
+		return n;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] {src}, 0, 1);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/*****************************
+	 * Encrypt and write data, as TLS records of up to 16 KB. On a non-blocking channel
+	 * that is full, the data of the last record is counted as written, and its encrypted
+	 * bytes are kept for flush().
+	 * @return number of plaintext bytes consumed
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long	n	= 0;
+		synchronized (writeLock) {
+			while (flushNet()) {
+				boolean	bData	= false;
+				for (int i = offset; i < offset + length && !bData; i++) {
+					bData	= srcs[i].hasRemaining();
+				}
+				if (!bData) {
+					break;
+				}
+				n	+= wrap(srcs, offset, length);
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return ch.isOpen();
+	}
+
+	/*****************************
+	 * Close the channel. On a non-blocking channel the TLS close_notify is sent first, if it
+	 * can be written right away; a blocking write could hold up the closing thread.
+	 * The buffers are returned to the pool by release().
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			engine.closeOutbound();
+			synchronized (writeLock) {
+				if (bHandshakeDone && !ch.isBlocking() && flushNet()) {
+					wrap(EMPTY);
+					flushNet();
+				}
+			}
+		} catch (IOException e) {
+			// the connection is closed anyway
+		} finally {
+			ch.close();
+		}
+	}
+
+	/*****************************
+	 * Return the network buffers to the BufferPool. Called by the reading thread when the
+	 * channel is not read anymore; a later write fails with ClosedChannelException.
+	 */
+	void release() {
+		BufferPool.release(netIn);
+		BufferPool.release(appIn);
+		netIn	= null;
+		appIn	= null;
+		synchronized (writeLock) {
+			if (null != netOut) {
+				BufferPool.release(netOut);
+				netOut	= null;
+			}
+		}
+	}
+
+}
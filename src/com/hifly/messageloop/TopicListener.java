@@ -0,0 +1,28 @@
+package com.hifly.messageloop;
+
+/**
+ * <h1>the TopicListener interface</h1>
+ * Receiver of the records the server pushes on a topic, registered with
+ * DispatchWork.subscribe().
+ * <br>
+ * A listener is called on the thread it was subscribed for: the receive thread of the
+ * connection (ON_IO), the TaskThread (ON_TASK), the main thread (ON_MAIN), or the thread
+ * of any Executor, e.g. one that posts to a Handler. A listener called on the receive
+ * thread holds up the reads of its connection, so it should only hand the record over.
+ */
+public interface TopicListener {
+	/**
+	 * thread to call the listener on: the receive thread of the connection, the TaskThread,
+	 * or the main thread
+	 */
+	public static final int 	ON_IO = 0, ON_TASK = 1, ON_MAIN = 2;
+
+	/*****************************
+	 * A record was pushed on a topic the listener is subscribed to. The record is decoded
+	 * once and passed to all listeners of the topic.
+	 * @param topic name of the topic
+	 * @param msg record text
+	 */
+	public void 	onPush(String topic, String msg);
+
+}
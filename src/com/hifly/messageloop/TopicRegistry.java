@@ -0,0 +1,178 @@
+package com.hifly.messageloop;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * <h1>the TopicRegistry class</h1>
+ * The topics subscribed to, with their listeners, see DispatchWork.subscribe().
+ * <br>
+ * When the server accepted CAP_TOPICS in the HELLO, each connection sends an ID_SUBSCRIBE
+ * frame per topic, and the server pushes the records of the topic as ID_TOPIC frames, see
+ * FrameCodec. The receive thread decodes a record once, and publish() fans it out to the
+ * listeners of its topic.
+ * <br>
+ * The listeners of a topic are grouped by the Executor of their thread, so a record costs
+ * one post per thread, not one per listener; the listeners of the receive thread are
+ * called right away. The groups are replaced on every change and never changed in place,
+ * so listeners may subscribe from any thread while the receive threads publish without
+ * a lock.
+ */
+public class TopicRegistry {
+	/**
+	 * capability bit offered in the HELLO: the client subscribes to topics
+	 */
+	public static final int 	CAP_TOPICS = 8;
+	/**
+	 * longest topic name in UTF-8 bytes
+	 */
+	public static final int 	MAX_TOPIC = 1024;
+	static final Charset	    	UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * the listeners of a topic that are called on one thread
+	 */
+	private static class Group {
+		final Executor	    	handler;		// null for the receive thread
+		final TopicListener[]	listeners;
+
+		Group(Executor handler, TopicListener[] listeners) {
+			this.handler	= handler;
+			this.listeners	= listeners;
+		}
+	}
+
+	/**
+	 * a record to deliver to a group on its thread
+	 */
+	private static class Delivery implements Runnable {
+		final Group 	group;
+		final String	topic, msg;
+
+		Delivery(Group group, String topic, String msg) {
+			this.group	= group;
+			this.topic	= topic;
+			this.msg	= msg;
+		}
+
+		@Override
+		public void run() {
+			for (TopicListener listener : group.listeners) {
+				listener.onPush(topic, msg);
+			}
+		}
+	}
+
+	private final ConcurrentHashMap<String, Group[]>	topics = new ConcurrentHashMap<String, Group[]>();
+
+	/*****************************
+	 * Add a listener to a topic.
+	 * @param topic name of the topic
+	 * @param listener the listener
+	 * @param handler executor of the thread to call the listener on, <b>null</b> for the
+	 * receive thread
+	 * @return <b>true</b> if it is the first listener of the topic, which is to be subscribed
+	 * at the server
+	 * @throws IllegalArgumentException if the topic name is empty or too long
+	 */
+	synchronized boolean subscribe(String topic, TopicListener listener, Executor handler) {
+		int 	n	= topic.getBytes(UTF8).length;
+		if (0 == n || n > MAX_TOPIC) {
+			throw new IllegalArgumentException("invalid topic: "+topic);
+		}
+		Group[]	groups	= topics.get(topic);
+		if (null == groups) {
+			topics.put(topic, new Group[] {new Group(handler, new TopicListener[] {listener})});
+			return true;
+		}
+		for (int i = 0; i < groups.length; i++) {
+			if (groups[i].handler == handler) {
+				TopicListener[]	old 	= groups[i].listeners;
+				TopicListener[]	copy	= new TopicListener[old.length + 1];
+				System.arraycopy(old, 0, copy, 0, old.length);
+				copy[old.length]	= listener;
+				Group[] 	g	= groups.clone();
+				g[i]	= new Group(handler, copy);
+				topics.put(topic, g);
+				return false;
+			}
+		}
+		Group[] 	g	= new Group[groups.length + 1];
+		System.arraycopy(groups, 0, g, 0, groups.length);
+		g[groups.length]	= new Group(handler, new TopicListener[] {listener});
+		topics.put(topic, g);
+		return false;
+	}
+
+	/*****************************
+	 * Remove a listener from a topic, on all threads it was subscribed for.
+	 * @param topic name of the topic
+	 * @param listener the listener
+	 * @return <b>true</b> if it was the last listener of the topic, which is to be
+	 * unsubscribed at the server
+	 */
+	synchronized boolean unsubscribe(String topic, TopicListener listener) {
+		Group[]	groups	= topics.get(topic);
+		if (null == groups) {
+			return false;
+		}
+		Group[] 	g	= new Group[groups.length];
+		int 	nGroups	= 0;
+		for (Group group : groups) {
+			TopicListener[]	copy	= new TopicListener[group.listeners.length];
+			int 	n	= 0;
+			for (TopicListener l : group.listeners) {
+				if (l != listener) {
+					copy[n++]	= l;
+				}
+			}
+			if (n == copy.length) {
+				g[nGroups++]	= group;
+			} else if (n > 0) {
+				TopicListener[]	left	= new TopicListener[n];
+				System.arraycopy(copy, 0, left, 0, n);
+				g[nGroups++]	= new Group(group.handler, left);
+			}
+		}
+		if (0 == nGroups) {
+			topics.remove(topic);
+			return true;
+		}
+		Group[] 	left	= new Group[nGroups];
+		System.arraycopy(g, 0, left, 0, nGroups);
+		topics.put(topic, left);
+		return false;
+	}
+
+	/*****************************
+	 * @return names of the topics subscribed to
+	 */
+	String[] topics() {
+		return topics.keySet().toArray(new String[0]);
+	}
+
+	/*****************************
+	 * Pass a pushed record to the listeners of its topic. Called by the receive thread.
+	 * @param topic name of the topic
+	 * @param msg record text
+	 * @return number of listeners, 0 if nobody is subscribed to the topic
+	 */
+	int publish(String topic, String msg) {
+		Group[]	groups	= topics.get(topic);
+		if (null == groups) {
+			return 0;
+		}
+		int 	n	= 0;
+		for (Group group : groups) {
+			n	+= group.listeners.length;
+			Delivery	d	= new Delivery(group, topic, msg);
+			if (null == group.handler) {
+				d.run();
+			} else {
+				group.handler.execute(d);
+			}
+		}
+		return n;
+	}
+
+}